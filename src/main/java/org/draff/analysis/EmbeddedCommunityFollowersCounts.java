@@ -63,8 +63,9 @@ public class EmbeddedCommunityFollowersCounts {
     Map<String, Object> constraint = new HashMap<>();
     for (String lowerScreenName : lowerScreenNames) {
       constraint.put("screenNameLower", lowerScreenName);
-      UserDetail detail = db.findOne(UserDetail.class, constraint);
-      usersMap.put(lowerScreenName, detail);
+      // Only followersCount gets read, so don't decode the rest of the user's details.
+      List<UserDetail> details = db.findLazily(UserDetail.class, constraint, 1);
+      usersMap.put(lowerScreenName, details.isEmpty() ? null : details.get(0));
     }
     return usersMap;
   }
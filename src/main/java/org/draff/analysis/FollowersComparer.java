@@ -8,9 +8,9 @@ import org.draff.model.FollowersTracker;
 import org.draff.model.UserDetail;
 import org.draff.objectdb.ObjectDb;
 
-import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Created by dave on 1/20/16.
@@ -19,7 +19,6 @@ public class FollowersComparer {
   private String screenName1;
   private String screenName2;
   private ObjectDb db;
-  private static final int BATCH_SIZE = 8000;
 
   public FollowersComparer(ObjectDb db, String screenName1, String screenName2) {
     this.screenName1 = screenName1;
@@ -38,20 +37,9 @@ public class FollowersComparer {
   private Set<Long> followerIds(String screenName) {
     UserDetail detail = userbyScreenName(screenName);
     FollowersTracker tracker = db.findById(FollowersTracker.class, detail.id());
-    HashSet<Long> followerIds = new HashSet<>();
-
-    long nextMinId = Long.MIN_VALUE;
-    List<Follower> followersBatch = db.findChildren(tracker, Follower.class, BATCH_SIZE, nextMinId);
-    while(!followersBatch.isEmpty()) {
-      for (Follower follower : followersBatch) {
-        if (follower.id() > nextMinId) {
-          nextMinId = follower.id();
-        }
-        followerIds.add(follower.id());
-      }
-      followersBatch = db.findChildren(tracker, Follower.class, BATCH_SIZE, nextMinId + 1);
+    try (Stream<Follower> followers = db.streamChildren(tracker, Follower.class)) {
+      return followers.map(Follower::id).collect(Collectors.toSet());
     }
-    return followerIds;
   }
 
   private UserDetail userbyScreenName(String screenName) {
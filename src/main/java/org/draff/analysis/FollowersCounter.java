@@ -2,33 +2,36 @@ package org.draff.analysis;
 
 import org.draff.model.UserDetail;
 import org.draff.objectdb.ObjectDb;
-import java.util.*;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.stream.Stream;
 
 /**
  * Created by dave on 1/18/16.
  */
 public class FollowersCounter {
   private ObjectDb db;
-  private static final int BATCH_SIZE = 100;
 
   public FollowersCounter(ObjectDb db) {
     this.db = db;
   }
 
   public Aggregates calcFollowerAggregates() {
-    long lastUserId = Long.MIN_VALUE;
-    List<UserDetail> users = db.findOrderedById(UserDetail.class, BATCH_SIZE, lastUserId);
     Aggregates aggregates = new Aggregates();
-    while(!users.isEmpty()) {
-      for (UserDetail user: users) {
-        aggregates.totalFollowers += user.followersCount();
-        aggregates.totalFriends += user.friendsCount();
+    // Only fetch the counts rather than whole UserDetail entities. Each count gets its own
+    // projection since single-property projections are served by the built-in indexes, whereas
+    // projecting both together would need a composite index.
+    try (Stream<Map<String, Object>> users = db.streamProjection(UserDetail.class,
+        Collections.singletonList("followersCount"))) {
+      users.forEach(user -> {
+        aggregates.totalFollowers += (Long) user.get("followersCount");
         aggregates.totalUsers++;
-        if (user.id() > lastUserId) {
-          lastUserId = user.id();
-        }
-      }
-      users = db.findOrderedById(UserDetail.class, BATCH_SIZE, lastUserId + 1L);
+      });
+    }
+    try (Stream<Map<String, Object>> users = db.streamProjection(UserDetail.class,
+        Collections.singletonList("friendsCount"))) {
+      users.forEach(user -> aggregates.totalFriends += (Long) user.get("friendsCount"));
     }
     return aggregates;
   }
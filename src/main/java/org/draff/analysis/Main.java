@@ -1,9 +1,12 @@
 package org.draff.analysis;
 
+import com.google.api.services.datastore.client.Datastore;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 
 import org.draff.model.FollowersGoal;
+import org.draff.objectdb.DatastoreDb;
+import org.draff.objectdb.JdbcDb;
 import org.draff.objectdb.ObjectDb;
 import org.draff.twitfetch.TwitFetchModule;
 
@@ -47,6 +50,15 @@ public class Main {
       new EmbeddedCommunityDetailRequester(db).requestCommunityUserDetails();
     } else if (command.equals("save-community-follower-counts")) {
       new EmbeddedCommunityFollowersCounts(db, args[1]).saveFollowersCounts();
+    } else if (command.equals("import-datastore")) {
+      // The ObjectDb binding is wrapped for metrics, so check the db it wraps.
+      DatastoreDb targetDb = injector.getInstance(DatastoreDb.class);
+      if (!(targetDb instanceof JdbcDb)) {
+        System.out.println("Set object_db to jdbc to import from Datastore");
+        return;
+      }
+      long imported = ((JdbcDb) targetDb).importFrom(injector.getInstance(Datastore.class));
+      System.out.println("Imported " + imported + " entities");
     }
   }
 }
@@ -3,9 +3,12 @@ package org.draff.mapper;
 import com.google.api.services.datastore.client.Datastore;
 import com.google.common.collect.ImmutableMap;
 
-import org.draff.model.Follower;
+import org.draff.model.*;
 import org.draff.objectdb.DatastoreDb;
+import org.draff.objectdb.DatastoreDbOptions;
 import org.draff.objectdb.EntityMapper;
+import org.draff.objectdb.InMemoryDb;
+import org.draff.objectdb.JdbcDb;
 
 import java.util.Map;
 
@@ -16,6 +19,15 @@ public class DbWithMappers {
   private static final Map<Class, EntityMapper> CUSTOM_ENTITY_MAPPERS =
       new ImmutableMap.Builder<Class, EntityMapper>()
           .put(Follower.class, FollowerMapper.INSTANCE)
+          // Mappers generated at compile time for models marked with @GenerateEntityMapper
+          .put(EmbeddedCommunity.class, EntityMapper_EmbeddedCommunity.INSTANCE)
+          .put(FollowersGoal.class, EntityMapper_FollowersGoal.INSTANCE)
+          .put(FollowersTracker.class, EntityMapper_FollowersTracker.INSTANCE)
+          .put(FriendsTracker.class, EntityMapper_FriendsTracker.INSTANCE)
+          .put(TwitterAccessToken.class, EntityMapper_TwitterAccessToken.INSTANCE)
+          .put(UserDetail.class, EntityMapper_UserDetail.INSTANCE)
+          .put(UserDetailRequestById.class, EntityMapper_UserDetailRequestById.INSTANCE)
+          .put(UserDetailRequestByName.class, EntityMapper_UserDetailRequestByName.INSTANCE)
           .build();
 
   private DbWithMappers() {}
@@ -23,4 +35,16 @@ public class DbWithMappers {
   public static DatastoreDb create(Datastore datastore) {
     return new DatastoreDb(datastore, CUSTOM_ENTITY_MAPPERS);
   }
+
+  public static DatastoreDb create(Datastore datastore, DatastoreDbOptions options) {
+    return new DatastoreDb(datastore, CUSTOM_ENTITY_MAPPERS, options);
+  }
+
+  public static InMemoryDb createInMemory() {
+    return new InMemoryDb(CUSTOM_ENTITY_MAPPERS);
+  }
+
+  public static JdbcDb createJdbc(String jdbcUrl, DatastoreDbOptions options) {
+    return new JdbcDb(jdbcUrl, CUSTOM_ENTITY_MAPPERS, options);
+  }
 }
@@ -2,6 +2,7 @@ package org.draff.model;
 
 import com.google.auto.value.AutoValue;
 
+import org.draff.objectdb.GenerateEntityMapper;
 import org.draff.objectdb.Model;
 
 /**
@@ -9,6 +10,7 @@ import org.draff.objectdb.Model;
  */
 
 @AutoValue
+@GenerateEntityMapper
 public abstract class EmbeddedCommunity implements Model {
   public abstract String embeddedScreenName();
   public abstract String parentScreenName();
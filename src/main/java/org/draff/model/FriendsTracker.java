@@ -2,12 +2,14 @@ package org.draff.model;
 
 import com.google.auto.value.AutoValue;
 
+import org.draff.objectdb.GenerateEntityMapper;
 import org.draff.objectdb.Model;
 
 /**
  * Created by dave on 1/9/16.
  */
 @AutoValue
+@GenerateEntityMapper
 public abstract class FriendsTracker implements Model {
   public abstract long id();
   public abstract boolean friendsFetched();
@@ -2,12 +2,14 @@ package org.draff.model;
 
 import com.google.auto.value.AutoValue;
 
+import org.draff.objectdb.GenerateEntityMapper;
 import org.draff.objectdb.Model;
 
 /**
  * Created by dave on 7/11/16.
  */
 @AutoValue
+@GenerateEntityMapper
 public abstract class TwitterAccessToken implements Model {
   // id for the user whose token this is
   public abstract long id();
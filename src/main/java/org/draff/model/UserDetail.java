@@ -2,51 +2,58 @@ package org.draff.model;
 
 import com.google.auto.value.AutoValue;
 
+import org.draff.objectdb.GenerateEntityMapper;
 import org.draff.objectdb.Model;
+import org.draff.objectdb.Unindexed;
 
 import java.time.Instant;
 
 import javax.annotation.Nullable;
 
 /**
+ * Properties marked @Unindexed are only ever read back with the whole entity. Queries filter on
+ * screenName and screenNameLower and project followersCount and friendsCount, and the other
+ * counts and timestamps are left indexed for analysis queries.
+ *
  * Created by dave on 1/7/16.
  */
 @AutoValue
+@GenerateEntityMapper
 public abstract class UserDetail implements Model {
   public abstract long id();
   public abstract long retrievedAt();
   public abstract String screenName();
   @Nullable public abstract String screenNameLower();
-  @Nullable public abstract String location();
-  @Nullable public abstract String description();
-  @Nullable public abstract String url();
+  @Unindexed @Nullable public abstract String location();
+  @Unindexed @Nullable public abstract String description();
+  @Unindexed @Nullable public abstract String url();
   public abstract long statusesCount();
   public abstract long listedCount();
   public abstract long followersCount();
   public abstract long favouritesCount();
-  public abstract long utcOffset();
+  @Unindexed public abstract long utcOffset();
   public abstract long friendsCount();
   @Nullable public abstract Instant createdAt();
-  @Nullable public abstract String timeZone();
-  @Nullable public abstract String lang();
-  public abstract boolean isGeoEnabled();
-  public abstract boolean isVerified();
-  public abstract boolean isTranslator();
-  public abstract boolean isContributorsEnabled();
-  public abstract boolean isProtected();
-  @Nullable public abstract String profileImageURL();
-  @Nullable public abstract String profileBackgroundColor();
-  @Nullable public abstract String profileTextColor();
-  @Nullable public abstract String profileLinkColor();
-  @Nullable public abstract String profileSidebarFillColor();
-  @Nullable public abstract String profileSidebarBorderColor();
-  public abstract boolean isProfileUseBackgroundImage();
-  public abstract boolean isDefaultProfile();
-  public abstract boolean isShowAllInlineMedia();
-  public abstract boolean isDefaultProfileImage();
-  @Nullable public abstract String profileBackgroundImageURL();
-  @Nullable public abstract String profileBannerURL();
-  public abstract boolean isProfileBackgroundTiled();
+  @Unindexed @Nullable public abstract String timeZone();
+  @Unindexed @Nullable public abstract String lang();
+  @Unindexed public abstract boolean isGeoEnabled();
+  @Unindexed public abstract boolean isVerified();
+  @Unindexed public abstract boolean isTranslator();
+  @Unindexed public abstract boolean isContributorsEnabled();
+  @Unindexed public abstract boolean isProtected();
+  @Unindexed @Nullable public abstract String profileImageURL();
+  @Unindexed @Nullable public abstract String profileBackgroundColor();
+  @Unindexed @Nullable public abstract String profileTextColor();
+  @Unindexed @Nullable public abstract String profileLinkColor();
+  @Unindexed @Nullable public abstract String profileSidebarFillColor();
+  @Unindexed @Nullable public abstract String profileSidebarBorderColor();
+  @Unindexed public abstract boolean isProfileUseBackgroundImage();
+  @Unindexed public abstract boolean isDefaultProfile();
+  @Unindexed public abstract boolean isShowAllInlineMedia();
+  @Unindexed public abstract boolean isDefaultProfileImage();
+  @Unindexed @Nullable public abstract String profileBackgroundImageURL();
+  @Unindexed @Nullable public abstract String profileBannerURL();
+  @Unindexed public abstract boolean isProfileBackgroundTiled();
 
   UserDetail() {}
 
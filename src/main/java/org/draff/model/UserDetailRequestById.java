@@ -2,12 +2,14 @@ package org.draff.model;
 
 import com.google.auto.value.AutoValue;
 
+import org.draff.objectdb.GenerateEntityMapper;
 import org.draff.objectdb.Model;
 
 /**
  * Created by dave on 1/10/16.
  */
 @AutoValue
+@GenerateEntityMapper
 public abstract class UserDetailRequestById implements Model {
   public abstract long id();
   public abstract boolean detailRetrieved();
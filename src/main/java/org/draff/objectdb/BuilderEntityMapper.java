@@ -1,20 +1,21 @@
 package org.draff.objectdb;
 
+import com.google.api.services.datastore.DatastoreV1;
 import com.google.api.services.datastore.DatastoreV1.Entity;
-import com.google.api.services.datastore.DatastoreV1.Value;
 
 import java.lang.reflect.Method;
 import java.util.List;
-import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
-import static com.google.api.services.datastore.client.DatastoreHelper.getPropertyMap;
 import static com.google.api.services.datastore.client.DatastoreHelper.makeKey;
-import static com.google.api.services.datastore.client.DatastoreHelper.makeProperty;
 import static org.draff.objectdb.EntityMapperHelper.*;
-import static org.draff.objectdb.ValueHelper.fromValue;
-import static org.draff.objectdb.ValueHelper.toValue;
+import static org.draff.objectdb.PropertyAccessors.getter;
+import static org.draff.objectdb.PropertyAccessors.setter;
+import static org.draff.objectdb.PropertyAccessors.supplier;
 
 /**
  * Created by dave on 1/26/16.
@@ -23,31 +24,37 @@ public class BuilderEntityMapper implements EntityMapper {
   private static final Logger log = Logger.getLogger(BuilderEntityMapper.class.getName());
 
   private final Class modelClass;
-  private final Method buildMethod;
-  private final Method builderMethod;
-  private final Method builderIdMethod;
-  private final List<Method> builderPropertyMethods;
-
-  private final Method idMethod;
-  private final List<Method> propertyMethods;
+  private final Supplier<Object> newBuilder;
+  private final Function<Object, Object> build;
+  private final BiFunction<Object, Object, Object> builderId;
+  private final Function<Object, Object> id;
+  private final List<PropertyCodec> properties;
+  private final PropertySlots propertySlots;
   private final String entityKind;
 
   public BuilderEntityMapper(Class clazz, String staticBuilderMethodName) {
-    builderMethod = method(clazz, staticBuilderMethodName);
-    idMethod = method(clazz, "id");
+    Method builderMethod = method(clazz, staticBuilderMethodName);
+    Method idMethod = method(clazz, "id");
 
     Class builderClass = builderMethod.getReturnType();
-    buildMethod = method(builderClass, "build");
-    builderPropertyMethods = methods(builderClass).stream()
+    Method buildMethod = method(builderClass, "build");
+    List<Method> builderPropertyMethods = methods(builderClass).stream()
         .filter(m -> !m.getName().equals("id") &&
             m.getReturnType().equals(builderClass)).collect(Collectors.toList());
-    builderIdMethod = method(builderClass, "id");
+    Method builderIdMethod = method(builderClass, "id");
 
     // Assume that the property methods on the value type class itself have the same names as the
     // property methods on the builder.
-    propertyMethods = builderPropertyMethods.stream().map(m -> method(clazz, m.getName()))
+    properties = builderPropertyMethods.stream()
+        .map(m -> PropertyCodec.bind(m.getName(), method(clazz, m.getName()), m))
         .collect(Collectors.toList());
+    propertySlots = new PropertySlots(properties.stream().map(property -> property.name)
+        .collect(Collectors.toList()));
 
+    newBuilder = supplier(builderMethod);
+    build = getter(buildMethod);
+    builderId = setter(builderIdMethod);
+    id = getter(idMethod);
     entityKind = kindForClass(clazz);
     modelClass = clazz;
   }
@@ -56,30 +63,27 @@ public class BuilderEntityMapper implements EntityMapper {
   public Entity toEntity(Model model) {
     Entity.Builder builder = Entity.newBuilder();
     builder.setKey(makeKey(entityKind(model.getClass()), getModelId(model)));
-    for (Method method : propertyMethods) {
-      Object value = invoke(method, model);
-      if (value != null) {
-        builder.addProperty(makeProperty(method.getName(), toValue(value)));
-      }
+    for (PropertyCodec property : properties) {
+      property.encode(model, builder);
     }
     return builder.build();
   }
 
   @Override
   public <T extends Model> T fromEntity(Entity entity, Class<T> clazz) {
-    Map<String, Value> entityProperties = getPropertyMap(entity);
     try {
-      Object builder = invoke(builderMethod, null);
-      builderPropertyMethods.forEach(m -> {
-        if (entityProperties.containsKey(m.getName())) {
-          invoke(m, builder, fromValue(entityProperties.get(m.getName())));
+      Object builder = newBuilder.get();
+      for (DatastoreV1.Property entityProperty : entity.getPropertyList()) {
+        int slot = propertySlots.slot(entityProperty.getName());
+        if (slot != PropertySlots.NONE) {
+          properties.get(slot).decode(builder, entityProperty.getValue());
         }
-      });
-      invoke(builderIdMethod, builder, entityId(entity));
-      return clazz.cast(invoke(buildMethod, builder));
+      }
+      builderId.apply(builder, entityId(entity));
+      return clazz.cast(build.apply(builder));
     } catch(RuntimeException e) {
       log.severe("Exception building entity (" + entity.getKey().toString() +
-          ") with properties: " + entityProperties.toString());
+          ") with properties: " + entity.getPropertyList().toString());
       log.severe("This may be because the entity does not have the expected properties.");
       throw(e);
     }
@@ -87,7 +91,7 @@ public class BuilderEntityMapper implements EntityMapper {
 
   @Override
   public Object getModelId(Model model) {
-    return invoke(idMethod, model);
+    return id.apply(model);
   }
 
   @Override
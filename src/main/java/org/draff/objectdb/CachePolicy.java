@@ -0,0 +1,27 @@
+package org.draff.objectdb;
+
+import com.google.auto.value.AutoValue;
+
+import java.time.Duration;
+
+/**
+ * How DatastoreDb caches the entities of one kind: at most maxEntries of them (least recently used
+ * ones get evicted first), each for at most ttl after it was last loaded or saved. The ttl bounds
+ * how stale a cached entity can be if something other than this DatastoreDb changes it.
+ *
+ * Created by dave on 10/18/16.
+ */
+@AutoValue
+public abstract class CachePolicy {
+  public abstract long maxEntries();
+  public abstract Duration ttl();
+
+  CachePolicy() {}
+
+  public static CachePolicy create(long maxEntries, Duration ttl) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be at least 1");
+    }
+    return new AutoValue_CachePolicy(maxEntries, ttl);
+  }
+}
@@ -1,11 +1,14 @@
 package org.draff.objectdb;
 
+import com.google.api.services.datastore.DatastoreV1.Entity;
 import com.google.auto.value.AutoValue;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+
+import static com.google.api.services.datastore.client.DatastoreHelper.getPropertyMap;
 
 /**
  * Created by dave on 2/2/16.
@@ -35,27 +38,59 @@ public abstract class CreateOrTransformOp<T extends Model> {
 
     public abstract CreateOrTransformOp<T> build();
 
-    public void now() {
-      build().execute();
+    public Result now() {
+      return build().execute();
+    }
+  }
+
+  /**
+   * How many models the op created, changed with the transformer, or left alone because the
+   * transformer returned them unchanged (those aren't written back).
+   */
+  @AutoValue
+  public abstract static class Result {
+    public abstract int created();
+    public abstract int updated();
+    public abstract int unchanged();
+
+    Result() {}
+
+    static Result create(int created, int updated, int unchanged) {
+      return new AutoValue_CreateOrTransformOp_Result(created, updated, unchanged);
     }
   }
 
-  private void execute() {
-    List<T> foundModels = db().findByNamesOrIds(modelClass(), namesOrIds());
+  private Result execute() {
+    // Read past the entity cache, so the transformer is applied to the models as they're stored.
+    List<T> foundModels = db().findByNamesOrIdsUncached(modelClass(), namesOrIds());
     Map<Object, T> idsToFound = new HashMap<>(foundModels.size());
     foundModels.forEach(m -> idsToFound.put(db().mapper().getModelId(m), m));
-    db().saveAll(
-        namesOrIds().stream().map(id -> newOrUpdatedModel(id, idsToFound))
-            .collect(Collectors.toList())
-    );
-  }
 
-  private T newOrUpdatedModel(Object nameOrId, Map<Object, T> idsToFound) {
-    T found = idsToFound.get(nameOrId);
-    if (found == null) {
-      return creator().generateFromId(nameOrId);
-    } else {
-      return transformer().transform(found);
+    List<T> toSave = new ArrayList<>();
+    int created = 0;
+    for (Object nameOrId : namesOrIds()) {
+      T found = idsToFound.get(nameOrId);
+      if (found == null) {
+        toSave.add(creator().generateFromId(nameOrId));
+        created++;
+      } else {
+        // Encode the found model before transforming it, in case the transformer changes it in
+        // place.
+        Entity before = db().mapper().toEntity(found);
+        T transformed = transformer().transform(found);
+        if (!sameProperties(before, db().mapper().toEntity(transformed))) {
+          toSave.add(transformed);
+        }
+      }
     }
+    db().saveAll(toSave);
+
+    int updated = toSave.size() - created;
+    return Result.create(created, updated, namesOrIds().size() - created - updated);
+  }
+
+  private static boolean sameProperties(Entity entity1, Entity entity2) {
+    return entity1.getKey().equals(entity2.getKey()) &&
+        getPropertyMap(entity1).equals(getPropertyMap(entity2));
   }
 }
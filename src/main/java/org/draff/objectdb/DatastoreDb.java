@@ -2,13 +2,19 @@ package org.draff.objectdb;
 
 import com.google.api.services.datastore.DatastoreV1.*;
 import com.google.api.services.datastore.client.Datastore;
+import com.google.common.cache.CacheStats;
+import com.google.protobuf.ByteString;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static com.google.api.services.datastore.client.DatastoreHelper.makeFilter;
 import static com.google.api.services.datastore.client.DatastoreHelper.makeKey;
+import static org.draff.objectdb.ValueHelper.fromValue;
 import static org.draff.objectdb.ValueHelper.toValue;
 
 /**
@@ -19,15 +25,40 @@ public class DatastoreDb implements ObjectDb {
 
   private final DatastoreUtil util;
   private final EntityMapper mapper;
+  private final EntityCache cache;
 
   public DatastoreDb(Datastore datastore, Map<Class, EntityMapper> customEntityMappers) {
-    this.util = new DatastoreUtil(datastore);
+    this(datastore, customEntityMappers, DatastoreDbOptions.defaults());
+  }
+
+  public DatastoreDb(Datastore datastore, Map<Class, EntityMapper> customEntityMappers,
+                     DatastoreDbOptions options) {
+    this(DatastoreRpc.of(datastore), customEntityMappers, options);
+  }
+
+  DatastoreDb(DatastoreRpc datastore, Map<Class, EntityMapper> customEntityMappers,
+              DatastoreDbOptions options) {
+    this.util = new DatastoreUtil(datastore, options);
     this.mapper = new ManagingEntityMapper(customEntityMappers);
+    this.cache = entityCache(options);
   }
 
   public DatastoreDb(Datastore datastore) {
     this.util = new DatastoreUtil(datastore);
     this.mapper = new ManagingEntityMapper();
+    this.cache = entityCache(DatastoreDbOptions.defaults());
+  }
+
+  private EntityCache entityCache(DatastoreDbOptions options) {
+    Map<String, CachePolicy> policiesByKind = new HashMap<>();
+    options.cachePolicies().forEach((clazz, policy) ->
+        policiesByKind.put(entityKind(clazz), policy));
+    return new EntityCache(policiesByKind);
+  }
+
+  // Hit, miss and eviction counts of the entity cache for each cached kind.
+  public Map<String, CacheStats> cacheStats() {
+    return cache.stats();
   }
 
   // Package-private accessor to entity mapper for use by helper classes
@@ -37,7 +68,12 @@ public class DatastoreDb implements ObjectDb {
 
   @Override
   public void save(Model object) {
-    util.saveUpsert(mapper.toEntity(object));
+    Entity entity = mapper.toEntity(object);
+    try {
+      util.saveUpsert(entity);
+    } finally {
+      cache.invalidate(entity.getKey());
+    }
   }
 
   @Override
@@ -51,11 +87,26 @@ public class DatastoreDb implements ObjectDb {
         (System.nanoTime() - start)/1000000 + " ms");
 
     start = System.nanoTime();
-    util.saveUpserts(entities);
+    // Cached entities are dropped even if the save fails, since some of it may have committed.
+    try {
+      util.saveUpserts(entities);
+    } finally {
+      entities.forEach(entity -> cache.invalidate(entity.getKey()));
+    }
     log.fine("  saving " + models.size() + " upserts took " +
         (System.nanoTime() - start)/1000000 + " ms");
   }
 
+  @Override
+  public CompletableFuture<Void> saveAllAsync(List<? extends Model> models) {
+    if (models.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    List<Entity> entities = toEntities(models);
+    return util.saveUpsertsAsync(entities).whenComplete((result, error) ->
+        entities.forEach(entity -> cache.invalidate(entity.getKey())));
+  }
+
   @Override
   public <T extends Model> List<T> findChildren(Model parent, Class<T> clazz, int limit, long minId) {
     List<Entity> entities = util.findChildren(entityKind(parent.getClass()),
@@ -64,6 +115,127 @@ public class DatastoreDb implements ObjectDb {
     return models;
   }
 
+  @Override
+  public <T extends Model> Stream<T> streamChildren(Model parent, Class<T> clazz) {
+    return stream(clazz, util.queryChildren(entityKind(parent.getClass()),
+        mapper.getModelId(parent), entityKind(clazz)));
+  }
+
+  @Override
+  public <T extends Model> Stream<T> stream(Class<T> clazz) {
+    return stream(clazz, util.query(entityKind(clazz), null));
+  }
+
+  @Override
+  public <T extends Model> Stream<T> stream(Class<T> clazz, Map<String, Object> fieldConstraints) {
+    return stream(clazz, util.query(entityKind(clazz), constraintsFilter(fieldConstraints)));
+  }
+
+  // Like stream, but the models decode each property from the entity only when it's read (see
+  // EntityMapper.fromEntityLazily), which saves a lot of allocation in scans that only read a few
+  // properties of each model. Only models with generated mappers support this; others are decoded
+  // as usual.
+  @Override
+  public <T extends Model> Stream<T> streamLazily(Class<T> clazz,
+                                                  Map<String, Object> fieldConstraints) {
+    return stream(util.query(entityKind(clazz), constraintsFilter(fieldConstraints)))
+        .map(entity -> mapper.fromEntityLazily(entity, clazz));
+  }
+
+  // The streams are lazy: result batches are fetched (one ahead) and mapped to models as the stream
+  // is consumed, so a full scan only holds a couple of batches in memory at a time.
+  private <T extends Model> Stream<T> stream(Class<T> clazz, QueryResultIterator results) {
+    return stream(results).map(entity -> mapper.fromEntity(entity, clazz));
+  }
+
+  private static Stream<Entity> stream(QueryResultIterator results) {
+    Spliterator<Entity> spliterator = Spliterators.spliteratorUnknownSize(results,
+        Spliterator.ORDERED | Spliterator.NONNULL);
+    return StreamSupport.stream(spliterator, false).onClose(results::cancel);
+  }
+
+  // Streams just the named properties of the entities of the class, as maps from property name to
+  // value, instead of whole models. It's a projection query, so entities missing any of the
+  // properties are skipped, and projecting more than one property needs a composite index on them.
+  @Override
+  public Stream<Map<String, Object>> streamProjection(Class clazz,
+                                                      Collection<String> propertyNames) {
+    if (propertyNames.isEmpty()) {
+      throw new IllegalArgumentException("No properties to project; use streamIds for keys only");
+    }
+    QueryResultIterator results = util.queryProjection(entityKind(clazz), null, propertyNames);
+    return stream(results).map(entity -> {
+      Map<String, Object> properties = new HashMap<>();
+      entity.getPropertyList().forEach(p -> properties.put(p.getName(), fromValue(p.getValue())));
+      return properties;
+    });
+  }
+
+  // Streams the ids of the matching entities (or all of them if fieldConstraints is null) with a
+  // keys-only query.
+  @Override
+  public Stream<Object> streamIds(Class clazz, Map<String, Object> fieldConstraints) {
+    return stream(util.queryProjection(entityKind(clazz), constraintsFilter(fieldConstraints),
+        Collections.emptyList())).map(EntityMapperHelper::entityId);
+  }
+
+  // Returns which of the names or ids have an entity of the class, without reading the entities.
+  // Ids whose entities are cached are known to exist, and the rest are checked with keys-only
+  // queries (see DatastoreUtil.existingKeys).
+  @Override
+  public Set<Object> existingIds(Class clazz, Collection<?> namesOrIds) {
+    Set<Object> existing = new HashSet<>();
+    List<Key> uncachedKeys = new ArrayList<>();
+    for (Key key : keys(entityKind(clazz), namesOrIds)) {
+      if (cache.get(key) == null) {
+        uncachedKeys.add(key);
+      } else {
+        existing.add(EntityMapperHelper.keyId(key));
+      }
+    }
+    util.existingKeys(uncachedKeys).forEach(key -> existing.add(EntityMapperHelper.keyId(key)));
+    return existing;
+  }
+
+  @Override
+  public <T extends Model> Page<T> findPage(Class<T> clazz, int limit, String pageToken) {
+    return findPage(clazz, limit, pageToken, null);
+  }
+
+  @Override
+  public <T extends Model> Page<T> findPage(Class<T> clazz, int limit, String pageToken,
+                                            Map<String, Object> fieldConstraints) {
+    return page(clazz, util.queryPage(entityKind(clazz), constraintsFilter(fieldConstraints), limit,
+        cursorFromToken(pageToken)));
+  }
+
+  @Override
+  public <T extends Model> Page<T> findChildrenPage(Model parent, Class<T> clazz, int limit,
+                                                    String pageToken) {
+    return page(clazz, util.queryChildrenPage(entityKind(parent.getClass()),
+        mapper.getModelId(parent), entityKind(clazz), limit, cursorFromToken(pageToken)));
+  }
+
+  private <T extends Model> Page<T> page(Class<T> clazz, QueryResultIterator results) {
+    List<T> items = new ArrayList<>();
+    results.forEachRemaining(entity -> items.add(mapper.fromEntity(entity, clazz)));
+    ByteString cursor = results.resumeCursor();
+    String nextPageToken = cursor == null ? null :
+        Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.toByteArray());
+    return Page.create(items, nextPageToken);
+  }
+
+  private static ByteString cursorFromToken(String pageToken) {
+    if (pageToken == null) {
+      return null;
+    }
+    try {
+      return ByteString.copyFrom(Base64.getUrlDecoder().decode(pageToken));
+    } catch (IllegalArgumentException e) {
+      throw new ObjectDbException("Invalid page token: " + pageToken, e);
+    }
+  }
+
   @Override
   public <T extends Model> List<T> find(Class<T> clazz, int limit) {
     return findByFilter(clazz, null, limit);
@@ -74,6 +246,15 @@ public class DatastoreDb implements ObjectDb {
     return findByConstraints(clazz, fieldConstraints, limit);
   }
 
+  // Like find, but the models decode their properties only when they're read, as with
+  // streamLazily.
+  @Override
+  public <T extends Model> List<T> findLazily(Class<T> clazz, Map<String, Object> fieldConstraints,
+                                             int limit) {
+    return util.find(entityKind(clazz), constraintsFilter(fieldConstraints), limit).stream()
+        .map(entity -> mapper.fromEntityLazily(entity, clazz)).collect(Collectors.toList());
+  }
+
   @Override
   public <T extends Model> T findOne(Class<T> clazz) {
     return firstOrNull(findByFilter(clazz, null, 1));
@@ -119,9 +300,50 @@ public class DatastoreDb implements ObjectDb {
 
   @Override
   public <T extends Model> List<T> findByNamesOrIds(Class<T> clazz, Collection<?> namesOrIds) {
-    List<Key> keys = namesOrIds.stream()
-        .map(nameOrId -> makeKey(entityKind(clazz), nameOrId).build()).collect(Collectors.toList());
-    return fromEntities(clazz, util.findByIds(keys));
+    return fromEntities(clazz, findEntities(entityKind(clazz), namesOrIds));
+  }
+
+  // Looks the models up in Datastore even if they're cached, for read-modify-writes like
+  // CreateOrTransformOp that mustn't start from a copy that other processes have since changed.
+  <T extends Model> List<T> findByNamesOrIdsUncached(Class<T> clazz, Collection<?> namesOrIds) {
+    return fromEntities(clazz, util.findByIds(keys(entityKind(clazz), namesOrIds)));
+  }
+
+  // Looks up the entities of the kind with the names or ids, reading through the cache if the kind
+  // is cached. Names or ids without an entity are left out.
+  private List<Entity> findEntities(String kind, Collection<?> namesOrIds) {
+    List<Key> keys = keys(kind, namesOrIds);
+    if (!cache.caches(kind)) {
+      return util.findByIds(keys);
+    }
+
+    List<Entity> entities = new ArrayList<>();
+    List<Key> uncachedKeys = new ArrayList<>();
+    for (Key key : keys) {
+      Entity entity = cache.get(key);
+      if (entity == null) {
+        uncachedKeys.add(key);
+      } else {
+        entities.add(entity);
+      }
+    }
+    if (!uncachedKeys.isEmpty()) {
+      Map<Key, Object> leases = new HashMap<>();
+      uncachedKeys.forEach(key -> leases.put(key, cache.startLoad(key)));
+      Map<Key, Entity> found = new HashMap<>();
+      try {
+        util.findByIds(uncachedKeys).forEach(entity -> found.put(entity.getKey(), entity));
+      } finally {
+        leases.forEach((key, lease) -> cache.finishLoad(key, lease, found.get(key)));
+      }
+      entities.addAll(found.values());
+    }
+    return entities;
+  }
+
+  private static List<Key> keys(String kind, Collection<?> namesOrIds) {
+    return namesOrIds.stream()
+        .map(nameOrId -> makeKey(kind, nameOrId).build()).collect(Collectors.toList());
   }
 
   @Override
@@ -152,22 +374,56 @@ public class DatastoreDb implements ObjectDb {
 
 
   private <T extends Model> T findByIdObject(Class<T> clazz, Object id) {
-    return mapper.fromEntity(util.findById(makeKey(entityKind(clazz), id).build()), clazz);
+    Key key = makeKey(entityKind(clazz), id).build();
+    Entity entity = cache.get(key);
+    if (entity == null) {
+      Object lease = cache.startLoad(key);
+      try {
+        entity = util.findById(key);
+      } finally {
+        cache.finishLoad(key, lease, entity);
+      }
+    }
+    return mapper.fromEntity(entity, clazz);
   }
 
   @Override
   public void delete(Model object) {
-    util.saveDelete(objectKey(object));
+    Key.Builder key = objectKey(object);
+    try {
+      util.saveDelete(key);
+    } finally {
+      cache.invalidate(key.build());
+    }
   }
 
   @Override
   public void deleteAll(List<? extends Model> objects) {
-    util.saveDeletes(objects.stream().map(o -> objectKey(o)).collect(Collectors.toList()));
+    deleteKeys(objects.stream().map(o -> objectKey(o)).collect(Collectors.toList()));
   }
 
   public void deleteAllByIds(Class clazz, Collection<Long> ids) {
     String kind = entityKind(clazz);
-    util.saveDeletes(ids.stream().map(id -> makeKey(kind, id)).collect(Collectors.toList()));
+    deleteKeys(ids.stream().map(id -> makeKey(kind, id)).collect(Collectors.toList()));
+  }
+
+  private void deleteKeys(List<Key.Builder> keys) {
+    try {
+      util.saveDeletes(keys);
+    } finally {
+      keys.forEach(key -> cache.invalidate(key.build()));
+    }
+  }
+
+  // Deletes all entities of the class that match the constraints (or all of them if constraints is
+  // null) without loading them, and returns how many were deleted.
+  @Override
+  public long deleteWhere(Class clazz, Map<String, Object> fieldConstraints) {
+    try {
+      return util.deleteWhere(entityKind(clazz), constraintsFilter(fieldConstraints));
+    } finally {
+      cache.invalidateKind(entityKind(clazz));
+    }
   }
 
   private Key.Builder objectKey(Model model) {
@@ -0,0 +1,89 @@
+package org.draff.objectdb;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableMap;
+
+import java.time.Duration;
+
+import javax.annotation.Nullable;
+
+/**
+ * Tuning knobs for DatastoreDb.
+ *
+ * commitParallelism is how many batch commits of a large saveAll may be in flight at once. Set it
+ * to 1 to commit batches one after another on the calling thread as before.
+ *
+ * groupCommitWindow turns on group commit for small writes (see GroupCommitter): single saves and
+ * deletes from different threads that arrive within the window of each other get committed
+ * together, up to groupCommitMaxEntities entities per commit. It's off (zero) by default.
+ *
+ * cachePolicies turns on caching of key lookups (findById, findByIds etc.) for the given model
+ * classes. There's no caching by default.
+ *
+ * metrics, if set, records every raw Datastore RPC (see DbMetrics).
+ *
+ * retryPolicy says which failed RPCs get retried and how (see RetryPolicy). Nothing is retried by
+ * default. hedgeLookupsAfter, if not zero, sends a second copy of any lookup that's taken longer
+ * than that, to cut the tail latency of lookups. It's off by default.
+ *
+ * Created by dave on 10/18/16.
+ */
+@AutoValue
+public abstract class DatastoreDbOptions {
+  public static final int DEFAULT_COMMIT_PARALLELISM = 4;
+  public static final int MAX_ENTITIES_PER_COMMIT = 500;
+
+  public abstract int commitParallelism();
+  public abstract Duration groupCommitWindow();
+  public abstract int groupCommitMaxEntities();
+  public abstract ImmutableMap<Class, CachePolicy> cachePolicies();
+  @Nullable public abstract DbMetrics metrics();
+  public abstract RetryPolicy retryPolicy();
+  public abstract Duration hedgeLookupsAfter();
+
+  DatastoreDbOptions() {}
+
+  public static DatastoreDbOptions defaults() {
+    return builder().build();
+  }
+
+  public static Builder builder() {
+    return new AutoValue_DatastoreDbOptions.Builder()
+        .commitParallelism(DEFAULT_COMMIT_PARALLELISM)
+        .groupCommitWindow(Duration.ZERO)
+        .groupCommitMaxEntities(MAX_ENTITIES_PER_COMMIT)
+        .cachePolicies(ImmutableMap.of())
+        .metrics(null)
+        .retryPolicy(RetryPolicy.noRetries())
+        .hedgeLookupsAfter(Duration.ZERO);
+  }
+
+  @AutoValue.Builder
+  public abstract static class Builder {
+    public abstract Builder commitParallelism(int value);
+    public abstract Builder groupCommitWindow(Duration value);
+    public abstract Builder groupCommitMaxEntities(int value);
+    public abstract Builder cachePolicies(ImmutableMap<Class, CachePolicy> value);
+    public abstract Builder metrics(@Nullable DbMetrics value);
+    public abstract Builder retryPolicy(RetryPolicy value);
+    public abstract Builder hedgeLookupsAfter(Duration value);
+
+    abstract DatastoreDbOptions autoBuild();
+
+    public DatastoreDbOptions build() {
+      DatastoreDbOptions options = autoBuild();
+      if (options.commitParallelism() < 1) {
+        throw new IllegalArgumentException("commitParallelism must be at least 1");
+      }
+      if (options.groupCommitMaxEntities() < 1 ||
+          options.groupCommitMaxEntities() > MAX_ENTITIES_PER_COMMIT) {
+        throw new IllegalArgumentException("groupCommitMaxEntities must be between 1 and " +
+            MAX_ENTITIES_PER_COMMIT);
+      }
+      if (options.hedgeLookupsAfter().isNegative()) {
+        throw new IllegalArgumentException("hedgeLookupsAfter can't be negative");
+      }
+      return options;
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.CommitRequest;
+import com.google.api.services.datastore.DatastoreV1.CommitResponse;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
+import com.google.api.services.datastore.client.Datastore;
+import com.google.api.services.datastore.client.DatastoreException;
+
+/**
+ * The Datastore RPCs that DatastoreUtil makes. DatastoreUtil goes through this interface rather
+ * than the Datastore client class (which can't be subclassed) so that DatastoreDb can also run
+ * against other backends, e.g. InMemoryDatastore.
+ *
+ * Created by dave on 10/18/16.
+ */
+interface DatastoreRpc {
+  LookupResponse lookup(LookupRequest request) throws DatastoreException;
+  RunQueryResponse runQuery(RunQueryRequest request) throws DatastoreException;
+  CommitResponse commit(CommitRequest request) throws DatastoreException;
+
+  static DatastoreRpc of(Datastore datastore) {
+    return new DatastoreRpc() {
+      @Override
+      public LookupResponse lookup(LookupRequest request) throws DatastoreException {
+        return datastore.lookup(request);
+      }
+
+      @Override
+      public RunQueryResponse runQuery(RunQueryRequest request) throws DatastoreException {
+        return datastore.runQuery(request);
+      }
+
+      @Override
+      public CommitResponse commit(CommitRequest request) throws DatastoreException {
+        return datastore.commit(request);
+      }
+    };
+  }
+}
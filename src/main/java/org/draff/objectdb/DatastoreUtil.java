@@ -3,9 +3,20 @@ package org.draff.objectdb;
 import com.google.api.services.datastore.DatastoreV1.*;
 import com.google.api.services.datastore.client.Datastore;
 import com.google.api.services.datastore.client.DatastoreException;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 import static com.google.api.services.datastore.client.DatastoreHelper.*;
@@ -14,44 +25,177 @@ import static com.google.api.services.datastore.client.DatastoreHelper.*;
  * Created by dave on 1/3/16.
  */
 class DatastoreUtil {
-  private static final int MAX_ENTITIES_PER_BATCH = 500;
+  private static final int MAX_ENTITIES_PER_BATCH = DatastoreDbOptions.MAX_ENTITIES_PER_COMMIT;
+  private static final int MAX_KEYS_PER_LOOKUP = 1000;
+
+  private DatastoreRpc datastore;
+  private final int commitParallelism;
+  private final ExecutorService commitExecutor;
+  private final GroupCommitter groupCommitter;
+  private final ExecutorService queryExecutor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("datastore-query-%d").build());
 
-  private Datastore datastore;
   public DatastoreUtil(Datastore datastore) {
+    this(DatastoreRpc.of(datastore), DatastoreDbOptions.defaults());
+  }
+
+  public DatastoreUtil(Datastore datastore, DatastoreDbOptions options) {
+    this(DatastoreRpc.of(datastore), options);
+  }
+
+  DatastoreUtil(DatastoreRpc datastore, DatastoreDbOptions options) {
+    if (options.metrics() != null) {
+      datastore = new MeteredDatastoreRpc(datastore, options.metrics());
+    }
+    // Retries go around the metrics so that every attempt gets recorded.
+    if (options.retryPolicy().maxAttempts() > 1 || !options.hedgeLookupsAfter().isZero()) {
+      datastore = new RetryingDatastoreRpc(datastore, options.retryPolicy(),
+          options.hedgeLookupsAfter());
+    }
     this.datastore = datastore;
+    this.commitParallelism = options.commitParallelism();
+    // Daemon threads so that an idle pool never keeps the JVM alive.
+    this.commitExecutor = Executors.newFixedThreadPool(commitParallelism,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("datastore-commit-%d").build());
+    this.groupCommitter = options.groupCommitWindow().isZero() ? null :
+        new GroupCommitter(this::saveMutation, commitExecutor, options.groupCommitWindow(),
+            options.groupCommitMaxEntities());
   }
 
   public void saveUpsert(Entity entity) {
-    saveMutation(Mutation.newBuilder().addUpsert(entity));
+    commitSmall(Mutation.newBuilder().addUpsert(entity));
   }
 
+  // Commits the entities in batches of up to MAX_ENTITIES_PER_BATCH, with up to commitParallelism
+  // batches in flight at once, and returns once they have all finished. If any batches fail, the
+  // exception for the first failed batch (in list order) is thrown with the others suppressed.
   public void saveUpserts(List<Entity> entities) {
-    int i = 0;
-    while(entities.size() > i + MAX_ENTITIES_PER_BATCH) {
-      saveUpsertBatch(entities.subList(i, i + MAX_ENTITIES_PER_BATCH));
-      i += MAX_ENTITIES_PER_BATCH;
-    }
-    saveUpsertBatch(entities.subList(i, entities.size()));
+    saveInBatches(entities, Mutation.Builder::addUpsert);
   }
 
-  private void saveUpsertBatch(List<Entity> entities) {
-    Mutation.Builder mutation = Mutation.newBuilder();
-    for (Entity entity : entities) {
-      mutation.addUpsert(entity);
-    }
-    saveMutation(mutation);
+  // Like saveUpserts, but returns right away. The future completes once all batches have been
+  // committed, or exceptionally with the same exception saveUpserts would throw.
+  public CompletableFuture<Void> saveUpsertsAsync(List<Entity> entities) {
+    List<CompletableFuture<Void>> commits =
+        startCommits(batchMutations(entities, Mutation.Builder::addUpsert));
+    return CompletableFuture.allOf(commits.toArray(new CompletableFuture[commits.size()]))
+        .handle((ignored, e) -> {
+          throwIfFailed(commits);
+          return null;
+        });
   }
 
   public void saveDelete(Key.Builder key) {
     Mutation.Builder mutation = Mutation.newBuilder();
     mutation.addDelete(key);
-    saveMutation(mutation);
+    commitSmall(mutation);
   }
 
+  // Deletes in batches the same way saveUpserts saves.
   public void saveDeletes(List<Key.Builder> keys) {
-    Mutation.Builder mutation = Mutation.newBuilder();
-    keys.forEach(key -> mutation.addDelete(key));
-    saveMutation(mutation);
+    saveInBatches(keys, Mutation.Builder::addDelete);
+  }
+
+  // Runs a keys-only query for the entities matching the filter and deletes each page of keys as
+  // it comes back, overlapping the delete commits with fetching the next pages. Only the keys of
+  // up to commitParallelism pages are held at once. Returns the number of entities deleted.
+  public long deleteWhere(String kind, Filter filter) {
+    Query.Builder query = Query.newBuilder();
+    query.addKindBuilder().setName(kind);
+    query.addProjectionBuilder().setProperty(makePropertyReference(KEY_PROPERTY_NAME));
+    if (filter != null) {
+      query.setFilter(filter);
+    }
+    query.setLimit(MAX_ENTITIES_PER_BATCH);
+
+    List<CompletableFuture<Void>> commits = new ArrayList<>();
+    long deleted = 0;
+    QueryResultBatch batch;
+    do {
+      batch = runQuery(RunQueryRequest.newBuilder().setQuery(query).build());
+      if (batch.getEntityResultCount() > 0) {
+        if (!waitForCommitSlot(commits)) {
+          break;
+        }
+        Mutation.Builder mutation = Mutation.newBuilder();
+        batch.getEntityResultList().forEach(r -> mutation.addDelete(r.getEntity().getKey()));
+        commits.add(CompletableFuture.runAsync(() -> saveMutation(mutation), commitExecutor));
+        deleted += batch.getEntityResultCount();
+      }
+      query.setStartCursor(batch.getEndCursor());
+    } while (batch.getEntityResultCount() > 0 &&
+        batch.getMoreResults() != QueryResultBatch.MoreResultsType.NO_MORE_RESULTS);
+
+    throwIfFailed(commits);
+    return deleted;
+  }
+
+  // Waits until fewer than commitParallelism of the commits are still running. Returns false if
+  // the oldest commit waited on failed, in which case there is no point starting more.
+  private boolean waitForCommitSlot(List<CompletableFuture<Void>> commits) {
+    if (commits.size() < commitParallelism) {
+      return true;
+    }
+    CompletableFuture<Void> oldest = commits.get(commits.size() - commitParallelism);
+    oldest.exceptionally(e -> null).join();
+    return !oldest.isCompletedExceptionally();
+  }
+
+  private <T> void saveInBatches(List<T> items, BiConsumer<Mutation.Builder, T> addToMutation) {
+    List<Mutation.Builder> mutations = batchMutations(items, addToMutation);
+    if (mutations.size() <= 1 || commitParallelism == 1) {
+      mutations.forEach(this::commitSmall);
+      return;
+    }
+    throwIfFailed(startCommits(mutations));
+  }
+
+  private static <T> List<Mutation.Builder> batchMutations(
+      List<T> items, BiConsumer<Mutation.Builder, T> addToMutation) {
+    List<Mutation.Builder> mutations = new ArrayList<>();
+    for (List<T> batch : Lists.partition(items, MAX_ENTITIES_PER_BATCH)) {
+      Mutation.Builder mutation = Mutation.newBuilder();
+      batch.forEach(item -> addToMutation.accept(mutation, item));
+      mutations.add(mutation);
+    }
+    return mutations;
+  }
+
+  private List<CompletableFuture<Void>> startCommits(List<Mutation.Builder> mutations) {
+    return mutations.stream()
+        .map(mutation -> CompletableFuture.runAsync(() -> saveMutation(mutation), commitExecutor))
+        .collect(Collectors.toList());
+  }
+
+  // Waits for all the commits and throws an exception for the first one that failed, with the
+  // exceptions of any later failed commits suppressed.
+  private static void throwIfFailed(List<CompletableFuture<Void>> commits) {
+    ObjectDbException failure = null;
+    for (int i = 0; i < commits.size(); i++) {
+      try {
+        commits.get(i).join();
+      } catch (CompletionException e) {
+        if (failure == null) {
+          failure = new ObjectDbException("Commit of batch " + (i + 1) + " of " + commits.size() +
+              " failed", e.getCause());
+        } else {
+          failure.addSuppressed(e.getCause());
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  // Commits the mutation, sharing the commit with other threads' small mutations if group commit
+  // is turned on.
+  private void commitSmall(Mutation.Builder mutation) {
+    if (groupCommitter != null && groupCommitter.accepts(mutation)) {
+      groupCommitter.commit(mutation);
+    } else {
+      saveMutation(mutation);
+    }
   }
 
   public void saveMutation(Mutation.Builder mutation) {
@@ -74,14 +218,46 @@ class DatastoreUtil {
       q.setFilter(filter);
     }
     q.setLimit(limit);
-    RunQueryRequest request = RunQueryRequest.newBuilder().setQuery(q.build()).build();
-    return results(request);
+    return results(q);
+  }
+
+  // Lazily runs the query, fetching each result batch in the background while the previous one is
+  // being iterated over. See QueryResultIterator.
+  public QueryResultIterator query(String kind, Filter filter) {
+    Query.Builder q = Query.newBuilder();
+    q.addKindBuilder().setName(kind);
+    if (filter != null) {
+      q.setFilter(filter);
+    }
+    return query(q);
+  }
+
+  // Like query, but only fetches the named properties, or only the keys if propertyNames is empty.
+  // Projected entities only include entities with all of the properties indexed, and projecting
+  // more than one property needs a composite index on them.
+  public QueryResultIterator queryProjection(String kind, Filter filter,
+                                             Collection<String> propertyNames) {
+    Query.Builder q = Query.newBuilder();
+    q.addKindBuilder().setName(kind);
+    if (filter != null) {
+      q.setFilter(filter);
+    }
+    if (propertyNames.isEmpty()) {
+      q.addProjectionBuilder().setProperty(makePropertyReference(KEY_PROPERTY_NAME));
+    }
+    for (String name : propertyNames) {
+      q.addProjectionBuilder().setProperty(makePropertyReference(name));
+    }
+    return query(q);
+  }
+
+  private QueryResultIterator query(Query.Builder query) {
+    return new QueryResultIterator(this::runQuery, query.build(), queryExecutor);
   }
 
   public List<Entity> findChildren(String parentKind, Object parentId, String childKind, int limit,
                                    long minId) {
-    Filter ancestorFilter = makeFilter("__key__", PropertyFilter.Operator.HAS_ANCESTOR,
-        makeValue(makeKey(parentKind, parentId))).build();
+    Filter ancestorFilter = ancestorFilter(parentKind, parentId);
 
     Filter minKeyFilter = makeFilter("__key__", PropertyFilter.Operator.GREATER_THAN_OR_EQUAL,
         makeValue(makeKey(parentKind, parentId, childKind, minId))).build();
@@ -90,44 +266,133 @@ class DatastoreUtil {
         makeFilter(ancestorFilter, minKeyFilter).build());
   }
 
-  private List<Entity> results(RunQueryRequest request) {
+  public QueryResultIterator queryChildren(String parentKind, Object parentId, String childKind) {
+    return query(childKind, ancestorFilter(parentKind, parentId));
+  }
+
+  // Runs one page of a query ordered by key, starting from startCursor (or from the beginning if
+  // it's null). Once the returned iterator is used up, its resumeCursor() is where the next page
+  // starts.
+  public QueryResultIterator queryPage(String kind, Filter filter, int limit,
+                                       ByteString startCursor) {
+    Query.Builder q = Query.newBuilder();
+    q.addKindBuilder().setName(kind);
+    q.addOrder(makeOrder("__key__", PropertyOrder.Direction.ASCENDING));
+    if (filter != null) {
+      q.setFilter(filter);
+    }
+    q.setLimit(limit);
+    if (startCursor != null) {
+      q.setStartCursor(startCursor);
+    }
+    return query(q);
+  }
+
+  public QueryResultIterator queryChildrenPage(String parentKind, Object parentId,
+                                               String childKind, int limit,
+                                               ByteString startCursor) {
+    return queryPage(childKind, ancestorFilter(parentKind, parentId), limit, startCursor);
+  }
+
+  private static Filter ancestorFilter(String parentKind, Object parentId) {
+    return makeFilter("__key__", PropertyFilter.Operator.HAS_ANCESTOR,
+        makeValue(makeKey(parentKind, parentId))).build();
+  }
+
+  private QueryResultBatch runQuery(RunQueryRequest request) {
     try {
-      List<Entity> entities = new ArrayList<>();
-      QueryResultBatch batch;
-      do {
-        batch = datastore.runQuery(request).getBatch();
-        entities.addAll(batch.getEntityResultList().stream()
-            .map(r -> r.getEntity()).collect(Collectors.toList()));
-      } while(batch.getMoreResults() == QueryResultBatch.MoreResultsType.NOT_FINISHED);
-      return entities;
+      return datastore.runQuery(request).getBatch();
     } catch (DatastoreException e) {
       throw new ObjectDbException(e);
     }
   }
 
-  public List<Entity> findByIds(Iterable<Key> keys) {
-    LookupRequest request = LookupRequest.newBuilder().addAllKey(keys).build();
+  private List<Entity> results(Query.Builder query) {
+    List<Entity> entities = new ArrayList<>();
+    query(query).forEachRemaining(entities::add);
+    return entities;
+  }
+
+  // Looks up the entities for the keys, splitting them into chunks of at most MAX_KEYS_PER_LOOKUP
+  // that are looked up concurrently. Keys that don't exist are left out of the result, which is in
+  // no particular order.
+  public List<Entity> findByIds(Collection<Key> keys) {
+    List<List<Key>> chunks = Lists.partition(new ArrayList<>(new LinkedHashSet<>(keys)),
+        MAX_KEYS_PER_LOOKUP);
+    if (chunks.size() <= 1) {
+      return chunks.isEmpty() ? new ArrayList<>() : lookup(chunks.get(0));
+    }
+
+    List<CompletableFuture<List<Entity>>> lookups = chunks.stream()
+        .map(chunk -> CompletableFuture.supplyAsync(() -> lookup(chunk), queryExecutor))
+        .collect(Collectors.toList());
+    List<Entity> entities = new ArrayList<>(keys.size());
+    for (CompletableFuture<List<Entity>> lookup : lookups) {
+      entities.addAll(join(lookup, "Lookup of " + keys.size() + " keys"));
+    }
+    return entities;
+  }
+
+  // Returns which of the keys have entities, with a keys-only query for each key so that none of
+  // the entities are read. The queries run concurrently.
+  public List<Key> existingKeys(Collection<Key> keys) {
+    List<Key> distinctKeys = new ArrayList<>(new LinkedHashSet<>(keys));
+    List<CompletableFuture<Boolean>> checks = distinctKeys.stream()
+        .map(key -> CompletableFuture.supplyAsync(() -> keyExists(key), queryExecutor))
+        .collect(Collectors.toList());
+    List<Key> existing = new ArrayList<>();
+    for (int i = 0; i < distinctKeys.size(); i++) {
+      if (join(checks.get(i), "Existence check of " + distinctKeys.size() + " keys")) {
+        existing.add(distinctKeys.get(i));
+      }
+    }
+    return existing;
+  }
+
+  private boolean keyExists(Key key) {
+    Query.Builder query = Query.newBuilder();
+    query.addKindBuilder().setName(key.getPathElement(key.getPathElementCount() - 1).getKind());
+    query.addProjectionBuilder().setProperty(makePropertyReference(KEY_PROPERTY_NAME));
+    query.setFilter(makeFilter(KEY_PROPERTY_NAME, PropertyFilter.Operator.EQUAL, makeValue(key)));
+    query.setLimit(1);
+    return runQuery(RunQueryRequest.newBuilder().setQuery(query).build())
+        .getEntityResultCount() > 0;
+  }
+
+  // Waits for a task run on queryExecutor, rethrowing its runtime exceptions as they are and
+  // wrapping any other failure.
+  private static <T> T join(CompletableFuture<T> task, String description) {
     try {
-      LookupResponse response = datastore.lookup(request);
-      return response.getFoundList().stream()
-          .map(result -> result.getEntity()).collect(Collectors.toList());
-    } catch(DatastoreException e) {
-      e.printStackTrace();
-      return null;
+      return task.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new ObjectDbException(description + " failed", e.getCause());
     }
   }
 
   public Entity findById(Key key) {
-    LookupRequest request = LookupRequest.newBuilder().addKey(key).build();
-    try {
-      LookupResponse response = datastore.lookup(request);
-      if (response.getFoundCount() == 0) {
-        return null;
+    List<Entity> found = lookup(Collections.singletonList(key));
+    return found.isEmpty() ? null : found.get(0);
+  }
+
+  // Datastore may defer some of the keys of a lookup (e.g. if the response would get too big), so
+  // keep asking for the deferred ones until there are none left.
+  private List<Entity> lookup(List<Key> keys) {
+    List<Entity> entities = new ArrayList<>(keys.size());
+    Collection<Key> remaining = keys;
+    while (!remaining.isEmpty()) {
+      try {
+        LookupResponse response =
+            datastore.lookup(LookupRequest.newBuilder().addAllKey(remaining).build());
+        response.getFoundList().forEach(result -> entities.add(result.getEntity()));
+        remaining = response.getDeferredList();
+      } catch (DatastoreException e) {
+        throw new ObjectDbException(e);
       }
-      return response.getFound(0).getEntity();
-    } catch(DatastoreException e) {
-      throw new ObjectDbException(e);
     }
+    return entities;
   }
 
   public List<Entity> findOrderedById(String kind, int limit, long minId, Filter constraintsFilter) {
@@ -145,7 +410,6 @@ class DatastoreUtil {
       query.setFilter(makeFilter(minKeyFilter, constraintsFilter));
     }
 
-    RunQueryRequest request = RunQueryRequest.newBuilder().setQuery(query).build();
-    return results(request);
+    return results(query);
   }
 }
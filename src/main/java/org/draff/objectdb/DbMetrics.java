@@ -0,0 +1,65 @@
+package org.draff.objectdb;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Latency and throughput stats per operation and kind, for finding out which kinds and calls the
+ * time goes to. MeteredObjectDb records the ObjectDb calls (operations named "objectdb.<method>")
+ * and DatastoreDb records its raw Datastore RPCs ("rpc.lookup", "rpc.runQuery" and "rpc.commit")
+ * when it's given one through DatastoreDbOptions.
+ *
+ * Recording is lock-free once an operation and kind have been seen, so one instance can be shared
+ * by everything that uses the db.
+ *
+ * Created by dave on 10/18/16.
+ */
+public class DbMetrics {
+  private final Map<String, Map<String, OperationStats>> stats = new ConcurrentHashMap<>();
+
+  OperationStats stats(String operation, String kind) {
+    Map<String, OperationStats> statsByKind = stats.get(operation);
+    if (statsByKind == null) {
+      statsByKind = stats.computeIfAbsent(operation, o -> new ConcurrentHashMap<>());
+    }
+    OperationStats operationStats = statsByKind.get(kind);
+    if (operationStats == null) {
+      operationStats = statsByKind.computeIfAbsent(kind, k -> new OperationStats(operation, k));
+    }
+    return operationStats;
+  }
+
+  // The stats recorded so far, the operations and kinds that took the most time first.
+  public List<OperationStats> snapshot() {
+    List<OperationStats> snapshot = new ArrayList<>();
+    stats.values().forEach(statsByKind -> snapshot.addAll(statsByKind.values()));
+    snapshot.sort(Comparator.comparingLong(
+        (OperationStats operationStats) -> operationStats.latency().totalNanos()).reversed());
+    return snapshot;
+  }
+
+  // The snapshot as a table with a line per operation and kind, for logging.
+  public String export() {
+    return String.format("%-28s %-24s %8s %6s %10s %12s %7s %9s %9s %9s %10s%n",
+        "operation", "kind", "calls", "errors", "entities", "bytes", "pages", "mean_ms", "p99_ms",
+        "max_ms", "total_ms") +
+        snapshot().stream().map(DbMetrics::exportLine).collect(Collectors.joining());
+  }
+
+  private static String exportLine(OperationStats stats) {
+    LatencyHistogram latency = stats.latency();
+    return String.format("%-28s %-24s %8d %6d %10d %12d %7d %9.2f %9.2f %9.2f %10.1f%n",
+        stats.operation(), stats.kind(), stats.calls(), stats.errors(), stats.entities(),
+        stats.bytes(), stats.pages(), millis(latency.meanNanos()),
+        millis(latency.percentileNanos(0.99)), millis(latency.maxNanos()),
+        millis(latency.totalNanos()));
+  }
+
+  private static double millis(double nanos) {
+    return nanos / 1e6;
+  }
+}
@@ -0,0 +1,103 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Bounded per-kind caches of entities by key for DatastoreDb's key lookups. Kinds without a cache
+ * policy aren't cached at all.
+ *
+ * It caches entities rather than models so that every lookup still maps to a fresh model object,
+ * which matters for models with mutable fields. Only entities that exist are cached, so lookups of
+ * missing keys always go to Datastore.
+ *
+ * The cache is only filled by lookups, and writes invalidate their keys once committed. A lookup
+ * that started before a write committed may have read the entity as it was before the write, so
+ * each lookup of an uncached key takes a lease on the key first, invalidating the key cancels its
+ * lease, and the lookup only caches what it found if it still holds the lease.
+ *
+ * Created by dave on 10/18/16.
+ */
+class EntityCache {
+  private final Map<String, Cache<Key, Entity>> caches = new HashMap<>();
+  // The lease of the latest lookup of each key being looked up.
+  private final ConcurrentHashMap<Key, Object> leases = new ConcurrentHashMap<>();
+
+  EntityCache(Map<String, CachePolicy> policiesByKind) {
+    policiesByKind.forEach((kind, policy) -> caches.put(kind, CacheBuilder.newBuilder()
+        .maximumSize(policy.maxEntries())
+        .expireAfterWrite(policy.ttl().toMillis(), TimeUnit.MILLISECONDS)
+        .recordStats()
+        .<Key, Entity>build()));
+  }
+
+  boolean caches(String kind) {
+    return caches.containsKey(kind);
+  }
+
+  Entity get(Key key) {
+    Cache<Key, Entity> cache = cacheFor(key);
+    return cache == null ? null : cache.getIfPresent(key);
+  }
+
+  // Takes a lease on a key that's about to be looked up, or returns null if its kind isn't cached.
+  // The lease must be passed to finishLoad once the lookup is done, even if it failed.
+  @Nullable
+  Object startLoad(Key key) {
+    if (cacheFor(key) == null) {
+      return null;
+    }
+    Object lease = new Object();
+    leases.put(key, lease);
+    return lease;
+  }
+
+  // Caches the entity a lookup found (null if it found none or failed) unless the key was
+  // invalidated or looked up again since the lookup took its lease.
+  void finishLoad(Key key, @Nullable Object lease, @Nullable Entity found) {
+    if (lease != null && leases.remove(key, lease) && found != null) {
+      cacheFor(key).put(key, found);
+    }
+  }
+
+  // Called after a write to the key is committed (or may have been).
+  void invalidate(Key key) {
+    Cache<Key, Entity> cache = cacheFor(key);
+    if (cache != null) {
+      leases.remove(key);
+      cache.invalidate(key);
+    }
+  }
+
+  void invalidateKind(String kind) {
+    Cache<Key, Entity> cache = caches.get(kind);
+    if (cache != null) {
+      leases.keySet().removeIf(key -> kind.equals(kindOf(key)));
+      cache.invalidateAll();
+    }
+  }
+
+  Map<String, CacheStats> stats() {
+    Map<String, CacheStats> stats = new HashMap<>();
+    caches.forEach((kind, cache) -> stats.put(kind, cache.stats()));
+    return stats;
+  }
+
+  private Cache<Key, Entity> cacheFor(Key key) {
+    return caches.get(kindOf(key));
+  }
+
+  private static String kindOf(Key key) {
+    return key.getPathElement(key.getPathElementCount() - 1).getKind();
+  }
+}
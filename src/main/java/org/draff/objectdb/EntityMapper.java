@@ -10,5 +10,12 @@ public interface EntityMapper {
   <T extends Model> T fromEntity(Entity entity, Class<T> clazz);
   Object getModelId(Model model);
 
+  // A model that keeps the entity and decodes each property only when it's read, for scans that
+  // read a few properties of a lot of entities. Mappers that can't do that (all but the generated
+  // ones) decode the whole entity up front.
+  default <T extends Model> T fromEntityLazily(Entity entity, Class<T> clazz) {
+    return fromEntity(entity, clazz);
+  }
+
   String entityKind(Class clazz);
 }
@@ -11,6 +11,7 @@ import java.util.*;
  */
 class EntityMapperHelper {
   private static final String AUTO_VALUE_PREFIX = "AutoValue_";
+  private static final String LAZY_VIEW_PREFIX = "LazyView_";
 
   static Method methodOrNull(Class clazz, String publicOrDeclaredMethodName) {
     return lookupMethod(clazz, publicOrDeclaredMethodName, false);
@@ -65,15 +66,17 @@ class EntityMapperHelper {
   }
 
   static String kindForClass(Class clazz) {
-    String kind = clazz.getSimpleName();
-    if (isAutoValueImpl(clazz)) {
-      kind = kind.substring(AUTO_VALUE_PREFIX.length());
+    if (isGeneratedImpl(clazz)) {
+      return kindForClass(clazz.getSuperclass());
     }
-    return kind;
+    return clazz.getSimpleName();
   }
 
   static Object entityId(Entity entity) {
-    Key key = entity.getKey();
+    return keyId(entity.getKey());
+  }
+
+  static Object keyId(Key key) {
     Key.PathElement pathElement = key.getPathElement(key.getPathElementCount() - 1);
     if (pathElement.hasId()) {
       return pathElement.getId();
@@ -82,8 +85,11 @@ class EntityMapperHelper {
     }
   }
 
-  static boolean isAutoValueImpl(Class clazz) {
-    return clazz.getSimpleName().startsWith(AUTO_VALUE_PREFIX);
+  // Whether the class is a generated subclass of a model (an @AutoValue implementation or a
+  // LazyView_ from EntityMapperProcessor), which is stored and mapped as the model itself.
+  static boolean isGeneratedImpl(Class clazz) {
+    String name = clazz.getSimpleName();
+    return name.startsWith(AUTO_VALUE_PREFIX) || name.startsWith(LAZY_VIEW_PREFIX);
   }
 
   private static Method makePublic(Method method) {
@@ -0,0 +1,23 @@
+package org.draff.objectdb;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an @AutoValue model class for which the EntityMapperProcessor should generate a
+ * reflection-free EntityMapper at compile time. The generated mapper is a public enum singleton
+ * named EntityMapper_[ModelName] in the model's package, and gets registered as a custom entity
+ * mapper the same way as a hand-written one (see DbWithMappers).
+ *
+ * The model must have an id() method and either a static builder() method whose builder has a
+ * setter for each property, or a static create(...) method whose parameters are named after the
+ * properties.
+ *
+ * Created by dave on 10/18/16.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface GenerateEntityMapper {
+}
@@ -0,0 +1,150 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.api.services.datastore.DatastoreV1.Mutation;
+import com.google.api.services.datastore.DatastoreV1.MutationOrBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces small mutations from concurrent callers into shared commits. The first mutation to
+ * arrive opens a group, which collects other callers' mutations until the group commit window
+ * has passed or it holds maxEntities entities, and then all of them go to Datastore as one commit.
+ * Each caller blocks until the commit with its own mutation is done, so commit() still only
+ * returns once the mutation is durable.
+ *
+ * A non-transactional commit can't touch the same entity twice, so a mutation whose keys overlap
+ * the open group's starts a new group instead. If a group's commit fails, its mutations are
+ * retried one by one so that each caller gets its own outcome rather than failing with the
+ * others.
+ *
+ * Created by dave on 10/18/16.
+ */
+class GroupCommitter {
+  private final Consumer<Mutation.Builder> committer;
+  private final Executor commitExecutor;
+  private final long windowNanos;
+  private final int maxEntities;
+  private final ScheduledExecutorService windowTimer = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("datastore-group-commit").build());
+
+  private Group openGroup;
+
+  GroupCommitter(Consumer<Mutation.Builder> committer, Executor commitExecutor, Duration window,
+                 int maxEntities) {
+    this.committer = committer;
+    this.commitExecutor = commitExecutor;
+    this.windowNanos = window.toNanos();
+    this.maxEntities = maxEntities;
+  }
+
+  // Whether the mutation is small enough to share a commit with others.
+  boolean accepts(Mutation.Builder mutation) {
+    return entityCount(mutation) < maxEntities;
+  }
+
+  void commit(Mutation.Builder mutation) {
+    Set<Key> keys = keys(mutation);
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    synchronized (this) {
+      if (openGroup != null && !openGroup.canAdd(mutation, keys)) {
+        close(openGroup);
+      }
+      if (openGroup == null) {
+        Group group = new Group();
+        openGroup = group;
+        windowTimer.schedule(() -> closeIfOpen(group), windowNanos, TimeUnit.NANOSECONDS);
+      }
+      openGroup.add(mutation, keys, done);
+      if (openGroup.entityCount >= maxEntities) {
+        close(openGroup);
+      }
+    }
+
+    try {
+      done.join();
+    } catch (CompletionException e) {
+      throw (RuntimeException) e.getCause();
+    }
+  }
+
+  private synchronized void closeIfOpen(Group group) {
+    if (openGroup == group) {
+      close(group);
+    }
+  }
+
+  // Called with the lock held.
+  private void close(Group group) {
+    openGroup = null;
+    commitExecutor.execute(group::commit);
+  }
+
+  static int entityCount(MutationOrBuilder mutation) {
+    return mutation.getUpsertCount() + mutation.getUpdateCount() + mutation.getInsertCount() +
+        mutation.getInsertAutoIdCount() + mutation.getDeleteCount();
+  }
+
+  private static Set<Key> keys(Mutation.Builder mutation) {
+    Set<Key> keys = new HashSet<>();
+    mutation.getUpsertList().forEach(entity -> keys.add(entity.getKey()));
+    mutation.getUpdateList().forEach(entity -> keys.add(entity.getKey()));
+    mutation.getInsertList().forEach(entity -> keys.add(entity.getKey()));
+    keys.addAll(mutation.getDeleteList());
+    return keys;
+  }
+
+  private class Group {
+    private final List<Mutation.Builder> mutations = new ArrayList<>();
+    private final List<CompletableFuture<Void>> callers = new ArrayList<>();
+    private final Set<Key> keys = new HashSet<>();
+    private int entityCount;
+
+    private boolean canAdd(Mutation.Builder mutation, Set<Key> mutationKeys) {
+      return entityCount + entityCount(mutation) <= maxEntities &&
+          mutationKeys.stream().noneMatch(keys::contains);
+    }
+
+    private void add(Mutation.Builder mutation, Set<Key> mutationKeys,
+                     CompletableFuture<Void> caller) {
+      mutations.add(mutation);
+      callers.add(caller);
+      keys.addAll(mutationKeys);
+      entityCount += entityCount(mutation);
+    }
+
+    private void commit() {
+      if (mutations.size() > 1) {
+        Mutation.Builder merged = Mutation.newBuilder();
+        mutations.forEach(mutation -> merged.mergeFrom(mutation.build()));
+        try {
+          committer.accept(merged);
+          callers.forEach(caller -> caller.complete(null));
+          return;
+        } catch (RuntimeException e) {
+          // Fall through and commit them one by one so one bad mutation doesn't fail the rest.
+        }
+      }
+      for (int i = 0; i < mutations.size(); i++) {
+        try {
+          committer.accept(mutations.get(i));
+          callers.get(i).complete(null);
+        } catch (RuntimeException e) {
+          callers.get(i).completeExceptionally(e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.*;
+import com.google.api.services.datastore.client.DatastoreException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static com.google.api.services.datastore.client.DatastoreHelper.getKeyComparator;
+import static com.google.api.services.datastore.client.DatastoreHelper.makeKey;
+import static org.draff.objectdb.QueryEvaluator.KIND_KIND;
+import static org.draff.objectdb.QueryEvaluator.kind;
+
+/**
+ * A thread-safe, strongly consistent stand-in for Datastore that keeps each kind's entities in a
+ * sorted map by key and answers the same lookup, query and commit requests that DatastoreUtil
+ * sends (queries are answered by QueryEvaluator). It's for benchmarks and local runs (see
+ * InMemoryDb), not for storing anything for real.
+ *
+ * Created by dave on 10/18/16.
+ */
+class InMemoryDatastore implements DatastoreRpc {
+  private final Map<String, ConcurrentSkipListMap<Key, Entity>> kinds = new ConcurrentHashMap<>();
+  private final AtomicLong lastAllocatedId = new AtomicLong();
+
+  @Override
+  public LookupResponse lookup(LookupRequest request) throws DatastoreException {
+    LookupResponse.Builder response = LookupResponse.newBuilder();
+    for (Key key : request.getKeyList()) {
+      Entity entity = entities(kind(key)).get(key);
+      if (entity == null) {
+        response.addMissingBuilder().setEntity(Entity.newBuilder().setKey(key));
+      } else {
+        response.addFoundBuilder().setEntity(entity);
+      }
+    }
+    return response.build();
+  }
+
+  // Commits are serialized so that the checks that inserted keys are new and updated keys exist
+  // hold when the mutation is applied, and a mutation that fails them changes nothing.
+  @Override
+  public synchronized CommitResponse commit(CommitRequest request) throws DatastoreException {
+    Mutation mutation = request.getMutation();
+    for (Entity entity : mutation.getInsertList()) {
+      if (entities(kind(entity.getKey())).containsKey(entity.getKey())) {
+        throw new DatastoreException("commit", 400, "Entity already exists: " + entity.getKey(),
+            null);
+      }
+    }
+    for (Entity entity : mutation.getUpdateList()) {
+      if (!entities(kind(entity.getKey())).containsKey(entity.getKey())) {
+        throw new DatastoreException("commit", 404, "No entity to update: " + entity.getKey(),
+            null);
+      }
+    }
+
+    CommitResponse.Builder response = CommitResponse.newBuilder();
+    MutationResult.Builder result = response.getMutationResultBuilder();
+    Stream.of(mutation.getUpsertList(), mutation.getUpdateList(), mutation.getInsertList())
+        .flatMap(List::stream).forEach(this::put);
+    for (Entity entity : mutation.getInsertAutoIdList()) {
+      Key.Builder key = entity.getKey().toBuilder();
+      int last = key.getPathElementCount() - 1;
+      key.getPathElementBuilder(last).setId(lastAllocatedId.incrementAndGet());
+      put(entity.toBuilder().setKey(key).build());
+      result.addInsertAutoIdKey(key);
+    }
+    mutation.getDeleteList().forEach(key -> entities(kind(key)).remove(key));
+
+    result.setIndexUpdates(0);
+    return response.build();
+  }
+
+  @Override
+  public RunQueryResponse runQuery(RunQueryRequest request) throws DatastoreException {
+    Query query = request.getQuery();
+    QueryEvaluator.checkSupported(query);
+    String kind = query.getKind(0).getName();
+    QueryResultBatch batch;
+    if (kind.equals(KIND_KIND)) {
+      batch = QueryEvaluator.run(query, kindEntities());
+    } else if (QueryEvaluator.isKeyOrdered(query)) {
+      // The map is already in key order, so the next batch starts right after the cursor's key.
+      ConcurrentSkipListMap<Key, Entity> entities = entities(kind);
+      Map<Key, Entity> remaining = query.hasStartCursor() ?
+          entities.tailMap(QueryEvaluator.fromCursor(query.getStartCursor()).getKey(), false) :
+          entities;
+      batch = QueryEvaluator.runInKeyOrder(query, remaining.values().stream());
+    } else {
+      batch = QueryEvaluator.run(query, entities(kind).values().stream());
+    }
+    return RunQueryResponse.newBuilder().setBatch(batch).build();
+  }
+
+  // The results of a __kind__ metadata query: an entity per kind, named after the kind.
+  private Stream<Entity> kindEntities() {
+    return kinds.entrySet().stream()
+        .filter(kind -> !kind.getValue().isEmpty())
+        .map(kind -> Entity.newBuilder().setKey(makeKey(KIND_KIND, kind.getKey())).build());
+  }
+
+  private void put(Entity entity) {
+    entities(kind(entity.getKey())).put(entity.getKey(), entity);
+  }
+
+  private ConcurrentSkipListMap<Key, Entity> entities(String kind) {
+    return kinds.computeIfAbsent(kind, k -> new ConcurrentSkipListMap<>(getKeyComparator()));
+  }
+}
@@ -0,0 +1,25 @@
+package org.draff.objectdb;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A DatastoreDb that keeps everything in memory (see InMemoryDatastore) instead of talking to
+ * Datastore. It's strongly consistent, so there's no need to wait for saves and deletes to show
+ * up in queries, and it's meant for benchmarks and local runs without the Datastore emulator.
+ *
+ * Created by dave on 10/18/16.
+ */
+public class InMemoryDb extends DatastoreDb {
+  public InMemoryDb() {
+    this(Collections.emptyMap());
+  }
+
+  public InMemoryDb(Map<Class, EntityMapper> customEntityMappers) {
+    this(customEntityMappers, DatastoreDbOptions.defaults());
+  }
+
+  public InMemoryDb(Map<Class, EntityMapper> customEntityMappers, DatastoreDbOptions options) {
+    super(new InMemoryDatastore(), customEntityMappers, options);
+  }
+}
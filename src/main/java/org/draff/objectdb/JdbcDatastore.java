@@ -0,0 +1,481 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.*;
+import com.google.api.services.datastore.client.DatastoreException;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+
+import static com.google.api.services.datastore.client.DatastoreHelper.KEY_PROPERTY_NAME;
+import static com.google.api.services.datastore.client.DatastoreHelper.makeKey;
+import static com.google.api.services.datastore.client.DatastoreHelper.makePropertyReference;
+import static org.draff.objectdb.QueryEvaluator.KIND_KIND;
+import static org.draff.objectdb.QueryEvaluator.kind;
+
+/**
+ * A stand-in for Datastore that keeps entities in an embedded SQL database (e.g. H2) through
+ * JDBC, for single-node deployments where Datastore isn't worth what it costs.
+ *
+ * Each entity is stored whole as a serialized protobuf, keyed by its kind and an encoding of its
+ * key path that sorts the same way Datastore orders keys. The indexed integer, string, boolean
+ * and timestamp property values also go into an indexed properties table, so that the equality
+ * constraints that the fetchers query by, __key__ ranges and ancestors are all answered by the
+ * database. Anything else a query asks for (other filters, orders, projections) is worked out by
+ * QueryEvaluator over the entities the database returns.
+ *
+ * Created by dave on 10/18/16.
+ */
+class JdbcDatastore implements DatastoreRpc, AutoCloseable {
+  private static final String[] SCHEMA = {
+      "CREATE TABLE IF NOT EXISTS entities (kind VARCHAR(500) NOT NULL, " +
+          "path VARCHAR(2000) NOT NULL, entity BLOB NOT NULL, PRIMARY KEY (kind, path))",
+      "CREATE TABLE IF NOT EXISTS properties (kind VARCHAR(500) NOT NULL, " +
+          "path VARCHAR(2000) NOT NULL, name VARCHAR(500) NOT NULL, value_type CHAR(1) NOT NULL, " +
+          "long_value BIGINT, string_value VARCHAR(1500))",
+      "CREATE INDEX IF NOT EXISTS properties_entity ON properties (kind, path)",
+      "CREATE INDEX IF NOT EXISTS properties_long ON properties " +
+          "(kind, name, value_type, long_value)",
+      "CREATE INDEX IF NOT EXISTS properties_string ON properties " +
+          "(kind, name, value_type, string_value)"
+  };
+  private static final char PATH_SEPARATOR = '\u0001';
+
+  private final String url;
+  // Kept open (and out of the pool, whose connections are closed when work on them fails) so
+  // that in-memory databases (e.g. jdbc:h2:mem:) stay around.
+  private final Connection schemaConnection;
+  private final Queue<Connection> idleConnections = new ConcurrentLinkedQueue<>();
+
+  JdbcDatastore(String url) {
+    this.url = url;
+    try {
+      schemaConnection = openConnection();
+      try (Statement statement = schemaConnection.createStatement()) {
+        for (String sql : SCHEMA) {
+          statement.execute(sql);
+        }
+      }
+      schemaConnection.commit();
+    } catch (SQLException e) {
+      throw new ObjectDbException("Cannot open database " + url, e);
+    }
+  }
+
+  @Override
+  public LookupResponse lookup(LookupRequest request) throws DatastoreException {
+    return withConnection("lookup", connection -> {
+      LookupResponse.Builder response = LookupResponse.newBuilder();
+      try (PreparedStatement select = connection.prepareStatement(
+          "SELECT entity FROM entities WHERE kind = ? AND path = ?")) {
+        for (Key key : request.getKeyList()) {
+          select.setString(1, kind(key));
+          select.setString(2, path(key));
+          try (ResultSet results = select.executeQuery()) {
+            if (results.next()) {
+              response.addFoundBuilder().setEntity(entity(results.getBytes(1)));
+            } else {
+              response.addMissingBuilder().setEntity(Entity.newBuilder().setKey(key));
+            }
+          }
+        }
+      }
+      return response.build();
+    });
+  }
+
+  @Override
+  public CommitResponse commit(CommitRequest request) throws DatastoreException {
+    Mutation mutation = request.getMutation();
+    if (mutation.getInsertAutoIdCount() > 0) {
+      throw new DatastoreException("commit", 400, "insertAutoId isn't supported", null);
+    }
+    List<Entity> puts = new ArrayList<>();
+    Stream.of(mutation.getUpsertList(), mutation.getUpdateList(), mutation.getInsertList())
+        .forEach(puts::addAll);
+    List<Key> removes = new ArrayList<>(mutation.getDeleteList());
+    puts.forEach(entity -> removes.add(entity.getKey()));
+
+    return withConnection("commit", connection -> {
+      try (PreparedStatement deleteProperties = connection.prepareStatement(
+          "DELETE FROM properties WHERE kind = ? AND path = ?");
+           PreparedStatement deleteEntity = connection.prepareStatement(
+               "DELETE FROM entities WHERE kind = ? AND path = ?");
+           PreparedStatement insertEntity = connection.prepareStatement(
+               "INSERT INTO entities (kind, path, entity) VALUES (?, ?, ?)");
+           PreparedStatement insertProperty = connection.prepareStatement(
+               "INSERT INTO properties (kind, path, name, value_type, long_value, " +
+                   "string_value) VALUES (?, ?, ?, ?, ?, ?)")) {
+        for (Key key : removes) {
+          for (PreparedStatement delete : Arrays.asList(deleteProperties, deleteEntity)) {
+            delete.setString(1, kind(key));
+            delete.setString(2, path(key));
+            delete.addBatch();
+          }
+        }
+        for (Entity entity : puts) {
+          String kind = kind(entity.getKey());
+          String path = path(entity.getKey());
+          insertEntity.setString(1, kind);
+          insertEntity.setString(2, path);
+          insertEntity.setBytes(3, entity.toByteArray());
+          insertEntity.addBatch();
+          for (Property property : entity.getPropertyList()) {
+            addPropertyRows(insertProperty, kind, path, property);
+          }
+        }
+        deleteProperties.executeBatch();
+        deleteEntity.executeBatch();
+        insertEntity.executeBatch();
+        insertProperty.executeBatch();
+      }
+      CommitResponse.Builder response = CommitResponse.newBuilder();
+      response.getMutationResultBuilder().setIndexUpdates(0);
+      return response.build();
+    });
+  }
+
+  @Override
+  public RunQueryResponse runQuery(RunQueryRequest request) throws DatastoreException {
+    Query query = request.getQuery();
+    QueryEvaluator.checkSupported(query);
+    String kind = query.getKind(0).getName();
+    if (kind.equals(KIND_KIND)) {
+      return withConnection("runQuery", connection -> runKindQuery(connection, query));
+    }
+
+    SqlQuery sql = new SqlQuery(kind);
+    boolean exact = !query.hasFilter() || sql.addFilter(query.getFilter());
+    boolean keyOrdered = query.getOrderList().stream().allMatch(order ->
+        order.getProperty().getName().equals(KEY_PROPERTY_NAME) &&
+            order.getDirection() == PropertyOrder.Direction.ASCENDING);
+    if (keyOrdered) {
+      if (query.hasStartCursor()) {
+        sql.where("e.path > ?", path(QueryEvaluator.fromCursor(query.getStartCursor()).getKey()));
+      }
+      sql.orderByPath();
+      // One more than the batch so that QueryEvaluator can tell whether there are more results.
+      if (exact) {
+        int limit = query.hasLimit() ? query.getLimit() : Integer.MAX_VALUE;
+        sql.limit(Math.min(limit, QueryEvaluator.MAX_BATCH_SIZE) + 1);
+      }
+    }
+
+    return withConnection("runQuery", connection -> {
+      List<Entity> candidates = new ArrayList<>();
+      try (PreparedStatement select = sql.prepare(connection);
+           ResultSet results = select.executeQuery()) {
+        while (results.next()) {
+          candidates.add(entity(results.getBytes(1)));
+        }
+      }
+      QueryResultBatch batch = QueryEvaluator.run(query, candidates.stream());
+      return RunQueryResponse.newBuilder().setBatch(batch).build();
+    });
+  }
+
+  // Copies every entity in the source into this database (replacing any with the same keys) and
+  // returns how many there were. The kinds come from a __kind__ metadata query.
+  long copyFrom(DatastoreRpc source) throws DatastoreException {
+    List<String> kinds = new ArrayList<>();
+    Query.Builder kindQuery = Query.newBuilder();
+    kindQuery.addKindBuilder().setName(KIND_KIND);
+    kindQuery.addProjectionBuilder().setProperty(makePropertyReference(KEY_PROPERTY_NAME));
+    forEachBatch(source, kindQuery, batch -> batch.getEntityResultList().forEach(result ->
+        kinds.add(result.getEntity().getKey().getPathElement(0).getName())));
+
+    long[] copied = {0};
+    for (String kind : kinds) {
+      if (kind.startsWith("__")) {
+        continue;
+      }
+      Query.Builder query = Query.newBuilder();
+      query.addKindBuilder().setName(kind);
+      forEachBatch(source, query, batch -> {
+        Mutation.Builder mutation = Mutation.newBuilder();
+        batch.getEntityResultList().forEach(result -> mutation.addUpsert(result.getEntity()));
+        commit(CommitRequest.newBuilder().setMutation(mutation)
+            .setMode(CommitRequest.Mode.NON_TRANSACTIONAL).build());
+        copied[0] += batch.getEntityResultCount();
+      });
+    }
+    return copied[0];
+  }
+
+  @Override
+  public void close() {
+    Connection connection;
+    while ((connection = idleConnections.poll()) != null) {
+      closeQuietly(connection);
+    }
+    closeQuietly(schemaConnection);
+  }
+
+  private interface BatchConsumer {
+    void accept(QueryResultBatch batch) throws DatastoreException;
+  }
+
+  private static void forEachBatch(DatastoreRpc source, Query.Builder query,
+                                   BatchConsumer consumer) throws DatastoreException {
+    QueryResultBatch batch;
+    do {
+      batch = source.runQuery(RunQueryRequest.newBuilder().setQuery(query).build()).getBatch();
+      consumer.accept(batch);
+      query.setStartCursor(batch.getEndCursor());
+    } while (batch.getEntityResultCount() > 0 &&
+        batch.getMoreResults() != QueryResultBatch.MoreResultsType.NO_MORE_RESULTS);
+  }
+
+  private static RunQueryResponse runKindQuery(Connection connection, Query query)
+      throws SQLException, DatastoreException {
+    List<Entity> kinds = new ArrayList<>();
+    try (Statement statement = connection.createStatement();
+         ResultSet results = statement.executeQuery("SELECT DISTINCT kind FROM entities")) {
+      while (results.next()) {
+        Key key = makeKey(KIND_KIND, results.getString(1)).build();
+        kinds.add(Entity.newBuilder().setKey(key).build());
+      }
+    }
+    return RunQueryResponse.newBuilder()
+        .setBatch(QueryEvaluator.run(query, kinds.stream())).build();
+  }
+
+  private static void addPropertyRows(PreparedStatement insert, String kind, String path,
+                                      Property property) throws SQLException {
+    Value value = property.getValue();
+    List<Value> values = value.getListValueCount() > 0 ? value.getListValueList() :
+        Collections.singletonList(value);
+    for (Value element : values) {
+      if (element.hasIndexed() && !element.getIndexed()) {
+        continue;
+      }
+      String valueType = valueType(element);
+      if (valueType == null) {
+        continue;
+      }
+      insert.setString(1, kind);
+      insert.setString(2, path);
+      insert.setString(3, property.getName());
+      insert.setString(4, valueType);
+      if (element.hasStringValue()) {
+        insert.setNull(5, Types.BIGINT);
+        insert.setString(6, element.getStringValue());
+      } else {
+        insert.setLong(5, longValue(element));
+        insert.setNull(6, Types.VARCHAR);
+      }
+      insert.addBatch();
+    }
+  }
+
+  // The type code that the properties table stores the value under, or null if it doesn't store
+  // values of that type (they're still in the serialized entity for QueryEvaluator to look at).
+  private static String valueType(Value value) {
+    if (value.hasIntegerValue()) {
+      return "i";
+    } else if (value.hasStringValue()) {
+      return "s";
+    } else if (value.hasBooleanValue()) {
+      return "b";
+    } else if (value.hasTimestampMicrosecondsValue()) {
+      return "t";
+    }
+    return null;
+  }
+
+  private static long longValue(Value value) {
+    if (value.hasIntegerValue()) {
+      return value.getIntegerValue();
+    } else if (value.hasBooleanValue()) {
+      return value.getBooleanValue() ? 1 : 0;
+    }
+    return value.getTimestampMicrosecondsValue();
+  }
+
+  // Encodes a key path as a string that sorts the same way Datastore orders keys: element by
+  // element, kind first, then ids (as fixed-width hex, flipped so negative ids come first) before
+  // names. The separator sorts before any character that shows up in kinds and names.
+  static String path(Key key) {
+    StringBuilder path = new StringBuilder();
+    for (Key.PathElement element : key.getPathElementList()) {
+      path.append(element.getKind()).append(PATH_SEPARATOR);
+      if (element.hasName()) {
+        path.append('1').append(element.getName());
+      } else {
+        path.append('0').append(String.format("%016x", element.getId() ^ Long.MIN_VALUE));
+      }
+      path.append(PATH_SEPARATOR);
+    }
+    return path.toString();
+  }
+
+  private static Entity entity(byte[] bytes) throws SQLException {
+    try {
+      return Entity.parseFrom(bytes);
+    } catch (InvalidProtocolBufferException e) {
+      throw new SQLException("Corrupt entity", e);
+    }
+  }
+
+  interface SqlWork<T> {
+    T run(Connection connection) throws SQLException, DatastoreException;
+  }
+
+  // Runs the work in a transaction on a pooled connection. If the work fails with anything but a
+  // DatastoreException, the transaction is rolled back and the connection closed rather than
+  // pooled, since it may be left in any state.
+  <T> T withConnection(String method, SqlWork<T> work) throws DatastoreException {
+    Connection connection = idleConnections.poll();
+    try {
+      if (connection == null) {
+        connection = openConnection();
+      }
+      T result = work.run(connection);
+      connection.commit();
+      idleConnections.add(connection);
+      return result;
+    } catch (SQLException e) {
+      if (connection != null) {
+        closeQuietly(connection);
+      }
+      throw new DatastoreException(method, 500, e.getMessage(), e);
+    } catch (RuntimeException e) {
+      if (connection != null) {
+        closeQuietly(connection);
+      }
+      throw e;
+    } catch (DatastoreException e) {
+      // A bad request rather than a problem with the connection, so it can go back in the pool.
+      try {
+        connection.rollback();
+        idleConnections.add(connection);
+      } catch (SQLException rollbackException) {
+        closeQuietly(connection);
+      }
+      throw e;
+    }
+  }
+
+  private Connection openConnection() throws SQLException {
+    Connection connection = DriverManager.getConnection(url);
+    connection.setAutoCommit(false);
+    return connection;
+  }
+
+  private static void closeQuietly(Connection connection) {
+    try {
+      connection.rollback();
+    } catch (SQLException e) {
+      // Closing it still ends the transaction.
+    }
+    try {
+      connection.close();
+    } catch (SQLException e) {
+      // Nothing more to do with a broken connection.
+    }
+  }
+
+  // A SELECT of whole entities of one kind, built up from the parts of a query that SQL can
+  // answer.
+  private static class SqlQuery {
+    private final StringBuilder where = new StringBuilder("e.kind = ?");
+    private final List<Object> parameters = new ArrayList<>();
+    private String orderBy = "";
+    private Integer limit;
+
+    SqlQuery(String kind) {
+      parameters.add(kind);
+    }
+
+    void where(String condition, Object... conditionParameters) {
+      where.append(" AND ").append(condition);
+      parameters.addAll(Arrays.asList(conditionParameters));
+    }
+
+    void orderByPath() {
+      orderBy = " ORDER BY e.path";
+    }
+
+    void limit(int limit) {
+      this.limit = limit;
+    }
+
+    // Adds what it can of the filter and returns whether that was all of it.
+    boolean addFilter(Filter filter) {
+      if (filter.hasCompositeFilter()) {
+        boolean exact = true;
+        for (Filter subFilter : filter.getCompositeFilter().getFilterList()) {
+          exact &= addFilter(subFilter);
+        }
+        return exact;
+      }
+
+      PropertyFilter propertyFilter = filter.getPropertyFilter();
+      PropertyFilter.Operator operator = propertyFilter.getOperator();
+      Value value = propertyFilter.getValue();
+      if (propertyFilter.getProperty().getName().equals(KEY_PROPERTY_NAME)) {
+        String path = path(value.getKeyValue());
+        if (operator == PropertyFilter.Operator.HAS_ANCESTOR) {
+          where("e.path LIKE ? ESCAPE '!'", path.replaceAll("([!%_])", "!$1") + "%");
+          return true;
+        }
+        String comparison = comparison(operator);
+        if (comparison != null) {
+          where("e.path " + comparison + " ?", path);
+          return true;
+        }
+        return false;
+      }
+
+      String valueType = valueType(value);
+      if (operator != PropertyFilter.Operator.EQUAL || valueType == null) {
+        return false;
+      }
+      where("EXISTS (SELECT 1 FROM properties p WHERE p.kind = e.kind AND p.path = e.path " +
+              "AND p.name = ? AND p.value_type = ? AND " +
+              (value.hasStringValue() ? "p.string_value" : "p.long_value") + " = ?)",
+          propertyFilter.getProperty().getName(), valueType,
+          value.hasStringValue() ? value.getStringValue() : longValue(value));
+      return true;
+    }
+
+    private static String comparison(PropertyFilter.Operator operator) {
+      switch (operator) {
+        case EQUAL:
+          return "=";
+        case LESS_THAN:
+          return "<";
+        case LESS_THAN_OR_EQUAL:
+          return "<=";
+        case GREATER_THAN:
+          return ">";
+        case GREATER_THAN_OR_EQUAL:
+          return ">=";
+        default:
+          return null;
+      }
+    }
+
+    PreparedStatement prepare(Connection connection) throws SQLException {
+      String sql = "SELECT e.entity FROM entities e WHERE " + where + orderBy +
+          (limit == null ? "" : " LIMIT " + limit);
+      PreparedStatement statement = connection.prepareStatement(sql);
+      for (int i = 0; i < parameters.size(); i++) {
+        statement.setObject(i + 1, parameters.get(i));
+      }
+      return statement;
+    }
+  }
+}
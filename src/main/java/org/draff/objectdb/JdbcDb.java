@@ -0,0 +1,42 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.client.Datastore;
+import com.google.api.services.datastore.client.DatastoreException;
+
+import java.util.Map;
+
+/**
+ * A DatastoreDb that keeps everything in an embedded SQL database (see JdbcDatastore) instead of
+ * Datastore, e.g. with a URL like jdbc:h2:./twitfetch. The JDBC driver for the URL has to be on
+ * the classpath.
+ *
+ * Created by dave on 10/18/16.
+ */
+public class JdbcDb extends DatastoreDb {
+  private final JdbcDatastore jdbcDatastore;
+
+  public JdbcDb(String jdbcUrl, Map<Class, EntityMapper> customEntityMappers,
+                DatastoreDbOptions options) {
+    this(new JdbcDatastore(jdbcUrl), customEntityMappers, options);
+  }
+
+  private JdbcDb(JdbcDatastore jdbcDatastore, Map<Class, EntityMapper> customEntityMappers,
+                 DatastoreDbOptions options) {
+    super(jdbcDatastore, customEntityMappers, options);
+    this.jdbcDatastore = jdbcDatastore;
+  }
+
+  // Copies every entity in the Datastore dataset into this database and returns how many there
+  // were. It bypasses the entity cache, so do it before using the db for anything else.
+  public long importFrom(Datastore datastore) {
+    return importFrom(DatastoreRpc.of(datastore));
+  }
+
+  long importFrom(DatastoreRpc source) {
+    try {
+      return jdbcDatastore.copyFrom(source);
+    } catch (DatastoreException e) {
+      throw new ObjectDbException(e);
+    }
+  }
+}
@@ -7,7 +7,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import static org.draff.objectdb.EntityMapperHelper.fieldOrNull;
-import static org.draff.objectdb.EntityMapperHelper.isAutoValueImpl;
+import static org.draff.objectdb.EntityMapperHelper.isGeneratedImpl;
 import static org.draff.objectdb.EntityMapperHelper.methodOrNull;
 
 /**
@@ -42,6 +42,14 @@ class ManagingEntityMapper implements EntityMapper {
     return mapperFor(clazz).fromEntity(entity, clazz);
   }
 
+  @Override
+  public <T extends Model> T fromEntityLazily(Entity entity, Class<T> clazz) {
+    if (entity == null) {
+      return null;
+    }
+    return mapperFor(clazz).fromEntityLazily(entity, clazz);
+  }
+
   @Override
   public Object getModelId(Model model) {
     return mapperFor(model.getClass()).getModelId(model);
@@ -64,10 +72,10 @@ class ManagingEntityMapper implements EntityMapper {
   }
 
   public EntityMapper defaultMapperForClass(Class clazz) {
-    if (isAutoValueImpl(clazz)) {
+    if (isGeneratedImpl(clazz)) {
       // The constructors below are designed to work on the abstract @AutoValue class, not the
-      // auto-generated implementation class. This will also make it work better with custom entity
-      // mapper classes.
+      // auto-generated implementation class (or lazy view). This will also make it work better
+      // with custom entity mapper classes.
       return mapperFor(clazz.getSuperclass());
     }
 
@@ -0,0 +1,87 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.*;
+import com.google.api.services.datastore.client.DatastoreException;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.draff.objectdb.QueryEvaluator.kind;
+
+/**
+ * Records the latency, entity counts and request or response sizes of each Datastore RPC in
+ * DbMetrics. A lookup or commit that spans several kinds is put down to the kind of its first
+ * key, which in practice is the kind of all of them.
+ *
+ * Created by dave on 10/18/16.
+ */
+class MeteredDatastoreRpc implements DatastoreRpc {
+  private static final String UNKNOWN_KIND = "(none)";
+
+  private final DatastoreRpc datastore;
+  private final DbMetrics metrics;
+
+  MeteredDatastoreRpc(DatastoreRpc datastore, DbMetrics metrics) {
+    this.datastore = datastore;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public LookupResponse lookup(LookupRequest request) throws DatastoreException {
+    OperationStats stats = metrics.stats("rpc.lookup",
+        request.getKeyCount() == 0 ? UNKNOWN_KIND : kind(request.getKey(0)));
+    long start = System.nanoTime();
+    try {
+      LookupResponse response = datastore.lookup(request);
+      stats.record(System.nanoTime() - start, response.getFoundCount(),
+          response.getSerializedSize(), 0);
+      return response;
+    } catch (DatastoreException|RuntimeException e) {
+      stats.recordError(System.nanoTime() - start);
+      throw e;
+    }
+  }
+
+  @Override
+  public RunQueryResponse runQuery(RunQueryRequest request) throws DatastoreException {
+    Query query = request.getQuery();
+    OperationStats stats = metrics.stats("rpc.runQuery",
+        query.getKindCount() == 0 ? UNKNOWN_KIND : query.getKind(0).getName());
+    long start = System.nanoTime();
+    try {
+      RunQueryResponse response = datastore.runQuery(request);
+      stats.record(System.nanoTime() - start, response.getBatch().getEntityResultCount(),
+          response.getSerializedSize(), 1);
+      return response;
+    } catch (DatastoreException|RuntimeException e) {
+      stats.recordError(System.nanoTime() - start);
+      throw e;
+    }
+  }
+
+  @Override
+  public CommitResponse commit(CommitRequest request) throws DatastoreException {
+    Mutation mutation = request.getMutation();
+    OperationStats stats = metrics.stats("rpc.commit", mutationKind(mutation));
+    long start = System.nanoTime();
+    try {
+      CommitResponse response = datastore.commit(request);
+      stats.record(System.nanoTime() - start, GroupCommitter.entityCount(mutation),
+          request.getSerializedSize(), 0);
+      return response;
+    } catch (DatastoreException|RuntimeException e) {
+      stats.recordError(System.nanoTime() - start);
+      throw e;
+    }
+  }
+
+  private static String mutationKind(Mutation mutation) {
+    for (List<Entity> entities : Arrays.asList(mutation.getUpsertList(), mutation.getUpdateList(),
+        mutation.getInsertList(), mutation.getInsertAutoIdList())) {
+      if (!entities.isEmpty()) {
+        return kind(entities.get(0).getKey());
+      }
+    }
+    return mutation.getDeleteCount() == 0 ? UNKNOWN_KIND : kind(mutation.getDelete(0));
+  }
+}
@@ -0,0 +1,263 @@
+package org.draff.objectdb;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+import static org.draff.objectdb.EntityMapperHelper.isGeneratedImpl;
+import static org.draff.objectdb.EntityMapperHelper.kindForClass;
+
+/**
+ * An ObjectDb that records the latency and entity count of every call to the ObjectDb it wraps in
+ * DbMetrics, by method and model kind. Streams count their entities as they're consumed, and only
+ * the time to open them counts as latency. CreateOrTransformOp talks to the DatastoreDb directly,
+ * so only its RPCs get recorded (if the DatastoreDb has the metrics too).
+ *
+ * Created by dave on 10/18/16.
+ */
+public class MeteredObjectDb implements ObjectDb {
+  private final ObjectDb db;
+  private final DbMetrics metrics;
+
+  public MeteredObjectDb(ObjectDb db, DbMetrics metrics) {
+    this.db = db;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void save(Model object) {
+    run("save", classOf(object), 1, () -> db.save(object));
+  }
+
+  @Override
+  public void saveAll(List<? extends Model> objects) {
+    run("saveAll", classOf(objects), objects.size(), () -> db.saveAll(objects));
+  }
+
+  @Override
+  public CompletableFuture<Void> saveAllAsync(List<? extends Model> objects) {
+    OperationStats stats = metrics.stats("objectdb.saveAllAsync", kindForClass(classOf(objects)));
+    long start = System.nanoTime();
+    try {
+      return db.saveAllAsync(objects).whenComplete((result, e) -> {
+        if (e == null) {
+          stats.record(System.nanoTime() - start, objects.size(), 0, 0);
+        } else {
+          stats.recordError(System.nanoTime() - start);
+        }
+      });
+    } catch (RuntimeException e) {
+      stats.recordError(System.nanoTime() - start);
+      throw e;
+    }
+  }
+
+  @Override
+  public <T extends Model> List<T> findChildren(Model parent, Class<T> childClazz, int limit,
+                                                long minId) {
+    return call("findChildren", childClazz,
+        () -> db.findChildren(parent, childClazz, limit, minId), List::size);
+  }
+
+  @Override
+  public <T extends Model> Stream<T> streamChildren(Model parent, Class<T> childClazz) {
+    return stream("streamChildren", childClazz, () -> db.streamChildren(parent, childClazz));
+  }
+
+  @Override
+  public <T extends Model> Stream<T> stream(Class<T> clazz) {
+    return stream("stream", clazz, () -> db.stream(clazz));
+  }
+
+  @Override
+  public <T extends Model> Stream<T> stream(Class<T> clazz, Map<String, Object> fieldConstraints) {
+    return stream("stream", clazz, () -> db.stream(clazz, fieldConstraints));
+  }
+
+  @Override
+  public <T extends Model> Stream<T> streamLazily(Class<T> clazz,
+                                                  Map<String, Object> fieldConstraints) {
+    return stream("streamLazily", clazz, () -> db.streamLazily(clazz, fieldConstraints));
+  }
+
+  @Override
+  public Stream<Map<String, Object>> streamProjection(Class clazz,
+                                                      Collection<String> propertyNames) {
+    return stream("streamProjection", clazz, () -> db.streamProjection(clazz, propertyNames));
+  }
+
+  @Override
+  public Stream<Object> streamIds(Class clazz, Map<String, Object> fieldConstraints) {
+    return stream("streamIds", clazz, () -> db.streamIds(clazz, fieldConstraints));
+  }
+
+  @Override
+  public Set<Object> existingIds(Class clazz, Collection<?> namesOrIds) {
+    return call("existingIds", clazz, () -> db.existingIds(clazz, namesOrIds), Set::size);
+  }
+
+  @Override
+  public <T extends Model> List<T> find(Class<T> clazz, int limit) {
+    return call("find", clazz, () -> db.find(clazz, limit), List::size);
+  }
+
+  @Override
+  public <T extends Model> List<T> find(Class<T> clazz, Map<String, Object> fieldConstraints,
+                                        int limit) {
+    return call("find", clazz, () -> db.find(clazz, fieldConstraints, limit), List::size);
+  }
+
+  @Override
+  public <T extends Model> List<T> findLazily(Class<T> clazz, Map<String, Object> fieldConstraints,
+                                             int limit) {
+    return call("findLazily", clazz, () -> db.findLazily(clazz, fieldConstraints, limit),
+        List::size);
+  }
+
+  @Override
+  public <T extends Model> T findOne(Class<T> clazz) {
+    return call("findOne", clazz, () -> db.findOne(clazz), MeteredObjectDb::count);
+  }
+
+  @Override
+  public <T extends Model> T findOne(Class<T> clazz, Map<String, Object> fieldConstraints) {
+    return call("findOne", clazz, () -> db.findOne(clazz, fieldConstraints),
+        MeteredObjectDb::count);
+  }
+
+  @Override
+  public <T extends Model> List<T> findByIds(Class<T> clazz, Collection<Long> ids) {
+    return call("findByIds", clazz, () -> db.findByIds(clazz, ids), List::size);
+  }
+
+  @Override
+  public <T extends Model> List<T> findByNames(Class<T> clazz, Collection<String> names) {
+    return call("findByNames", clazz, () -> db.findByNames(clazz, names), List::size);
+  }
+
+  @Override
+  public <T extends Model> List<T> findByNamesOrIds(Class<T> clazz, Collection<?> namesOrIds) {
+    return call("findByNamesOrIds", clazz, () -> db.findByNamesOrIds(clazz, namesOrIds),
+        List::size);
+  }
+
+  @Override
+  public <T extends Model> T findById(Class<T> clazz, long id) {
+    return call("findById", clazz, () -> db.findById(clazz, id), MeteredObjectDb::count);
+  }
+
+  @Override
+  public <T extends Model> List<T> findOrderedById(Class<T> clazz, int limit, long minId) {
+    return call("findOrderedById", clazz, () -> db.findOrderedById(clazz, limit, minId),
+        List::size);
+  }
+
+  @Override
+  public <T extends Model> List<T> findOrderedById(Class<T> clazz, int limit, long minId,
+                                                   Map<String, Object> constraints) {
+    return call("findOrderedById", clazz,
+        () -> db.findOrderedById(clazz, limit, minId, constraints), List::size);
+  }
+
+  @Override
+  public <T extends Model> Page<T> findPage(Class<T> clazz, int limit, String pageToken) {
+    return page("findPage", clazz, () -> db.findPage(clazz, limit, pageToken));
+  }
+
+  @Override
+  public <T extends Model> Page<T> findPage(Class<T> clazz, int limit, String pageToken,
+                                            Map<String, Object> constraints) {
+    return page("findPage", clazz, () -> db.findPage(clazz, limit, pageToken, constraints));
+  }
+
+  @Override
+  public <T extends Model> Page<T> findChildrenPage(Model parent, Class<T> childClazz, int limit,
+                                                    String pageToken) {
+    return page("findChildrenPage", childClazz,
+        () -> db.findChildrenPage(parent, childClazz, limit, pageToken));
+  }
+
+  @Override
+  public void delete(Model object) {
+    run("delete", classOf(object), 1, () -> db.delete(object));
+  }
+
+  @Override
+  public void deleteAll(List<? extends Model> objects) {
+    run("deleteAll", classOf(objects), objects.size(), () -> db.deleteAll(objects));
+  }
+
+  @Override
+  public void deleteAllByIds(Class clazz, Collection<Long> ids) {
+    run("deleteAllByIds", clazz, ids.size(), () -> db.deleteAllByIds(clazz, ids));
+  }
+
+  @Override
+  public long deleteWhere(Class clazz, Map<String, Object> fieldConstraints) {
+    return call("deleteWhere", clazz, () -> db.deleteWhere(clazz, fieldConstraints),
+        deleted -> deleted);
+  }
+
+  @Override
+  public <T extends Model> CreateOrTransformOp.Builder<T> createOrTransform(Class<T> clazz) {
+    return db.createOrTransform(clazz);
+  }
+
+  private <R> R call(String method, Class clazz, Supplier<R> call, ToLongFunction<R> entities) {
+    OperationStats stats = metrics.stats("objectdb." + method, kindForClass(clazz));
+    long start = System.nanoTime();
+    try {
+      R result = call.get();
+      stats.record(System.nanoTime() - start, entities.applyAsLong(result), 0, 0);
+      return result;
+    } catch (RuntimeException e) {
+      stats.recordError(System.nanoTime() - start);
+      throw e;
+    }
+  }
+
+  private void run(String method, Class clazz, long entities, Runnable call) {
+    call(method, clazz, () -> {
+      call.run();
+      return null;
+    }, result -> entities);
+  }
+
+  private <T extends Model> Page<T> page(String method, Class<T> clazz, Supplier<Page<T>> call) {
+    OperationStats stats = metrics.stats("objectdb." + method, kindForClass(clazz));
+    long start = System.nanoTime();
+    try {
+      Page<T> page = call.get();
+      stats.record(System.nanoTime() - start, page.items().size(), 0, 1);
+      return page;
+    } catch (RuntimeException e) {
+      stats.recordError(System.nanoTime() - start);
+      throw e;
+    }
+  }
+
+  private <T> Stream<T> stream(String method, Class clazz, Supplier<Stream<T>> call) {
+    OperationStats stats = metrics.stats("objectdb." + method, kindForClass(clazz));
+    return call(method, clazz, call, stream -> 0).peek(item -> stats.addEntities(1));
+  }
+
+  private static Class classOf(List<? extends Model> objects) {
+    return objects.isEmpty() ? Model.class : classOf(objects.get(0));
+  }
+
+  // The model class that callers pass to the find methods, rather than its AutoValue or lazy view
+  // subclass.
+  private static Class classOf(Model object) {
+    Class clazz = object.getClass();
+    return isGeneratedImpl(clazz) ? clazz.getSuperclass() : clazz;
+  }
+
+  private static long count(Object result) {
+    return result == null ? 0 : 1;
+  }
+}
@@ -1,51 +1,54 @@
 package org.draff.objectdb;
 
 import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.Property;
 
 import java.lang.reflect.*;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
-import static com.google.api.services.datastore.client.DatastoreHelper.getPropertyMap;
 import static com.google.api.services.datastore.client.DatastoreHelper.makeKey;
-import static com.google.api.services.datastore.client.DatastoreHelper.makeProperty;
 import static org.draff.objectdb.EntityMapperHelper.entityId;
 import static org.draff.objectdb.EntityMapperHelper.fieldOrNull;
 import static org.draff.objectdb.EntityMapperHelper.kindForClass;
-import static org.draff.objectdb.EntityMapperHelper.invoke;
-import static org.draff.objectdb.ValueHelper.fromValue;
+import static org.draff.objectdb.PropertyAccessors.fieldGetter;
+import static org.draff.objectdb.PropertyAccessors.getter;
 import static org.draff.objectdb.ValueHelper.isDatastoreType;
-import static org.draff.objectdb.ValueHelper.toValue;
 
 /**
  * Created by dave on 1/26/16.
  */
 class MutableFieldsEntityMapper implements EntityMapper {
   private final String kind;
-  private final List<Field> propertyFields;
+  private final List<PropertyCodec> properties;
+  private final PropertySlots propertySlots;
   private final Field idField;
   private final Field parentField;
-  private final Method idMethod;
+  private final Function<Object, Object> id;
   private final Class modelClass;
   private final Constructor constructor;
   private final EntityMapper parentMapper;
 
   public MutableFieldsEntityMapper(Class clazz, EntityMapper parentMapper) {
     kind = kindForClass(clazz);
-    propertyFields = classPropertyFields(clazz);
+    properties = classPropertyFields(clazz).stream()
+        .map(field -> PropertyCodec.bind(field.getName(), field, field))
+        .collect(Collectors.toList());
+    propertySlots = new PropertySlots(properties.stream().map(property -> property.name)
+        .collect(Collectors.toList()));
     modelClass = clazz;
 
     idField = fieldOrNull(modelClass, "id");
     if (idField == null) {
       try {
-        idMethod = modelClass.getDeclaredMethod("id");
-        idMethod.setAccessible(true);
+        id = getter(modelClass.getDeclaredMethod("id"));
       } catch(NoSuchMethodException e) {
         throw new ObjectDbException(e);
       }
     } else {
-      idMethod = null;
+      id = fieldGetter(idField);
     }
 
     try {
@@ -64,7 +67,9 @@ class MutableFieldsEntityMapper implements EntityMapper {
     Entity.Builder builder = Entity.newBuilder();
     setEntityKey(builder, model);
 
-    propertyFields.forEach(field -> setPropertyFromObject(builder, field, model));
+    for (PropertyCodec property : properties) {
+      property.encode(model, builder);
+    }
     return builder.build();
   }
 
@@ -75,10 +80,7 @@ class MutableFieldsEntityMapper implements EntityMapper {
 
   @Override
   public Object getModelId(Model model) {
-    if (idField != null) {
-      return getField(model, idField);
-    }
-    return invoke(idMethod, model);
+    return id.apply(model);
   }
 
   @Override
@@ -89,7 +91,12 @@ class MutableFieldsEntityMapper implements EntityMapper {
   private <T extends Model> T newFromEntity(Entity entity, Class<T> clazz) {
     Object object = newInstance();
     setObjectIdFromEntity(object, entity);
-    propertyFields.forEach(field -> setFieldFromEntity(object, field, entity));
+    for (Property property : entity.getPropertyList()) {
+      int slot = propertySlots.slot(property.getName());
+      if (slot != PropertySlots.NONE) {
+        properties.get(slot).decode(object, property.getValue());
+      }
+    }
     return clazz.cast(object);
   }
 
@@ -117,10 +124,6 @@ class MutableFieldsEntityMapper implements EntityMapper {
     }
   }
 
-  private static void setFieldFromEntity(Object object, Field field, Entity entity) {
-    setField(object, field, fromValue(getPropertyMap(entity).get(field.getName())));
-  }
-
   private static void setField(Object object, Field field, Object value) {
     try {
       if (value != null) {
@@ -154,19 +157,4 @@ class MutableFieldsEntityMapper implements EntityMapper {
     fields.forEach(f -> f.setAccessible(true));
     return fields;
   }
-
-  private static void setPropertyFromObject(Entity.Builder builder, Field field, Object object) {
-    Object fieldVal = getField(object, field);
-    if (fieldVal != null) {
-      builder.addProperty(makeProperty(field.getName(), toValue(fieldVal)));
-    }
-  }
-
-  private static Object getField(Object object, Field field) {
-    try {
-      return field.get(object);
-    } catch (IllegalAccessException e) {
-      throw new ObjectDbException(e);
-    }
-  }
 }
@@ -3,6 +3,9 @@ package org.draff.objectdb;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 /**
  * Created by dave on 1/7/16.
@@ -11,9 +14,19 @@ import java.util.Map;
 public interface ObjectDb {
   void save(Model object);
   void saveAll(List<? extends Model> objects);
+  CompletableFuture<Void> saveAllAsync(List<? extends Model> objects);
   <T extends Model> List<T> findChildren(Model parent, Class<T> childClazz, int limit, long minId);
+  <T extends Model> Stream<T> streamChildren(Model parent, Class<T> childClazz);
+  <T extends Model> Stream<T> stream(Class<T> clazz);
+  <T extends Model> Stream<T> stream(Class<T> clazz, Map<String, Object> fieldConstraints);
+  <T extends Model> Stream<T> streamLazily(Class<T> clazz, Map<String, Object> fieldConstraints);
+  Stream<Map<String, Object>> streamProjection(Class clazz, Collection<String> propertyNames);
+  Stream<Object> streamIds(Class clazz, Map<String, Object> fieldConstraints);
+  Set<Object> existingIds(Class clazz, Collection<?> namesOrIds);
   <T extends Model> List<T> find(Class<T> clazz, int limit);
   <T extends Model> List<T> find(Class<T> clazz, Map<String, Object> fieldConstraints, int limit);
+  <T extends Model> List<T> findLazily(Class<T> clazz, Map<String, Object> fieldConstraints,
+                                      int limit);
   <T extends Model> T findOne(Class<T> clazz);
   <T extends Model> T findOne(Class<T> clazz, Map<String, Object> fieldConstraints);
   <T extends Model> List<T> findByIds(Class<T> clazz, Collection<Long> ids);
@@ -22,8 +35,12 @@ public interface ObjectDb {
   <T extends Model> T findById(Class<T> clazz, long id);
   <T extends Model> List<T> findOrderedById(Class<T> clazz, int limit, long minId);
   <T extends Model> List<T> findOrderedById(Class<T> clazz, int limit, long minId, Map<String, Object> constraints);
+  <T extends Model> Page<T> findPage(Class<T> clazz, int limit, String pageToken);
+  <T extends Model> Page<T> findPage(Class<T> clazz, int limit, String pageToken, Map<String, Object> constraints);
+  <T extends Model> Page<T> findChildrenPage(Model parent, Class<T> childClazz, int limit, String pageToken);
   void delete(Model object);
   void deleteAll(List<? extends Model> object);
   void deleteAllByIds(Class clazz, Collection<Long> ids);
+  long deleteWhere(Class clazz, Map<String, Object> fieldConstraints);
   <T extends Model> CreateOrTransformOp.Builder<T> createOrTransform(Class<T> clazz);
 }
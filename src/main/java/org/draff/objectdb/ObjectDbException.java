@@ -11,4 +11,8 @@ public class ObjectDbException extends RuntimeException {
   public ObjectDbException(String message) {
     super(message);
   }
+
+  public ObjectDbException(String message, Throwable cause) {
+    super(message, cause);
+  }
 }
@@ -0,0 +1,73 @@
+package org.draff.objectdb;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What DbMetrics has recorded for one operation on one kind: a latency histogram of the calls, and
+ * how many entities, bytes and query result pages they moved and how many of them failed.
+ *
+ * Created by dave on 10/18/16.
+ */
+public class OperationStats {
+  private final String operation;
+  private final String kind;
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final LongAdder entities = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+  private final LongAdder pages = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+
+  OperationStats(String operation, String kind) {
+    this.operation = operation;
+    this.kind = kind;
+  }
+
+  void record(long nanos, long entities, long bytes, long pages) {
+    latency.record(nanos);
+    addEntities(entities);
+    this.bytes.add(bytes);
+    this.pages.add(pages);
+  }
+
+  void recordError(long nanos) {
+    latency.record(nanos);
+    errors.increment();
+  }
+
+  // For streams, whose entities are counted as they're consumed rather than when they're opened.
+  void addEntities(long entities) {
+    this.entities.add(entities);
+  }
+
+  public String operation() {
+    return operation;
+  }
+
+  public String kind() {
+    return kind;
+  }
+
+  public long calls() {
+    return latency.count();
+  }
+
+  public LatencyHistogram latency() {
+    return latency;
+  }
+
+  public long entities() {
+    return entities.sum();
+  }
+
+  public long bytes() {
+    return bytes.sum();
+  }
+
+  public long pages() {
+    return pages.sum();
+  }
+
+  public long errors() {
+    return errors.sum();
+  }
+}
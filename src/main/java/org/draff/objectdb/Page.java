@@ -0,0 +1,33 @@
+package org.draff.objectdb;
+
+import com.google.auto.value.AutoValue;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * One page of models from ObjectDb.findPage or findChildrenPage. To get the next page, pass
+ * nextPageToken() back in as the page token. The token is an opaque, URL-safe string wrapping the
+ * Datastore query cursor, so it can be saved and used later to resume a long scan.
+ *
+ * nextPageToken() is null once the query is known to have no more results. A page can come back
+ * empty (with a null token) when the previous page happened to end right at the last result.
+ *
+ * Created by dave on 10/18/16.
+ */
+@AutoValue
+public abstract class Page<T extends Model> {
+  public abstract List<T> items();
+  @Nullable public abstract String nextPageToken();
+
+  Page() {}
+
+  static <T extends Model> Page<T> create(List<T> items, @Nullable String nextPageToken) {
+    return new AutoValue_Page<>(items, nextPageToken);
+  }
+
+  public boolean hasNextPage() {
+    return nextPageToken() != null;
+  }
+}
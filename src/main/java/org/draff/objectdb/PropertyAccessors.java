@@ -0,0 +1,331 @@
+package org.draff.objectdb;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Binds the model property methods and fields the entity mappers use to plain functional
+ * interfaces once, when a mapper is built, so that encoding or decoding an entity is a direct call
+ * per property rather than a Method.invoke with its varargs array and access checks.
+ *
+ * Methods that are accessible from this package are bound with LambdaMetafactory, which gives a
+ * call site the JIT can inline. Anything else (e.g. package-private methods of a model in another
+ * package) falls back to a MethodHandle, which is still much cheaper than reflection. Fields
+ * always use a MethodHandle. Long, boolean and double properties get accessors of their own that
+ * pass the primitive value through without boxing it.
+ *
+ * Created by dave on 10/18/16.
+ */
+class PropertyAccessors {
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+  private static final MethodType OBJECT_GETTER = MethodType.methodType(Object.class, Object.class);
+
+  private PropertyAccessors() {}
+
+  // Binds an instance method taking no arguments, e.g. a property getter.
+  static Function<Object, Object> getter(Method method) {
+    Function<Object, Object> bound = bindLambda(method, Function.class, "apply", OBJECT_GETTER);
+    if (bound != null) {
+      return bound;
+    }
+    MethodHandle generic = unreflect(method).asType(OBJECT_GETTER);
+    return target -> {
+      try {
+        return generic.invokeExact(target);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    };
+  }
+
+  // Binds an instance method taking one argument, e.g. a builder property setter.
+  static BiFunction<Object, Object, Object> setter(Method method) {
+    BiFunction<Object, Object, Object> bound = bindLambda(method, BiFunction.class, "apply",
+        MethodType.methodType(Object.class, Object.class, Object.class));
+    if (bound != null) {
+      return bound;
+    }
+    MethodHandle generic =
+        unreflect(method).asType(MethodType.methodType(Object.class, Object.class, Object.class));
+    return (target, value) -> {
+      try {
+        return generic.invokeExact(target, value);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    };
+  }
+
+  // Binds a static method taking no arguments, e.g. a static builder() method.
+  static Supplier<Object> supplier(Method method) {
+    Supplier<Object> bound =
+        bindLambda(method, Supplier.class, "get", MethodType.methodType(Object.class));
+    if (bound != null) {
+      return bound;
+    }
+    MethodHandle generic = unreflect(method).asType(MethodType.methodType(Object.class));
+    return () -> {
+      try {
+        return generic.invokeExact();
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    };
+  }
+
+  // Binds a static method of any arity, e.g. a static create(...) factory, to take its arguments
+  // as an array.
+  static Function<Object[], Object> spreadStatic(Method method) {
+    MethodHandle generic = unreflect(method)
+        .asSpreader(Object[].class, method.getParameterCount())
+        .asType(MethodType.methodType(Object.class, Object[].class));
+    return args -> {
+      try {
+        return generic.invokeExact(args);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    };
+  }
+
+  static Function<Object, Object> fieldGetter(Field field) {
+    MethodHandle generic = getterHandle(field).asType(OBJECT_GETTER);
+    return target -> {
+      try {
+        return generic.invokeExact(target);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    };
+  }
+
+  static BiConsumer<Object, Object> fieldSetter(Field field) {
+    MethodHandle generic = setterHandle(field)
+        .asType(MethodType.methodType(void.class, Object.class, Object.class));
+    return (target, value) -> {
+      try {
+        generic.invokeExact(target, value);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    };
+  }
+
+  // The accessors below read or write a primitive property without boxing it. Each takes either a
+  // method (a getter or builder setter) or a field.
+
+  static ToLongFunction<Object> longGetter(Member member) {
+    MethodType type = MethodType.methodType(long.class, Object.class);
+    ToLongFunction<Object> bound = bindLambda(member, ToLongFunction.class, "applyAsLong", type);
+    if (bound != null) {
+      return bound;
+    }
+    MethodHandle generic = getterHandle(member).asType(type);
+    return target -> {
+      try {
+        return (long) generic.invokeExact(target);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    };
+  }
+
+  static LongSetter longSetter(Member member) {
+    MethodType type = MethodType.methodType(void.class, Object.class, long.class);
+    LongSetter bound = bindLambda(member, LongSetter.class, "set", type);
+    if (bound != null) {
+      return bound;
+    }
+    MethodHandle generic = setterHandle(member).asType(type);
+    return (target, value) -> {
+      try {
+        generic.invokeExact(target, value);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    };
+  }
+
+  static BooleanGetter booleanGetter(Member member) {
+    MethodType type = MethodType.methodType(boolean.class, Object.class);
+    BooleanGetter bound = bindLambda(member, BooleanGetter.class, "get", type);
+    if (bound != null) {
+      return bound;
+    }
+    MethodHandle generic = getterHandle(member).asType(type);
+    return target -> {
+      try {
+        return (boolean) generic.invokeExact(target);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    };
+  }
+
+  static BooleanSetter booleanSetter(Member member) {
+    MethodType type = MethodType.methodType(void.class, Object.class, boolean.class);
+    BooleanSetter bound = bindLambda(member, BooleanSetter.class, "set", type);
+    if (bound != null) {
+      return bound;
+    }
+    MethodHandle generic = setterHandle(member).asType(type);
+    return (target, value) -> {
+      try {
+        generic.invokeExact(target, value);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    };
+  }
+
+  static ToDoubleFunction<Object> doubleGetter(Member member) {
+    MethodType type = MethodType.methodType(double.class, Object.class);
+    ToDoubleFunction<Object> bound =
+        bindLambda(member, ToDoubleFunction.class, "applyAsDouble", type);
+    if (bound != null) {
+      return bound;
+    }
+    MethodHandle generic = getterHandle(member).asType(type);
+    return target -> {
+      try {
+        return (double) generic.invokeExact(target);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    };
+  }
+
+  static DoubleSetter doubleSetter(Member member) {
+    MethodType type = MethodType.methodType(void.class, Object.class, double.class);
+    DoubleSetter bound = bindLambda(member, DoubleSetter.class, "set", type);
+    if (bound != null) {
+      return bound;
+    }
+    MethodHandle generic = setterHandle(member).asType(type);
+    return (target, value) -> {
+      try {
+        generic.invokeExact(target, value);
+      } catch(Throwable e) {
+        throw rethrow(e);
+      }
+    };
+  }
+
+  interface BooleanGetter {
+    boolean get(Object target);
+  }
+
+  interface LongSetter {
+    void set(Object target, long value);
+  }
+
+  interface BooleanSetter {
+    void set(Object target, boolean value);
+  }
+
+  interface DoubleSetter {
+    void set(Object target, double value);
+  }
+
+  private static MethodHandle getterHandle(Member member) {
+    if (member instanceof Method) {
+      return unreflect((Method) member);
+    }
+    try {
+      ((Field) member).setAccessible(true);
+      return LOOKUP.unreflectGetter((Field) member);
+    } catch(IllegalAccessException e) {
+      throw new ObjectDbException(e);
+    }
+  }
+
+  private static MethodHandle setterHandle(Member member) {
+    if (member instanceof Method) {
+      return unreflect((Method) member);
+    }
+    try {
+      ((Field) member).setAccessible(true);
+      return LOOKUP.unreflectSetter((Field) member);
+    } catch(IllegalAccessException e) {
+      throw new ObjectDbException(e);
+    }
+  }
+
+  private static MethodHandle unreflect(Method method) {
+    try {
+      method.setAccessible(true);
+      return LOOKUP.unreflect(method);
+    } catch(IllegalAccessException e) {
+      throw new ObjectDbException(e);
+    }
+  }
+
+  // Binds the method to the functional interface with LambdaMetafactory, or returns null if it's a
+  // field or a method that can't be bound that way, in which case the caller falls back to a
+  // method handle. The erased type is the interface method's type.
+  @SuppressWarnings("unchecked")
+  private static <T> T bindLambda(Member member, Class<?> functionalInterface,
+                                  String interfaceMethod, MethodType erasedType) {
+    if (!(member instanceof Method) || !canBindLambda((Method) member)) {
+      return null;
+    }
+    MethodHandle handle = unreflect((Method) member);
+    // Object results are boxed, but a primitive or void result is kept as the interface has it
+    // (dropping e.g. the builder that a builder setter returns).
+    MethodType instantiatedType = erasedType.returnType() == Object.class ?
+        handle.type().wrap() : handle.type().changeReturnType(erasedType.returnType());
+    try {
+      CallSite site = LambdaMetafactory.metafactory(LOOKUP, interfaceMethod,
+          MethodType.methodType(functionalInterface), erasedType, handle, instantiatedType);
+      return (T) site.getTarget().invoke();
+    } catch(Throwable e) {
+      return null;
+    }
+  }
+
+  // The class generated by LambdaMetafactory calls the target method as if from this class, so
+  // only bind methods that this class could call directly.
+  private static boolean canBindLambda(Method method) {
+    Class<?> declaringClass = method.getDeclaringClass();
+    if (packageName(declaringClass).equals(packageName(PropertyAccessors.class)) &&
+        declaringClass.getClassLoader() == PropertyAccessors.class.getClassLoader()) {
+      return !Modifier.isPrivate(method.getModifiers());
+    }
+    if (!Modifier.isPublic(method.getModifiers())) {
+      return false;
+    }
+    for (Class<?> c = declaringClass; c != null; c = c.getEnclosingClass()) {
+      if (!Modifier.isPublic(c.getModifiers())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String packageName(Class<?> clazz) {
+    String name = clazz.getName();
+    return name.substring(0, Math.max(0, name.lastIndexOf('.')));
+  }
+
+  private static RuntimeException rethrow(Throwable e) {
+    if (e instanceof RuntimeException) {
+      return (RuntimeException) e;
+    } else if (e instanceof Error) {
+      throw (Error) e;
+    }
+    return new ObjectDbException((Exception) e);
+  }
+}
@@ -0,0 +1,370 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.Property;
+import com.google.api.services.datastore.DatastoreV1.Value;
+
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.time.Instant;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+import javax.annotation.Nullable;
+
+import static org.draff.objectdb.PropertyAccessors.*;
+
+/**
+ * Encodes one model property as a Datastore property and decodes it back. The reflective mappers
+ * bind a codec per property when they're built, picked by the property's type, so each value goes
+ * straight between a typed accessor and the matching Value field: longs, booleans and doubles
+ * aren't boxed, and there's no ValueHelper instanceof or hasXxxValue chain per value. long[] and
+ * byte[] properties are stored as unindexed blobs (see ValueHelper.makeLongArrayValue). Any other
+ * type (e.g. a boxed Long) still goes through ValueHelper.
+ *
+ * Created by dave on 10/18/16.
+ */
+abstract class PropertyCodec {
+  final String name;
+  private final boolean indexed;
+
+  private PropertyCodec(String name, boolean indexed) {
+    this.name = name;
+    this.indexed = indexed;
+  }
+
+  /**
+   * Binds a codec for a property read through the getter (a method or field) and written through
+   * the setter (a builder method or field). The setter is null for mappers that only read() values,
+   * like the static factory mapper. The property is stored unindexed if the getter is marked
+   * @Unindexed.
+   */
+  static PropertyCodec bind(String name, Member getter, @Nullable Member setter) {
+    Class<?> type = getter instanceof Field ?
+        ((Field) getter).getType() : ((Method) getter).getReturnType();
+    boolean indexed = !((AnnotatedElement) getter).isAnnotationPresent(Unindexed.class);
+    if (type == long.class) {
+      return new LongCodec(name, indexed, longGetter(getter),
+          setter == null ? null : longSetter(setter));
+    } else if (type == boolean.class) {
+      return new BooleanCodec(name, indexed, booleanGetter(getter),
+          setter == null ? null : booleanSetter(setter));
+    } else if (type == double.class) {
+      return new DoubleCodec(name, indexed, doubleGetter(getter),
+          setter == null ? null : doubleSetter(setter));
+    } else if (type == String.class) {
+      return new StringCodec(name, indexed, objectGetter(getter), objectSetter(setter));
+    } else if (type == Instant.class) {
+      return new InstantCodec(name, indexed, objectGetter(getter), objectSetter(setter));
+    } else if (type == long[].class) {
+      return new LongArrayCodec(name, indexed, objectGetter(getter), objectSetter(setter));
+    } else if (type == byte[].class) {
+      return new ByteArrayCodec(name, indexed, objectGetter(getter), objectSetter(setter));
+    } else {
+      return new ValueHelperCodec(name, indexed, objectGetter(getter), objectSetter(setter));
+    }
+  }
+
+  // Adds the model's value for the property to the entity, unless it's null.
+  abstract void encode(Object model, Entity.Builder entity);
+
+  // Sets the property on the target (the model or its builder) from its Datastore value.
+  abstract void decode(Object target, Value value);
+
+  // The property's value as an object, e.g. for a static factory method argument.
+  abstract Object read(Value value);
+
+  void add(Entity.Builder entity, Value.Builder value) {
+    if (!indexed) {
+      value.setIndexed(false);
+    }
+    entity.addProperty(Property.newBuilder().setName(name).setValue(value));
+  }
+
+  IllegalArgumentException notA(String type, Value value) {
+    return new IllegalArgumentException(
+        "Expected a " + type + " Datastore value for property " + name + " but got " + value);
+  }
+
+  private static Function<Object, Object> objectGetter(Member getter) {
+    return getter instanceof Field ? fieldGetter((Field) getter) : getter((Method) getter);
+  }
+
+  private static BiConsumer<Object, Object> objectSetter(@Nullable Member setter) {
+    if (setter == null) {
+      return null;
+    } else if (setter instanceof Field) {
+      return fieldSetter((Field) setter);
+    }
+    return setter((Method) setter)::apply;
+  }
+
+  private static final class LongCodec extends PropertyCodec {
+    private final ToLongFunction<Object> getter;
+    private final LongSetter setter;
+
+    private LongCodec(String name, boolean indexed, ToLongFunction<Object> getter,
+                      LongSetter setter) {
+      super(name, indexed);
+      this.getter = getter;
+      this.setter = setter;
+    }
+
+    @Override
+    void encode(Object model, Entity.Builder entity) {
+      add(entity, Value.newBuilder().setIntegerValue(getter.applyAsLong(model)));
+    }
+
+    @Override
+    void decode(Object target, Value value) {
+      setter.set(target, longValue(value));
+    }
+
+    @Override
+    Object read(Value value) {
+      return longValue(value);
+    }
+
+    private long longValue(Value value) {
+      if (!value.hasIntegerValue()) {
+        throw notA("integer", value);
+      }
+      return value.getIntegerValue();
+    }
+  }
+
+  private static final class BooleanCodec extends PropertyCodec {
+    private final BooleanGetter getter;
+    private final BooleanSetter setter;
+
+    private BooleanCodec(String name, boolean indexed, BooleanGetter getter, BooleanSetter setter) {
+      super(name, indexed);
+      this.getter = getter;
+      this.setter = setter;
+    }
+
+    @Override
+    void encode(Object model, Entity.Builder entity) {
+      add(entity, Value.newBuilder().setBooleanValue(getter.get(model)));
+    }
+
+    @Override
+    void decode(Object target, Value value) {
+      setter.set(target, booleanValue(value));
+    }
+
+    @Override
+    Object read(Value value) {
+      return booleanValue(value);
+    }
+
+    private boolean booleanValue(Value value) {
+      if (!value.hasBooleanValue()) {
+        throw notA("boolean", value);
+      }
+      return value.getBooleanValue();
+    }
+  }
+
+  private static final class DoubleCodec extends PropertyCodec {
+    private final ToDoubleFunction<Object> getter;
+    private final DoubleSetter setter;
+
+    private DoubleCodec(String name, boolean indexed, ToDoubleFunction<Object> getter,
+                        DoubleSetter setter) {
+      super(name, indexed);
+      this.getter = getter;
+      this.setter = setter;
+    }
+
+    @Override
+    void encode(Object model, Entity.Builder entity) {
+      add(entity, Value.newBuilder().setDoubleValue(getter.applyAsDouble(model)));
+    }
+
+    @Override
+    void decode(Object target, Value value) {
+      setter.set(target, doubleValue(value));
+    }
+
+    @Override
+    Object read(Value value) {
+      return doubleValue(value);
+    }
+
+    private double doubleValue(Value value) {
+      if (!value.hasDoubleValue()) {
+        throw notA("double", value);
+      }
+      return value.getDoubleValue();
+    }
+  }
+
+  private static final class StringCodec extends PropertyCodec {
+    private final Function<Object, Object> getter;
+    private final BiConsumer<Object, Object> setter;
+
+    private StringCodec(String name, boolean indexed, Function<Object, Object> getter,
+                        BiConsumer<Object, Object> setter) {
+      super(name, indexed);
+      this.getter = getter;
+      this.setter = setter;
+    }
+
+    @Override
+    void encode(Object model, Entity.Builder entity) {
+      String value = (String) getter.apply(model);
+      if (value != null) {
+        add(entity, Value.newBuilder().setStringValue(value));
+      }
+    }
+
+    @Override
+    void decode(Object target, Value value) {
+      setter.accept(target, read(value));
+    }
+
+    @Override
+    Object read(Value value) {
+      if (!value.hasStringValue()) {
+        throw notA("string", value);
+      }
+      return value.getStringValue();
+    }
+  }
+
+  private static final class InstantCodec extends PropertyCodec {
+    private final Function<Object, Object> getter;
+    private final BiConsumer<Object, Object> setter;
+
+    private InstantCodec(String name, boolean indexed, Function<Object, Object> getter,
+                         BiConsumer<Object, Object> setter) {
+      super(name, indexed);
+      this.getter = getter;
+      this.setter = setter;
+    }
+
+    @Override
+    void encode(Object model, Entity.Builder entity) {
+      Instant value = (Instant) getter.apply(model);
+      if (value != null) {
+        add(entity, Value.newBuilder()
+            .setTimestampMicrosecondsValue(ValueHelper.epochMicros(value)));
+      }
+    }
+
+    @Override
+    void decode(Object target, Value value) {
+      setter.accept(target, read(value));
+    }
+
+    @Override
+    Object read(Value value) {
+      if (!value.hasTimestampMicrosecondsValue()) {
+        throw notA("timestamp", value);
+      }
+      return ValueHelper.fromEpochMicros(value.getTimestampMicrosecondsValue());
+    }
+  }
+
+  private static final class LongArrayCodec extends PropertyCodec {
+    private final Function<Object, Object> getter;
+    private final BiConsumer<Object, Object> setter;
+
+    private LongArrayCodec(String name, boolean indexed, Function<Object, Object> getter,
+                           BiConsumer<Object, Object> setter) {
+      super(name, indexed);
+      this.getter = getter;
+      this.setter = setter;
+    }
+
+    @Override
+    void encode(Object model, Entity.Builder entity) {
+      long[] value = (long[]) getter.apply(model);
+      if (value != null) {
+        add(entity, ValueHelper.makeLongArrayValue(value));
+      }
+    }
+
+    @Override
+    void decode(Object target, Value value) {
+      setter.accept(target, read(value));
+    }
+
+    @Override
+    Object read(Value value) {
+      if (!value.hasBlobValue()) {
+        throw notA("blob", value);
+      }
+      return ValueHelper.longArrayFromValue(value);
+    }
+  }
+
+  private static final class ByteArrayCodec extends PropertyCodec {
+    private final Function<Object, Object> getter;
+    private final BiConsumer<Object, Object> setter;
+
+    private ByteArrayCodec(String name, boolean indexed, Function<Object, Object> getter,
+                           BiConsumer<Object, Object> setter) {
+      super(name, indexed);
+      this.getter = getter;
+      this.setter = setter;
+    }
+
+    @Override
+    void encode(Object model, Entity.Builder entity) {
+      byte[] value = (byte[]) getter.apply(model);
+      if (value != null) {
+        add(entity, ValueHelper.makeBlobValue(value));
+      }
+    }
+
+    @Override
+    void decode(Object target, Value value) {
+      setter.accept(target, read(value));
+    }
+
+    @Override
+    Object read(Value value) {
+      if (!value.hasBlobValue()) {
+        throw notA("blob", value);
+      }
+      return value.getBlobValue().toByteArray();
+    }
+  }
+
+  // For the boxed types, which are rare enough in the models not to need codecs of their own.
+  private static final class ValueHelperCodec extends PropertyCodec {
+    private final Function<Object, Object> getter;
+    private final BiConsumer<Object, Object> setter;
+
+    private ValueHelperCodec(String name, boolean indexed, Function<Object, Object> getter,
+                             BiConsumer<Object, Object> setter) {
+      super(name, indexed);
+      this.getter = getter;
+      this.setter = setter;
+    }
+
+    @Override
+    void encode(Object model, Entity.Builder entity) {
+      Object value = getter.apply(model);
+      if (value != null) {
+        add(entity, ValueHelper.toValue(value).toBuilder());
+      }
+    }
+
+    @Override
+    void decode(Object target, Value value) {
+      setter.accept(target, read(value));
+    }
+
+    @Override
+    Object read(Value value) {
+      return ValueHelper.fromValue(value);
+    }
+  }
+}
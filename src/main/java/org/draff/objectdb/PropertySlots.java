@@ -0,0 +1,30 @@
+package org.draff.objectdb;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The positions of a mapper's properties by name, worked out once when the mapper is created. It
+ * lets the reflective mappers decode an entity in a single pass over its property list, looking
+ * up where each property goes, rather than building a map of the entity's properties first.
+ *
+ * Created by dave on 10/18/16.
+ */
+final class PropertySlots {
+  static final int NONE = -1;
+
+  private final Map<String, Integer> slots = new HashMap<>();
+
+  PropertySlots(List<String> names) {
+    for (int i = 0; i < names.size(); i++) {
+      slots.put(names.get(i), i);
+    }
+  }
+
+  // The position of the named property, or NONE if the mapper doesn't have it.
+  int slot(String name) {
+    Integer slot = slots.get(name);
+    return slot == null ? NONE : slot;
+  }
+}
@@ -0,0 +1,280 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.*;
+import com.google.api.services.datastore.client.DatastoreException;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.google.api.services.datastore.client.DatastoreHelper.KEY_PROPERTY_NAME;
+import static com.google.api.services.datastore.client.DatastoreHelper.getKeyComparator;
+
+/**
+ * Answers Datastore queries over entities that are already in memory, for the stand-ins for
+ * Datastore (InMemoryDatastore and JdbcDatastore).
+ *
+ * Queries support kind, AND-ed property and __key__ filters (including HAS_ANCESTOR), orders,
+ * projections (including keys-only), limits and cursors. Like Datastore, filters and orders only
+ * see indexed values, and entities without an ordered or projected property are left out.
+ * Results come back in batches of at most MAX_BATCH_SIZE so that callers page through them the
+ * way they would with Datastore.
+ *
+ * Created by dave on 10/18/16.
+ */
+final class QueryEvaluator {
+  static final int MAX_BATCH_SIZE = 500;
+  // The kind of the metadata query for all the kinds, which returns an entity named after each.
+  static final String KIND_KIND = "__kind__";
+  private static final Comparator<Key> KEY_ORDER = getKeyComparator();
+
+  private QueryEvaluator() {}
+
+  static String kind(Key key) {
+    return key.getPathElement(key.getPathElementCount() - 1).getKind();
+  }
+
+  static void checkSupported(Query query) throws DatastoreException {
+    if (query.getKindCount() != 1) {
+      throw new DatastoreException("runQuery", 400, "Queries must have exactly one kind", null);
+    }
+  }
+
+  // Answers the query from the candidates: entities of the query's kind, in any order, which have
+  // to include every entity that could match but can include ones that don't.
+  static QueryResultBatch run(Query query, Stream<Entity> candidates) throws DatastoreException {
+    return run(query, candidates, false);
+  }
+
+  // Like run, for a key-ordered query (see isKeyOrdered) whose candidates are already in key
+  // order, so that only as many of them are read as it takes to fill the batch.
+  static QueryResultBatch runInKeyOrder(Query query, Stream<Entity> candidates)
+      throws DatastoreException {
+    return run(query, candidates, true);
+  }
+
+  // Whether the query's results are in key order: it has no orders other than __key__ ascending.
+  static boolean isKeyOrdered(Query query) {
+    return query.getOrderList().stream().allMatch(order ->
+        order.getProperty().getName().equals(KEY_PROPERTY_NAME) &&
+            order.getDirection() == PropertyOrder.Direction.ASCENDING);
+  }
+
+  private static QueryResultBatch run(Query query, Stream<Entity> candidates, boolean inOrder)
+      throws DatastoreException {
+    Comparator<Entity> order = order(query);
+    Entity startAfter = query.hasStartCursor() ? fromCursor(query.getStartCursor()) : null;
+    int limit = query.hasLimit() ? query.getLimit() : Integer.MAX_VALUE;
+
+    Stream<Entity> matching = candidates
+        .filter(entity -> !query.hasFilter() || matches(entity, query.getFilter()))
+        .filter(entity -> hasOrderProperties(entity, query));
+    if (inOrder) {
+      // One match past the batch is enough to tell whether there are more results.
+      matching = matching
+          .filter(entity -> startAfter == null || order.compare(entity, startAfter) > 0)
+          .limit(Math.min(limit, MAX_BATCH_SIZE) + 1);
+    } else {
+      matching = matching
+          .sorted(order)
+          .filter(entity -> startAfter == null || order.compare(entity, startAfter) > 0);
+    }
+    List<Entity> matches = matching.collect(Collectors.toList());
+
+    int batchSize = Math.min(Math.min(limit, MAX_BATCH_SIZE), matches.size());
+    QueryResultBatch.MoreResultsType moreResults;
+    if (batchSize == matches.size()) {
+      moreResults = QueryResultBatch.MoreResultsType.NO_MORE_RESULTS;
+    } else if (batchSize == limit) {
+      moreResults = QueryResultBatch.MoreResultsType.MORE_RESULTS_AFTER_LIMIT;
+    } else {
+      moreResults = QueryResultBatch.MoreResultsType.NOT_FINISHED;
+    }
+
+    QueryResultBatch.Builder batch = QueryResultBatch.newBuilder().setMoreResults(moreResults);
+    boolean keysOnly = query.getProjectionCount() == 1 &&
+        query.getProjection(0).getProperty().getName().equals(KEY_PROPERTY_NAME);
+    batch.setEntityResultType(keysOnly ? EntityResult.ResultType.KEY_ONLY :
+        query.getProjectionCount() > 0 ? EntityResult.ResultType.PROJECTION :
+            EntityResult.ResultType.FULL);
+
+    Entity last = startAfter;
+    for (Entity entity : matches.subList(0, batchSize)) {
+      Optional<Entity> projected = project(entity, query);
+      if (projected.isPresent()) {
+        batch.addEntityResultBuilder().setEntity(projected.get());
+      }
+      last = entity;
+    }
+    if (last != null) {
+      batch.setEndCursor(toCursor(last, query));
+    }
+    return batch.build();
+  }
+
+  private static boolean matches(Entity entity, Filter filter) {
+    if (filter.hasCompositeFilter()) {
+      for (Filter subFilter : filter.getCompositeFilter().getFilterList()) {
+        if (!matches(entity, subFilter)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    PropertyFilter propertyFilter = filter.getPropertyFilter();
+    PropertyFilter.Operator operator = propertyFilter.getOperator();
+    if (propertyFilter.getProperty().getName().equals(KEY_PROPERTY_NAME)) {
+      Key key = propertyFilter.getValue().getKeyValue();
+      if (operator == PropertyFilter.Operator.HAS_ANCESTOR) {
+        return isAncestor(key, entity.getKey());
+      }
+      return satisfies(KEY_ORDER.compare(entity.getKey(), key), operator);
+    }
+
+    return indexedValues(entity, propertyFilter.getProperty().getName()).stream()
+        .anyMatch(value -> {
+          Integer comparison = compare(value, propertyFilter.getValue());
+          return comparison != null && satisfies(comparison, operator);
+        });
+  }
+
+  private static boolean satisfies(int comparison, PropertyFilter.Operator operator) {
+    switch (operator) {
+      case EQUAL:
+        return comparison == 0;
+      case LESS_THAN:
+        return comparison < 0;
+      case LESS_THAN_OR_EQUAL:
+        return comparison <= 0;
+      case GREATER_THAN:
+        return comparison > 0;
+      case GREATER_THAN_OR_EQUAL:
+        return comparison >= 0;
+      default:
+        throw new IllegalArgumentException("Unsupported filter operator " + operator);
+    }
+  }
+
+  private static boolean isAncestor(Key ancestor, Key key) {
+    if (ancestor.getPathElementCount() > key.getPathElementCount()) {
+      return false;
+    }
+    for (int i = 0; i < ancestor.getPathElementCount(); i++) {
+      if (!ancestor.getPathElement(i).equals(key.getPathElement(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // The values of the property that filters and orders can see: list values are flattened and
+  // unindexed values are left out.
+  private static List<Value> indexedValues(Entity entity, String propertyName) {
+    List<Value> values = new ArrayList<>();
+    for (Property property : entity.getPropertyList()) {
+      if (property.getName().equals(propertyName)) {
+        Value value = property.getValue();
+        List<Value> elements = value.getListValueCount() > 0 ? value.getListValueList() :
+            Collections.singletonList(value);
+        elements.stream().filter(v -> !v.hasIndexed() || v.getIndexed()).forEach(values::add);
+      }
+    }
+    return values;
+  }
+
+  // Compares two values of the same type, or returns null if they aren't comparable.
+  private static Integer compare(Value value1, Value value2) {
+    if (value1.hasIntegerValue() && value2.hasIntegerValue()) {
+      return Long.compare(value1.getIntegerValue(), value2.getIntegerValue());
+    } else if (value1.hasDoubleValue() && value2.hasDoubleValue()) {
+      return Double.compare(value1.getDoubleValue(), value2.getDoubleValue());
+    } else if (value1.hasStringValue() && value2.hasStringValue()) {
+      return value1.getStringValue().compareTo(value2.getStringValue());
+    } else if (value1.hasBooleanValue() && value2.hasBooleanValue()) {
+      return Boolean.compare(value1.getBooleanValue(), value2.getBooleanValue());
+    } else if (value1.hasTimestampMicrosecondsValue() && value2.hasTimestampMicrosecondsValue()) {
+      return Long.compare(value1.getTimestampMicrosecondsValue(),
+          value2.getTimestampMicrosecondsValue());
+    } else if (value1.hasKeyValue() && value2.hasKeyValue()) {
+      return KEY_ORDER.compare(value1.getKeyValue(), value2.getKeyValue());
+    } else if (value1.hasBlobValue() && value2.hasBlobValue()) {
+      return value1.getBlobValue().asReadOnlyByteBuffer()
+          .compareTo(value2.getBlobValue().asReadOnlyByteBuffer());
+    }
+    return null;
+  }
+
+  // The query's orders, then the key to break ties (which is also the order without any orders).
+  private static Comparator<Entity> order(Query query) {
+    Comparator<Entity> order = (entity1, entity2) -> 0;
+    for (PropertyOrder propertyOrder : query.getOrderList()) {
+      String name = propertyOrder.getProperty().getName();
+      Comparator<Entity> propertyComparator = name.equals(KEY_PROPERTY_NAME) ?
+          (entity1, entity2) -> KEY_ORDER.compare(entity1.getKey(), entity2.getKey()) :
+          (entity1, entity2) -> {
+            Integer comparison = compare(indexedValues(entity1, name).get(0),
+                indexedValues(entity2, name).get(0));
+            return comparison == null ? 0 : comparison;
+          };
+      if (propertyOrder.getDirection() == PropertyOrder.Direction.DESCENDING) {
+        propertyComparator = propertyComparator.reversed();
+      }
+      order = order.thenComparing(propertyComparator);
+    }
+    return order.thenComparing((entity1, entity2) ->
+        KEY_ORDER.compare(entity1.getKey(), entity2.getKey()));
+  }
+
+  private static boolean hasOrderProperties(Entity entity, Query query) {
+    return query.getOrderList().stream()
+        .map(order -> order.getProperty().getName())
+        .allMatch(name -> name.equals(KEY_PROPERTY_NAME) || !indexedValues(entity, name).isEmpty());
+  }
+
+  private static Optional<Entity> project(Entity entity, Query query) {
+    if (query.getProjectionCount() == 0) {
+      return Optional.of(entity);
+    }
+    Entity.Builder projected = Entity.newBuilder().setKey(entity.getKey());
+    for (PropertyExpression expression : query.getProjectionList()) {
+      String name = expression.getProperty().getName();
+      if (name.equals(KEY_PROPERTY_NAME)) {
+        continue;
+      }
+      List<Value> values = indexedValues(entity, name);
+      if (values.isEmpty()) {
+        return Optional.empty();
+      }
+      projected.addPropertyBuilder().setName(name).setValue(values.get(0));
+    }
+    return Optional.of(projected.build());
+  }
+
+  // A cursor is the last entity returned, cut down to its key and the properties the query orders
+  // by, which is all it takes to find where the next batch starts even if the entity is gone.
+  private static ByteString toCursor(Entity entity, Query query) {
+    Entity.Builder cursor = Entity.newBuilder().setKey(entity.getKey());
+    for (PropertyOrder order : query.getOrderList()) {
+      String name = order.getProperty().getName();
+      if (!name.equals(KEY_PROPERTY_NAME)) {
+        cursor.addPropertyBuilder().setName(name).setValue(indexedValues(entity, name).get(0));
+      }
+    }
+    return cursor.build().toByteString();
+  }
+
+  static Entity fromCursor(ByteString cursor) throws DatastoreException {
+    try {
+      return Entity.parseFrom(cursor);
+    } catch (InvalidProtocolBufferException e) {
+      throw new DatastoreException("runQuery", 400, "Invalid cursor", e);
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.EntityResult;
+import com.google.api.services.datastore.DatastoreV1.Query;
+import com.google.api.services.datastore.DatastoreV1.QueryResultBatch;
+import com.google.api.services.datastore.DatastoreV1.QueryResultBatch.MoreResultsType;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.protobuf.ByteString;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Iterates over the entities returned by a query one result batch at a time. As soon as a batch
+ * arrives, the next one is requested in the background (starting from the batch's end cursor), so
+ * the caller can work on the current batch while the next one is on its way. At most one batch
+ * beyond the current one is ever held in memory.
+ *
+ * If the query has a limit, it is the limit for the whole iteration rather than for each batch.
+ *
+ * Created by dave on 10/18/16.
+ */
+class QueryResultIterator implements Iterator<Entity> {
+  private final Function<RunQueryRequest, QueryResultBatch> runQuery;
+  private final Query query;
+  private final Executor executor;
+
+  private Iterator<EntityResult> currentBatch = Collections.emptyIterator();
+  private CompletableFuture<QueryResultBatch> nextBatch;
+  private int remaining;
+  private QueryResultBatch lastBatch;
+
+  QueryResultIterator(Function<RunQueryRequest, QueryResultBatch> runQuery, Query query,
+                      Executor executor) {
+    this.runQuery = runQuery;
+    this.query = query;
+    this.executor = executor;
+    this.remaining = query.hasLimit() ? query.getLimit() : Integer.MAX_VALUE;
+    this.nextBatch = fetch(query.toBuilder());
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (!currentBatch.hasNext() && nextBatch != null) {
+      QueryResultBatch batch = awaitNextBatch();
+      lastBatch = batch;
+      remaining -= batch.getEntityResultCount();
+      nextBatch = hasMore(batch) ? fetch(nextBatchQuery(batch)) : null;
+      currentBatch = batch.getEntityResultList().iterator();
+    }
+    return currentBatch.hasNext();
+  }
+
+  @Override
+  public Entity next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return currentBatch.next().getEntity();
+  }
+
+  // The cursor to resume the query from once this iterator has been used up, or null if the query
+  // is known to have no more results.
+  ByteString resumeCursor() {
+    if (hasNext()) {
+      throw new IllegalStateException("Results not used up yet");
+    }
+    if (lastBatch == null || lastBatch.getMoreResults() == MoreResultsType.NO_MORE_RESULTS) {
+      return null;
+    }
+    return lastBatch.getEndCursor();
+  }
+
+  // Drops the prefetched batch, e.g. when a stream over the results is closed early.
+  void cancel() {
+    if (nextBatch != null) {
+      nextBatch.cancel(false);
+      nextBatch = null;
+    }
+  }
+
+  // NOT_FINISHED means the batch was cut short (by size or time) before reaching the limit or the
+  // end of the results, so there are more to get from the end cursor.
+  private boolean hasMore(QueryResultBatch batch) {
+    return remaining > 0 && batch.getMoreResults() == MoreResultsType.NOT_FINISHED;
+  }
+
+  private Query.Builder nextBatchQuery(QueryResultBatch batch) {
+    Query.Builder batchQuery = query.toBuilder().setStartCursor(batch.getEndCursor());
+    if (query.hasLimit()) {
+      batchQuery.setLimit(remaining);
+    }
+    return batchQuery;
+  }
+
+  private CompletableFuture<QueryResultBatch> fetch(Query.Builder batchQuery) {
+    RunQueryRequest request = RunQueryRequest.newBuilder().setQuery(batchQuery).build();
+    return CompletableFuture.supplyAsync(() -> runQuery.apply(request), executor);
+  }
+
+  private QueryResultBatch awaitNextBatch() {
+    try {
+      return nextBatch.join();
+    } catch (CompletionException e) {
+      nextBatch = null;
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new ObjectDbException("Query failed", e.getCause());
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.client.DatastoreException;
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableSet;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * When DatastoreDb retries a failed Datastore RPC: up to maxAttempts tries in all, as long as the
+ * error's HTTP status code is one of retryableCodes. Between tries it waits a random time of up
+ * to initialBackoff, multiplied by backoffMultiplier for each try after the first and capped at
+ * maxBackoff ("full jitter"), so that clients that failed together don't all retry together.
+ *
+ * Only idempotent RPCs get retried: lookups, queries and commits of upserts, updates and deletes.
+ * Commits with inserts aren't retried, since an insert that actually went through the first time
+ * would fail (or with an auto id, be duplicated) the second time.
+ *
+ * Created by dave on 10/18/16.
+ */
+@AutoValue
+public abstract class RetryPolicy {
+  public static final ImmutableSet<Integer> DEFAULT_RETRYABLE_CODES =
+      ImmutableSet.of(429, 500, 502, 503, 504);
+
+  public abstract int maxAttempts();
+  public abstract Duration initialBackoff();
+  public abstract Duration maxBackoff();
+  public abstract double backoffMultiplier();
+  public abstract ImmutableSet<Integer> retryableCodes();
+
+  RetryPolicy() {}
+
+  public static RetryPolicy noRetries() {
+    return builder().maxAttempts(1).build();
+  }
+
+  public static Builder builder() {
+    return new AutoValue_RetryPolicy.Builder()
+        .maxAttempts(4)
+        .initialBackoff(Duration.ofMillis(100))
+        .maxBackoff(Duration.ofSeconds(5))
+        .backoffMultiplier(2)
+        .retryableCodes(DEFAULT_RETRYABLE_CODES);
+  }
+
+  boolean isRetryable(DatastoreException e) {
+    return retryableCodes().contains(e.getCode());
+  }
+
+  // How long to wait after the given (1-based) attempt failed.
+  long backoffMillis(int attempt) {
+    double ceiling = initialBackoff().toMillis() * Math.pow(backoffMultiplier(), attempt - 1);
+    long maxMillis = (long) Math.min(ceiling, maxBackoff().toMillis());
+    return maxMillis <= 0 ? 0 : ThreadLocalRandom.current().nextLong(maxMillis + 1);
+  }
+
+  @AutoValue.Builder
+  public abstract static class Builder {
+    public abstract Builder maxAttempts(int value);
+    public abstract Builder initialBackoff(Duration value);
+    public abstract Builder maxBackoff(Duration value);
+    public abstract Builder backoffMultiplier(double value);
+    public abstract Builder retryableCodes(ImmutableSet<Integer> value);
+
+    abstract RetryPolicy autoBuild();
+
+    public RetryPolicy build() {
+      RetryPolicy policy = autoBuild();
+      if (policy.maxAttempts() < 1) {
+        throw new IllegalArgumentException("maxAttempts must be at least 1");
+      }
+      if (policy.backoffMultiplier() < 1) {
+        throw new IllegalArgumentException("backoffMultiplier must be at least 1");
+      }
+      return policy;
+    }
+  }
+}
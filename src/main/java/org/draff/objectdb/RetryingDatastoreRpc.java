@@ -0,0 +1,154 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.*;
+import com.google.api.services.datastore.client.DatastoreException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Retries failed Datastore RPCs as the RetryPolicy says, and optionally hedges lookups: if a
+ * lookup hasn't come back after hedgeLookupsAfter, the same lookup is sent again and whichever
+ * response comes back first (without an error) is used. The slower one is left to finish on its
+ * own, since there's no way to cancel it.
+ *
+ * Created by dave on 10/18/16.
+ */
+class RetryingDatastoreRpc implements DatastoreRpc {
+  private static final Logger log = Logger.getLogger(RetryingDatastoreRpc.class.getName());
+
+  private final DatastoreRpc datastore;
+  private final RetryPolicy policy;
+  private final Duration hedgeLookupsAfter;
+  private final ExecutorService hedgeExecutor;
+
+  private interface Rpc<T> {
+    T call() throws DatastoreException;
+  }
+
+  RetryingDatastoreRpc(DatastoreRpc datastore, RetryPolicy policy, Duration hedgeLookupsAfter) {
+    this.datastore = datastore;
+    this.policy = policy;
+    this.hedgeLookupsAfter = hedgeLookupsAfter;
+    this.hedgeExecutor = hedgeLookupsAfter.isZero() ? null : Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("datastore-hedge-%d").build());
+  }
+
+  @Override
+  public LookupResponse lookup(LookupRequest request) throws DatastoreException {
+    return withRetries("lookup", true, () -> hedged(() -> datastore.lookup(request)));
+  }
+
+  @Override
+  public RunQueryResponse runQuery(RunQueryRequest request) throws DatastoreException {
+    return withRetries("runQuery", true, () -> datastore.runQuery(request));
+  }
+
+  @Override
+  public CommitResponse commit(CommitRequest request) throws DatastoreException {
+    return withRetries("commit", isIdempotent(request), () -> datastore.commit(request));
+  }
+
+  static boolean isIdempotent(CommitRequest request) {
+    Mutation mutation = request.getMutation();
+    return request.getMode() == CommitRequest.Mode.NON_TRANSACTIONAL &&
+        mutation.getInsertCount() == 0 && mutation.getInsertAutoIdCount() == 0;
+  }
+
+  private <T> T withRetries(String method, boolean idempotent, Rpc<T> rpc)
+      throws DatastoreException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return rpc.call();
+      } catch (DatastoreException e) {
+        if (!idempotent || attempt >= policy.maxAttempts() || !policy.isRetryable(e)) {
+          throw e;
+        }
+        long backoffMillis = policy.backoffMillis(attempt);
+        log.fine("Retrying " + method + " in " + backoffMillis + " ms after attempt " + attempt +
+            " failed with " + e.getCode() + ": " + e.getMessage());
+        try {
+          Thread.sleep(backoffMillis);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+      }
+    }
+  }
+
+  private <T> T hedged(Rpc<T> rpc) throws DatastoreException {
+    if (hedgeExecutor == null) {
+      return rpc.call();
+    }
+    CompletableFuture<T> first = callAsync(rpc);
+    try {
+      return first.get(hedgeLookupsAfter.toNanos(), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      return join(firstSuccessful(first, callAsync(rpc)));
+    } catch (ExecutionException e) {
+      throw unwrap(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ObjectDbException("Interrupted waiting for Datastore", e);
+    }
+  }
+
+  private <T> CompletableFuture<T> callAsync(Rpc<T> rpc) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return rpc.call();
+      } catch (DatastoreException e) {
+        throw new CompletionException(e);
+      }
+    }, hedgeExecutor);
+  }
+
+  // Completes with the first of the two to succeed, or with the first one's error if both fail.
+  private static <T> CompletableFuture<T> firstSuccessful(CompletableFuture<T> first,
+                                                          CompletableFuture<T> second) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    AtomicInteger failures = new AtomicInteger();
+    for (CompletableFuture<T> attempt : Arrays.asList(first, second)) {
+      attempt.whenComplete((value, e) -> {
+        if (e == null) {
+          result.complete(value);
+        } else if (failures.incrementAndGet() == 2) {
+          first.whenComplete((firstValue, firstError) -> result.completeExceptionally(firstError));
+        }
+      });
+    }
+    return result;
+  }
+
+  private static <T> T join(CompletableFuture<T> future) throws DatastoreException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      throw unwrap(e.getCause());
+    }
+  }
+
+  private static DatastoreException unwrap(Throwable e) {
+    if (e instanceof CompletionException) {
+      e = e.getCause();
+    }
+    if (e instanceof DatastoreException) {
+      return (DatastoreException) e;
+    }
+    if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    }
+    throw new ObjectDbException("Datastore call failed", e);
+  }
+}
@@ -5,10 +5,13 @@ import com.google.api.services.datastore.DatastoreV1.*;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static com.google.api.services.datastore.client.DatastoreHelper.*;
 import static org.draff.objectdb.EntityMapperHelper.*;
+import static org.draff.objectdb.PropertyAccessors.getter;
+import static org.draff.objectdb.PropertyAccessors.spreadStatic;
 import static org.draff.objectdb.ValueHelper.*;
 
 /**
@@ -17,9 +20,12 @@ import static org.draff.objectdb.ValueHelper.*;
 public class StaticFactoryEntityMapper implements EntityMapper {
   private final Class modelClass;
   private final Method factoryMethod;
-  private final Method idMethod;
+  private final Function<Object[], Object> factory;
+  private final Function<Object, Object> id;
   private final List<String> propertyNames;
-  private final List<Method> propertyMethods;
+  private final List<PropertyCodec> arguments;
+  private final PropertySlots argumentSlots;
+  private final int idArgument;
 
   public StaticFactoryEntityMapper(Class clazz, String staticFactoryMethod) {
     factoryMethod = method(clazz, staticFactoryMethod);
@@ -35,11 +41,14 @@ public class StaticFactoryEntityMapper implements EntityMapper {
     // Allow this to work for either the abstract @AutoValue class or the implementation class.
     propertyNames = abstractPropertyMethods(clazz);
 
-    propertyMethods = propertyNames.stream()
-        .filter(name -> !name.equals("id"))
-        .map(name -> method(clazz, name)).collect(Collectors.toList());
+    arguments = propertyNames.stream()
+        .map(name -> PropertyCodec.bind(name, method(clazz, name), null))
+        .collect(Collectors.toList());
+    argumentSlots = new PropertySlots(propertyNames);
+    idArgument = propertyNames.indexOf("id");
 
-    idMethod = method(clazz, "id");
+    factory = spreadStatic(factoryMethod);
+    id = getter(method(clazz, "id"));
     modelClass = clazz;
   }
 
@@ -76,30 +85,36 @@ public class StaticFactoryEntityMapper implements EntityMapper {
   public Entity toEntity(Model model) {
     Entity.Builder builder = Entity.newBuilder();
     builder.setKey(makeKey(entityKind(model.getClass()), getModelId(model)));
-    propertyMethods.forEach(method ->
-        builder.addProperty(makeProperty(method.getName(), toValue(invoke(method, model)))));
+    for (int i = 0; i < arguments.size(); i++) {
+      if (i != idArgument) {
+        arguments.get(i).encode(model, builder);
+      }
+    }
     return builder.build();
   }
 
   @Override
   public <T extends Model> T fromEntity(Entity entity, Class<T> clazz) {
-    return clazz.cast(invoke(factoryMethod, null, factoryArgs(entity)));
+    return clazz.cast(factory.apply(factoryArgs(entity)));
   }
 
   private Object[] factoryArgs(Entity entity) {
-    Map<String, Value> entityProperties = getPropertyMap(entity);
-    return propertyNames.stream().map(fieldName -> {
-      if (fieldName == "id") {
-        return entityId(entity);
-      } else {
-        return fromValue(entityProperties.get(fieldName));
+    Object[] args = new Object[propertyNames.size()];
+    for (Property property : entity.getPropertyList()) {
+      int slot = argumentSlots.slot(property.getName());
+      if (slot != PropertySlots.NONE && slot != idArgument) {
+        args[slot] = arguments.get(slot).read(property.getValue());
       }
-    }).toArray();
+    }
+    if (idArgument != -1) {
+      args[idArgument] = entityId(entity);
+    }
+    return args;
   }
 
   @Override
   public Object getModelId(Model model) {
-    return invoke(idMethod, model);
+    return id.apply(model);
   }
 
   @Override
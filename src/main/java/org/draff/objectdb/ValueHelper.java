@@ -2,9 +2,12 @@ package org.draff.objectdb;
 
 import com.google.api.services.datastore.DatastoreV1.Value;
 import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 
+import java.io.IOException;
 import java.time.Instant;
-import java.util.Date;
 
 import static com.google.api.services.datastore.client.DatastoreHelper.makeValue;
 
@@ -14,7 +17,11 @@ import static com.google.api.services.datastore.client.DatastoreHelper.makeValue
 public class ValueHelper {
   private static final ImmutableSet<Class> DATASTORE_TYPES =
       new ImmutableSet.Builder<Class>().add(String.class, Instant.class, Boolean.TYPE, Boolean.class,
-          Long.TYPE, Long.class, Double.TYPE, Double.class).build();
+          Long.TYPE, Long.class, Double.TYPE, Double.class, long[].class, byte[].class)
+          .build();
+
+  // The first byte of a packed long[] blob, so that the format can change later.
+  private static final byte PACKED_LONGS_FORMAT = 1;
 
   public static boolean isDatastoreType(Class clazz) {
     return DATASTORE_TYPES.contains(clazz);
@@ -36,13 +43,90 @@ public class ValueHelper {
     } else if (value.hasBooleanValue()) {
       return value.getBooleanValue();
     } else if (value.hasTimestampMicrosecondsValue()) {
-      return Instant.ofEpochMilli(value.getTimestampMicrosecondsValue() / 1000L);
+      return fromEpochMicros(value.getTimestampMicrosecondsValue());
+    } else if (value.hasBlobValue()) {
+      // Only the model property's type says whether a blob holds packed longs, so give the bytes.
+      return value.getBlobValue().toByteArray();
     } else {
       throw new IllegalArgumentException(
           "Not configured to convert Datastore value " + value);
     }
   }
 
+  // Datastore keeps timestamps to the microsecond, so these round an Instant down to a whole
+  // microsecond rather than going through java.util.Date, which would drop everything below a
+  // millisecond.
+  public static long epochMicros(Instant instant) {
+    return Math.addExact(Math.multiplyExact(instant.getEpochSecond(), 1000000L),
+        instant.getNano() / 1000);
+  }
+
+  public static Instant fromEpochMicros(long micros) {
+    return Instant.ofEpochSecond(Math.floorDiv(micros, 1000000L),
+        Math.floorMod(micros, 1000000L) * 1000L);
+  }
+
+  // Blobs are stored unindexed: Datastore only allows indexed blobs of up to 500 bytes, and
+  // nothing queries them anyway.
+  public static Value.Builder makeBlobValue(byte[] bytes) {
+    return Value.newBuilder().setBlobValue(ByteString.copyFrom(bytes)).setIndexed(false);
+  }
+
+  /**
+   * Packs the longs into an unindexed blob: a format byte, the count, then each long as the
+   * zigzag varint of its difference from the one before. Sorted ids, like a page of follower
+   * ids, then take two or three bytes each rather than eight, so a page of 5000 fits easily in
+   * one entity. The order of the longs is kept, sorted or not.
+   */
+  public static Value.Builder makeLongArrayValue(long[] longs) {
+    int size = 1 + CodedOutputStream.computeUInt32SizeNoTag(longs.length);
+    long previous = 0;
+    for (long l : longs) {
+      size += CodedOutputStream.computeSInt64SizeNoTag(l - previous);
+      previous = l;
+    }
+
+    byte[] packed = new byte[size];
+    CodedOutputStream out = CodedOutputStream.newInstance(packed);
+    try {
+      out.writeRawByte(PACKED_LONGS_FORMAT);
+      out.writeUInt32NoTag(longs.length);
+      previous = 0;
+      for (long l : longs) {
+        out.writeSInt64NoTag(l - previous);
+        previous = l;
+      }
+      out.checkNoSpaceLeft();
+    } catch(IOException e) {
+      throw new ObjectDbException(e);
+    }
+    return makeBlobValue(packed);
+  }
+
+  public static long[] longArrayFromValue(Value value) {
+    ByteString blob = value.getBlobValue();
+    CodedInputStream in = blob.newCodedInput();
+    try {
+      byte format = in.readRawByte();
+      if (format != PACKED_LONGS_FORMAT) {
+        throw new IllegalArgumentException("Unknown packed long array format " + format);
+      }
+      int count = in.readUInt32();
+      if (count < 0 || count > blob.size()) {
+        throw new IllegalArgumentException("Packed long array can't hold " + count + " longs");
+      }
+      long[] longs = new long[count];
+      long previous = 0;
+      for (int i = 0; i < count; i++) {
+        previous += in.readSInt64();
+        longs[i] = previous;
+      }
+      return longs;
+    } catch(IOException e) {
+      throw new IllegalArgumentException("Malformed packed long array", e);
+    }
+  }
+
   private static Value.Builder toValueBuilder(Object object) {
     if (object instanceof Long) {
       return makeValue((Long)object);
@@ -53,7 +137,11 @@ public class ValueHelper {
     } else if (object instanceof Boolean) {
       return makeValue((Boolean)object);
     } else if (object instanceof Instant) {
-      return makeValue(new Date(((Instant) object).toEpochMilli()));
+      return Value.newBuilder().setTimestampMicrosecondsValue(epochMicros((Instant) object));
+    } else if (object instanceof long[]) {
+      return makeLongArrayValue((long[]) object);
+    } else if (object instanceof byte[]) {
+      return makeBlobValue((byte[]) object);
     } else {
       throw new IllegalArgumentException(
           "Can't make Datastore value for " + object.getClass() + ": " + object);
@@ -0,0 +1,623 @@
+package org.draff.objectdb.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a concrete EntityMapper for each model class annotated with @GenerateEntityMapper.
+ *
+ * The generated mappers do the same thing as BuilderEntityMapper and StaticFactoryEntityMapper,
+ * but as straight-line code: every property is read and written with a direct, typed call, and
+ * decoding walks the entity's property list once with a switch on the property name. There is no
+ * reflection at runtime, so there's no warm-up cost and nothing the JIT can't inline.
+ *
+ * For models with a builder it also generates a LazyView_[ModelName] subclass of the model, which
+ * keeps the entity and decodes each property only when it's read (see
+ * EntityMapper.fromEntityLazily).
+ *
+ * This class is compiled in its own step before the rest of the sources (see pom.xml), so it can
+ * only depend on the JDK.
+ *
+ * Created by dave on 10/18/16.
+ */
+public class EntityMapperProcessor extends AbstractProcessor {
+  private static final String ANNOTATION = "org.draff.objectdb.GenerateEntityMapper";
+  private static final String UNINDEXED = "org.draff.objectdb.Unindexed";
+  private static final String MAPPER_PREFIX = "EntityMapper_";
+  private static final String LAZY_VIEW_PREFIX = "LazyView_";
+
+  @Override
+  public Set<String> getSupportedAnnotationTypes() {
+    return Collections.singleton(ANNOTATION);
+  }
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    for (TypeElement annotation : annotations) {
+      for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+        if (element.getKind() != ElementKind.CLASS) {
+          error(element, "@GenerateEntityMapper only applies to classes");
+          continue;
+        }
+        try {
+          generate((TypeElement) element);
+        } catch(IllegalArgumentException e) {
+          error(element, e.getMessage());
+        } catch(IOException e) {
+          error(element, "Could not write entity mapper: " + e);
+        }
+      }
+    }
+    return true;
+  }
+
+  private void generate(TypeElement model) throws IOException {
+    ModelInfo info = new ModelInfo(model);
+    writeSource(model, info.qualified(info.mapperName), new MapperWriter(info).write());
+    if (info.hasLazyView()) {
+      writeSource(model, info.qualified(info.lazyViewName), new LazyViewWriter(info).write());
+    }
+  }
+
+  private void writeSource(TypeElement model, String qualifiedName, String source)
+      throws IOException {
+    try (Writer writer = processingEnv.getFiler()
+        .createSourceFile(qualifiedName, model).openWriter()) {
+      writer.write(source);
+    }
+  }
+
+  private void error(Element element, String message) {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+  }
+
+  // The types that ValueHelper knows how to store.
+  private enum PropertyType {
+    LONG("long", "getIntegerValue()", "0L"),
+    BOOLEAN("boolean", "getBooleanValue()", "false"),
+    DOUBLE("double", "getDoubleValue()", "0.0"),
+    BOXED_LONG("java.lang.Long", "getIntegerValue()", "null"),
+    BOXED_BOOLEAN("java.lang.Boolean", "getBooleanValue()", "null"),
+    BOXED_DOUBLE("java.lang.Double", "getDoubleValue()", "null"),
+    STRING("java.lang.String", "getStringValue()", "null"),
+    INSTANT("java.time.Instant", "getTimestampMicrosecondsValue()", "null"),
+    LONG_ARRAY("long[]", "getBlobValue()", "null"),
+    BYTE_ARRAY("byte[]", "getBlobValue().toByteArray()", "null");
+
+    private final String typeName;
+    private final String valueGetter;
+    private final String defaultValue;
+
+    PropertyType(String typeName, String valueGetter, String defaultValue) {
+      this.typeName = typeName;
+      this.valueGetter = valueGetter;
+      this.defaultValue = defaultValue;
+    }
+
+    private boolean isPrimitive() {
+      return typeName.indexOf('.') < 0 && !typeName.endsWith("[]");
+    }
+
+    private String decode(String valueVar) {
+      if (this == INSTANT) {
+        return "org.draff.objectdb.ValueHelper.fromEpochMicros(" + valueVar + "." + valueGetter +
+            ")";
+      } else if (this == LONG_ARRAY) {
+        return "org.draff.objectdb.ValueHelper.longArrayFromValue(" + valueVar + ")";
+      }
+      return valueVar + "." + valueGetter;
+    }
+
+    private String encode(String expression) {
+      if (this == INSTANT) {
+        return "Value.newBuilder().setTimestampMicrosecondsValue(" +
+            "org.draff.objectdb.ValueHelper.epochMicros(" + expression + "))";
+      } else if (this == LONG_ARRAY) {
+        return "org.draff.objectdb.ValueHelper.makeLongArrayValue(" + expression + ")";
+      } else if (this == BYTE_ARRAY) {
+        return "org.draff.objectdb.ValueHelper.makeBlobValue(" + expression + ")";
+      }
+      return "makeValue(" + expression + ")";
+    }
+
+    private static String supportedTypeNames() {
+      List<String> names = new ArrayList<>();
+      for (PropertyType propertyType : values()) {
+        names.add(propertyType.typeName);
+      }
+      return String.join(", ", names);
+    }
+
+    private static PropertyType forType(TypeMirror type) {
+      String name = type.toString();
+      for (PropertyType propertyType : values()) {
+        if (propertyType.typeName.equals(name)) {
+          return propertyType;
+        }
+      }
+      return null;
+    }
+  }
+
+  private static class Property {
+    private final String name;
+    private final PropertyType type;
+    private final boolean indexed;
+
+    private Property(String name, PropertyType type, boolean indexed) {
+      this.name = name;
+      this.type = type;
+      this.indexed = indexed;
+    }
+  }
+
+  private static class ModelInfo {
+    private final String packageName;
+    private final String modelName;
+    private final String mapperName;
+    private final String lazyViewName;
+    private final String kind;
+    // Properties stored on the entity, i.e. everything except id.
+    private final List<Property> properties = new ArrayList<>();
+    private PropertyType idType;
+    private boolean idIsProperty;
+    private String builderTypeName;
+    private List<String> factoryParameters;
+    // Whether the model has a toBuilder() method for the lazy view to implement.
+    private boolean hasToBuilder;
+
+    private ModelInfo(TypeElement model) {
+      if (!model.getModifiers().contains(Modifier.ABSTRACT)) {
+        throw new IllegalArgumentException(
+            "@GenerateEntityMapper expects an abstract @AutoValue class");
+      }
+      packageName = packageOf(model).getQualifiedName().toString();
+      modelName = model.getQualifiedName().toString();
+      mapperName = MAPPER_PREFIX + flatName(model);
+      lazyViewName = LAZY_VIEW_PREFIX + flatName(model);
+      kind = model.getSimpleName().toString();
+
+      for (ExecutableElement method : ElementFilter.methodsIn(model.getEnclosedElements())) {
+        if (method.getModifiers().contains(Modifier.STATIC) || !method.getParameters().isEmpty()) {
+          continue;
+        }
+        String name = method.getSimpleName().toString();
+        PropertyType type = PropertyType.forType(method.getReturnType());
+        if (name.equals("id")) {
+          if (type == null || (type != PropertyType.LONG && type != PropertyType.STRING)) {
+            throw new IllegalArgumentException("id() must return long or String");
+          }
+          idType = type;
+          idIsProperty = method.getModifiers().contains(Modifier.ABSTRACT);
+        } else if (method.getModifiers().contains(Modifier.ABSTRACT) && type != null) {
+          properties.add(new Property(name, type, !hasAnnotation(method, UNINDEXED)));
+        } else if (method.getModifiers().contains(Modifier.ABSTRACT)) {
+          if (!name.equals("toBuilder")) {
+            // Otherwise the property would be left out of the entity, and building the model
+            // from it would fail at runtime.
+            throw new IllegalArgumentException("Property " + name + " has type " +
+                method.getReturnType() + ", which can't be stored. Supported types are " +
+                PropertyType.supportedTypeNames());
+          }
+          hasToBuilder = true;
+        }
+      }
+      if (idType == null) {
+        throw new IllegalArgumentException("Models need an id() method to be stored as entities");
+      }
+
+      ExecutableElement builderMethod = staticMethod(model, "builder");
+      ExecutableElement factoryMethod = staticMethod(model, "create");
+      if (builderMethod != null && builderMethod.getParameters().isEmpty()) {
+        builderTypeName = builderMethod.getReturnType().toString();
+      } else if (factoryMethod != null) {
+        factoryParameters = new ArrayList<>();
+        for (VariableElement parameter : factoryMethod.getParameters()) {
+          factoryParameters.add(parameter.getSimpleName().toString());
+        }
+        for (Property property : properties) {
+          if (!factoryParameters.contains(property.name)) {
+            throw new IllegalArgumentException(
+                "create() has no parameter for property " + property.name);
+          }
+        }
+        for (String parameter : factoryParameters) {
+          if (!(parameter.equals("id") && idIsProperty) && propertyNamed(parameter) == null) {
+            throw new IllegalArgumentException(
+                "create() parameter " + parameter + " doesn't match a property");
+          }
+        }
+      } else {
+        throw new IllegalArgumentException(
+            "@GenerateEntityMapper needs a static builder() or create(...) method");
+      }
+    }
+
+    private String qualified(String name) {
+      return packageName.isEmpty() ? name : packageName + "." + name;
+    }
+
+    // Lazy views are only made for models with a builder, which they use to build the equivalent
+    // eagerly decoded model for equals, hashCode and toString.
+    private boolean hasLazyView() {
+      return builderTypeName != null;
+    }
+
+    private static boolean hasAnnotation(Element element, String annotationName) {
+      for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+        if (annotation.getAnnotationType().toString().equals(annotationName)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static ExecutableElement staticMethod(TypeElement model, String name) {
+      for (ExecutableElement method : ElementFilter.methodsIn(model.getEnclosedElements())) {
+        if (method.getModifiers().contains(Modifier.STATIC) &&
+            method.getSimpleName().contentEquals(name) &&
+            method.getReturnType().getKind() == TypeKind.DECLARED) {
+          return method;
+        }
+      }
+      return null;
+    }
+
+    private static PackageElement packageOf(Element element) {
+      while (element.getKind() != ElementKind.PACKAGE) {
+        element = element.getEnclosingElement();
+      }
+      return (PackageElement) element;
+    }
+
+    // Same convention as AutoValue: Outer.Inner becomes Outer_Inner.
+    private static String flatName(TypeElement model) {
+      String name = model.getSimpleName().toString();
+      Element enclosing = model.getEnclosingElement();
+      while (enclosing.getKind() != ElementKind.PACKAGE) {
+        name = enclosing.getSimpleName() + "_" + name;
+        enclosing = enclosing.getEnclosingElement();
+      }
+      return name;
+    }
+
+    private Property propertyNamed(String name) {
+      for (Property property : properties) {
+        if (property.name.equals(name)) {
+          return property;
+        }
+      }
+      return null;
+    }
+  }
+
+  private abstract static class SourceWriter {
+    final ModelInfo info;
+    private final StringBuilder out = new StringBuilder();
+
+    SourceWriter(ModelInfo info) {
+      this.info = info;
+    }
+
+    abstract String write();
+
+    void line(String text) {
+      out.append(text).append('\n');
+    }
+
+    String source() {
+      return out.toString();
+    }
+  }
+
+  private static class MapperWriter extends SourceWriter {
+    private MapperWriter(ModelInfo info) {
+      super(info);
+    }
+
+    @Override
+    String write() {
+      if (!info.packageName.isEmpty()) {
+        line("package " + info.packageName + ";");
+        line("");
+      }
+      line("import com.google.api.services.datastore.DatastoreV1.Entity;");
+      line("import com.google.api.services.datastore.DatastoreV1.Key;");
+      line("import com.google.api.services.datastore.DatastoreV1.Property;");
+      line("import com.google.api.services.datastore.DatastoreV1.Value;");
+      line("");
+      line("import org.draff.objectdb.EntityMapper;");
+      line("import org.draff.objectdb.Model;");
+      line("");
+      line("import static com.google.api.services.datastore.client.DatastoreHelper.makeKey;");
+      line("import static com.google.api.services.datastore.client.DatastoreHelper.makeProperty;");
+      line("import static com.google.api.services.datastore.client.DatastoreHelper.makeValue;");
+      line("");
+      line("/**");
+      line(" * Entity mapper for " + info.modelName + ".");
+      line(" * Generated by " + EntityMapperProcessor.class.getName() + ". Do not edit.");
+      line(" */");
+      line("public enum " + info.mapperName + " implements EntityMapper {");
+      line("  INSTANCE;");
+      line("");
+      writeToEntity();
+      line("");
+      writeFromEntity();
+      line("");
+      if (info.hasLazyView()) {
+        line("  @Override");
+        line("  public <T extends Model> T fromEntityLazily(Entity entity, Class<T> clazz) {");
+        line("    return clazz.cast(new " + info.lazyViewName + "(entity));");
+        line("  }");
+        line("");
+      }
+      line("  @Override");
+      line("  public Object getModelId(Model model) {");
+      line("    return ((" + info.modelName + ") model).id();");
+      line("  }");
+      line("");
+      line("  @Override");
+      line("  public String entityKind(Class clazz) {");
+      line("    return \"" + info.kind + "\";");
+      line("  }");
+      line("}");
+      return source();
+    }
+
+    private void writeToEntity() {
+      line("  @Override");
+      line("  public Entity toEntity(Model object) {");
+      line("    " + info.modelName + " model = (" + info.modelName + ") object;");
+      line("    Entity.Builder entity = Entity.newBuilder();");
+      line("    entity.setKey(makeKey(\"" + info.kind + "\", model.id()));");
+      for (Property property : info.properties) {
+        String get = "model." + property.name + "()";
+        String value = property.type.encode(get) + (property.indexed ? "" : ".setIndexed(false)");
+        String add = "entity.addProperty(makeProperty(\"" + property.name + "\", " + value + "));";
+        if (property.type.isPrimitive()) {
+          line("    " + add);
+        } else {
+          line("    if (" + get + " != null) {");
+          line("      " + add);
+          line("    }");
+        }
+      }
+      line("    return entity.build();");
+      line("  }");
+    }
+
+    private void writeFromEntity() {
+      line("  @Override");
+      line("  public <T extends Model> T fromEntity(Entity entity, Class<T> clazz) {");
+      if (info.idIsProperty) {
+        line("    Key key = entity.getKey();");
+        line("    Key.PathElement element = key.getPathElement(key.getPathElementCount() - 1);");
+      }
+      String keyId = info.idType == PropertyType.LONG ? "element.getId()" : "element.getName()";
+
+      if (info.builderTypeName != null) {
+        line("    " + info.builderTypeName + " builder = " + info.modelName + ".builder();");
+        if (info.idIsProperty) {
+          line("    builder.id(" + keyId + ");");
+        }
+      } else {
+        for (String parameter : info.factoryParameters) {
+          if (parameter.equals("id") && info.idIsProperty) {
+            line("    " + info.idType.typeName + " id = " + keyId + ";");
+          } else {
+            PropertyType type = info.propertyNamed(parameter).type;
+            line("    " + type.typeName + " " + parameter + " = " + type.defaultValue + ";");
+          }
+        }
+      }
+
+      line("    for (Property property : entity.getPropertyList()) {");
+      line("      Value value = property.getValue();");
+      line("      switch (property.getName()) {");
+      for (Property property : info.properties) {
+        line("        case \"" + property.name + "\":");
+        if (info.builderTypeName != null) {
+          line("          builder." + property.name + "(" + property.type.decode("value") + ");");
+        } else {
+          line("          " + property.name + " = " + property.type.decode("value") + ";");
+        }
+        line("          break;");
+      }
+      line("        default:");
+      line("          break;");
+      line("      }");
+      line("    }");
+
+      if (info.builderTypeName != null) {
+        line("    return clazz.cast(builder.build());");
+      } else {
+        line("    return clazz.cast(" + info.modelName + ".create(" +
+            String.join(", ", info.factoryParameters) + "));");
+      }
+      line("  }");
+    }
+  }
+
+  // Writes a subclass of the model that keeps the entity and decodes each property from it only
+  // when the property is read. It finds where each property is in the entity's property list the
+  // first time any property is read. Decoded objects (strings, boxed values, instants and arrays)
+  // are kept so that reading them again doesn't decode them again, while primitives are read
+  // straight from the entity each time since that doesn't allocate anything.
+  private static class LazyViewWriter extends SourceWriter {
+    private LazyViewWriter(ModelInfo info) {
+      super(info);
+    }
+
+    @Override
+    String write() {
+      if (!info.packageName.isEmpty()) {
+        line("package " + info.packageName + ";");
+        line("");
+      }
+      line("import com.google.api.services.datastore.DatastoreV1.Entity;");
+      if (info.idIsProperty) {
+        line("import com.google.api.services.datastore.DatastoreV1.Key;");
+      }
+      line("import com.google.api.services.datastore.DatastoreV1.Property;");
+      line("import com.google.api.services.datastore.DatastoreV1.Value;");
+      line("import com.google.protobuf.ByteString;");
+      line("");
+      line("import java.util.Arrays;");
+      line("import java.util.List;");
+      line("");
+      line("/**");
+      line(" * Lazily decoded view of an entity of " + info.modelName + ".");
+      line(" * Generated by " + EntityMapperProcessor.class.getName() + ". Do not edit.");
+      line(" */");
+      line("final class " + info.lazyViewName + " extends " + info.modelName + " {");
+      // Property names as bytes, so finding the properties doesn't decode a String per name.
+      line("  private static final ByteString[] NAMES = {");
+      for (Property property : info.properties) {
+        line("      ByteString.copyFromUtf8(\"" + property.name + "\"),");
+      }
+      line("  };");
+      line("");
+      line("  private final Entity entity;");
+      line("  private volatile int[] positions;");
+      for (Property property : info.properties) {
+        if (!property.type.isPrimitive()) {
+          line("  private volatile " + property.type.typeName + " " + decodedField(property) + ";");
+        }
+      }
+      line("");
+      line("  " + info.lazyViewName + "(Entity entity) {");
+      line("    this.entity = entity;");
+      line("  }");
+      line("");
+      if (info.idIsProperty) {
+        String keyId = info.idType == PropertyType.LONG ? "getId()" : "getName()";
+        line("  @Override");
+        line("  public " + info.idType.typeName + " id() {");
+        line("    Key key = entity.getKey();");
+        line("    return key.getPathElement(key.getPathElementCount() - 1)." + keyId + ";");
+        line("  }");
+        line("");
+      }
+      for (int i = 0; i < info.properties.size(); i++) {
+        Property property = info.properties.get(i);
+        line("  @Override");
+        line("  public " + property.type.typeName + " " + property.name + "() {");
+        if (property.type.isPrimitive()) {
+          line("    Value value = value(" + i + ");");
+          line("    return value == null ? " + property.type.defaultValue + " : " +
+              property.type.decode("value") + ";");
+        } else {
+          // A missing property stays null, so it's looked for again, but that's cheap.
+          line("    " + property.type.typeName + " decoded = " + decodedField(property) + ";");
+          line("    if (decoded == null) {");
+          line("      Value value = value(" + i + ");");
+          line("      if (value == null) {");
+          line("        return null;");
+          line("      }");
+          line("      decoded = " + property.type.decode("value") + ";");
+          line("      " + decodedField(property) + " = decoded;");
+          line("    }");
+          line("    return decoded;");
+        }
+        line("  }");
+        line("");
+      }
+      if (info.hasToBuilder) {
+        line("  @Override");
+        line("  public " + info.builderTypeName + " toBuilder() {");
+        line("    return decodedBuilder();");
+        line("  }");
+        line("");
+      }
+      line("  @Override");
+      line("  public boolean equals(Object o) {");
+      line("    return o == this || decodedBuilder().build().equals(o);");
+      line("  }");
+      line("");
+      line("  @Override");
+      line("  public int hashCode() {");
+      line("    return decodedBuilder().build().hashCode();");
+      line("  }");
+      line("");
+      line("  @Override");
+      line("  public String toString() {");
+      line("    return decodedBuilder().build().toString();");
+      line("  }");
+      line("");
+      writeDecodedBuilder();
+      line("");
+      writeValue();
+      line("}");
+      return source();
+    }
+
+    private static String decodedField(Property property) {
+      return "decoded" + Character.toUpperCase(property.name.charAt(0)) +
+          property.name.substring(1);
+    }
+
+    private void writeDecodedBuilder() {
+      line("  private " + info.builderTypeName + " decodedBuilder() {");
+      line("    " + info.builderTypeName + " builder = " + info.modelName + ".builder();");
+      if (info.idIsProperty) {
+        line("    builder.id(id());");
+      }
+      for (Property property : info.properties) {
+        line("    builder." + property.name + "(" + property.name + "());");
+      }
+      line("    return builder;");
+      line("  }");
+    }
+
+    private void writeValue() {
+      line("  private Value value(int property) {");
+      line("    int[] positions = this.positions;");
+      line("    if (positions == null) {");
+      line("      positions = new int[" + info.properties.size() + "];");
+      line("      Arrays.fill(positions, -1);");
+      line("      List<Property> properties = entity.getPropertyList();");
+      line("      for (int i = 0; i < properties.size(); i++) {");
+      // The mappers write the properties in model order, so the search starts where the
+      // property would be if they're all there.
+      line("        ByteString name = properties.get(i).getNameBytes();");
+      line("        for (int j = 0; j < NAMES.length; j++) {");
+      line("          int candidate = (i + j) % NAMES.length;");
+      line("          if (NAMES[candidate].equals(name)) {");
+      line("            positions[candidate] = i;");
+      line("            break;");
+      line("          }");
+      line("        }");
+      line("      }");
+      line("      this.positions = positions;");
+      line("    }");
+      line("    int position = positions[property];");
+      line("    return position < 0 ? null : entity.getProperty(position).getValue();");
+      line("  }");
+    }
+  }
+}
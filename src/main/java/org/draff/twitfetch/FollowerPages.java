@@ -0,0 +1,177 @@
+package org.draff.twitfetch;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The binary format FollowersStorer stores each page of follower or friend ids in. Version 1 is:
+ *
+ *   byte     format version (1)
+ *   byte     flags: DEFLATED if the ids are deflate-compressed
+ *   varint   the number of ids
+ *   varints  the ids in ascending order: the first one, then each one's difference from the one
+ *            before it (all deflated together if flagged)
+ *
+ * The varints are protocol buffers' unsigned varints, written and read with CodedOutputStream and
+ * CodedInputStream.
+ * Sorting makes the differences small, so ids take 3-8 bytes rather than the 11-20 of a decimal
+ * line, but the order Twitter returned them in isn't kept.
+ *
+ * Created by dave on 10/18/16.
+ */
+public final class FollowerPages {
+  static final byte VERSION = 1;
+  static final byte DEFLATED = 1;
+
+  private static final int HEADER_SIZE = 2;
+  private static final int MAX_VARINT_SIZE = 10;
+
+  private FollowerPages() {}
+
+  /**
+   * Encodes pages into a buffer that's reused from page to page, so pages don't allocate new
+   * buffers once they've grown to fit. Not thread-safe.
+   */
+  public static class Writer {
+    private final boolean compress;
+    private final Deflater deflater;
+    private long[] sorted = new long[0];
+    private byte[] buffer = new byte[0];
+    private byte[] deflated = new byte[0];
+    private int length;
+
+    // Pages are only deflated if compress is true and deflating makes them smaller.
+    public Writer(boolean compress) {
+      this.compress = compress;
+      this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+    }
+
+    // Encodes the ids into buffer(), which holds them until the next write.
+    public void write(long[] ids) {
+      if (sorted.length < ids.length) {
+        sorted = new long[ids.length];
+      }
+      System.arraycopy(ids, 0, sorted, 0, ids.length);
+      Arrays.sort(sorted, 0, ids.length);
+
+      int maxSize = HEADER_SIZE + MAX_VARINT_SIZE * (ids.length + 1);
+      if (buffer.length < maxSize) {
+        buffer = new byte[maxSize];
+      }
+      buffer[0] = VERSION;
+      buffer[1] = 0;
+      CodedOutputStream out =
+          CodedOutputStream.newInstance(buffer, HEADER_SIZE, buffer.length - HEADER_SIZE);
+      int bodyStart;
+      try {
+        out.writeUInt64NoTag(ids.length);
+        bodyStart = buffer.length - out.spaceLeft();
+        long previous = 0;
+        for (int i = 0; i < ids.length; i++) {
+          out.writeUInt64NoTag(sorted[i] - previous);
+          previous = sorted[i];
+        }
+      } catch(IOException e) {
+        // The buffer has room for the largest varints, so it can't run out.
+        throw new IllegalStateException(e);
+      }
+      length = buffer.length - out.spaceLeft();
+
+      if (compress) {
+        deflateBody(bodyStart);
+      }
+    }
+
+    public byte[] buffer() {
+      return buffer;
+    }
+
+    public int length() {
+      return length;
+    }
+
+    private void deflateBody(int bodyStart) {
+      int bodyLength = length - bodyStart;
+      if (deflated.length < bodyLength) {
+        deflated = new byte[bodyLength];
+      }
+      deflater.reset();
+      deflater.setInput(buffer, bodyStart, bodyLength);
+      deflater.finish();
+      int deflatedLength = deflater.deflate(deflated);
+      // If it's not done, the deflated body would be at least as big as the raw one.
+      if (deflater.finished() && deflatedLength < bodyLength) {
+        System.arraycopy(deflated, 0, buffer, bodyStart, deflatedLength);
+        buffer[1] = DEFLATED;
+        length = bodyStart + deflatedLength;
+      }
+    }
+  }
+
+  // Decodes a page, with its ids in ascending order.
+  public static long[] read(byte[] page) {
+    if (page.length < HEADER_SIZE + 1) {
+      throw new IllegalArgumentException("Follower page is too short: " + page.length + " bytes");
+    }
+    if (page[0] != VERSION) {
+      throw new IllegalArgumentException("Unknown follower page version " + page[0]);
+    }
+    try {
+      CodedInputStream header =
+          CodedInputStream.newInstance(page, HEADER_SIZE, page.length - HEADER_SIZE);
+      long count = header.readRawVarint64();
+      int bodyStart = HEADER_SIZE + header.getTotalBytesRead();
+
+      CodedInputStream body;
+      int bodyLength;
+      if ((page[1] & DEFLATED) != 0) {
+        byte[] inflated = inflate(page, bodyStart, count);
+        body = CodedInputStream.newInstance(inflated);
+        bodyLength = inflated.length;
+      } else {
+        bodyLength = page.length - bodyStart;
+        body = CodedInputStream.newInstance(page, bodyStart, bodyLength);
+      }
+      // Every id takes at least a byte.
+      if (count < 0 || count > bodyLength) {
+        throw new IllegalArgumentException("Follower page can't hold " + count + " ids");
+      }
+
+      long[] ids = new long[(int) count];
+      long previous = 0;
+      for (int i = 0; i < ids.length; i++) {
+        previous += body.readRawVarint64();
+        ids[i] = previous;
+      }
+      return ids;
+    } catch(IOException e) {
+      throw new IllegalArgumentException("Follower page has a truncated or malformed id", e);
+    }
+  }
+
+  private static byte[] inflate(byte[] page, int bodyStart, long count) {
+    if (count < 0 || count > Integer.MAX_VALUE / MAX_VARINT_SIZE) {
+      throw new IllegalArgumentException("Follower page can't hold " + count + " ids");
+    }
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(page, bodyStart, page.length - bodyStart);
+      byte[] inflated = new byte[(int) count * MAX_VARINT_SIZE];
+      int inflatedLength = inflater.inflate(inflated);
+      if (!inflater.finished()) {
+        throw new IllegalArgumentException("Follower page has more ids than its count");
+      }
+      return Arrays.copyOf(inflated, inflatedLength);
+    } catch(DataFormatException e) {
+      throw new IllegalArgumentException("Follower page's ids can't be inflated", e);
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -8,11 +8,17 @@ import org.draff.objectdb.ObjectDb;
 
 import twitter4j.IDs;
 import twitter4j.TwitterException;
+import twitter4j.TwitterResponse;
 import twitter4j.api.FriendsFollowersResources;
 
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.UnaryOperator;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 /**
@@ -24,57 +30,104 @@ public class FollowersBatchFetcher {
   private ObjectDb db;
   private FriendsFollowersResources friendsFollowers;
   private FollowersStorer followersStorer;
+  private TrackerQueue<FollowersTracker> trackers;
 
   private final static Map<String, Object> NEEDS_FOLLOWERS =
       new ImmutableMap.Builder<String, Object>().put("shouldFetchFollowers", true)
           .put("followersFetched", false).build();
 
+  // Trackers part way through their followers come first, to finish the users already started,
+  // then the ones whose followers' followers are wanted too.
+  private final static Comparator<FollowersTracker> PRIORITY =
+      Comparator.comparing((FollowersTracker tracker) -> tracker.followersCursor() == -1L)
+          .thenComparing(tracker -> !tracker.shouldFetchLevel2Followers())
+          .thenComparingLong(FollowersTracker::id);
+
+  // Looks up each batch's tracker when it's needed.
   @Inject
   public FollowersBatchFetcher(ObjectDb db, FriendsFollowersResources friendsFollowers,
                                FollowersStorer followersStorer) {
+    this(db, friendsFollowers, followersStorer, trackerQueue(db, 1, Runnable::run));
+  }
+
+  public FollowersBatchFetcher(ObjectDb db, FriendsFollowersResources friendsFollowers,
+                               FollowersStorer followersStorer,
+                               TrackerQueue<FollowersTracker> trackers) {
     this.db = db;
     this.friendsFollowers = friendsFollowers;
     this.followersStorer = followersStorer;
+    this.trackers = trackers;
   }
 
-  public void fetchFollowersBatch() throws TwitterException {
-    fetchBatch(NEEDS_FOLLOWERS);
+  // The trackers that need followers fetched, to share between batch fetchers.
+  public static TrackerQueue<FollowersTracker> trackerQueue(ObjectDb db, int batchSize,
+                                                            Executor refiller) {
+    return new TrackerQueue<>(db, FollowersTracker.class, NEEDS_FOLLOWERS,
+        tracker -> tracker.shouldFetchFollowers() && !tracker.followersFetched(),
+        FollowersTracker::id, PRIORITY, batchSize, refiller);
   }
 
-  private void fetchBatch(Map<String, Object> trackerConstraints)
-      throws TwitterException {
-    FollowersTracker tracker = db.findOne(FollowersTracker.class, trackerConstraints);
-    if (tracker != null) {
-      new FollowersBatchFetch(tracker).fetch();
-    } else {
+  // Returns the response to the request, or null if there were no followers to fetch so no request
+  // was made.
+  @Nullable
+  public TwitterResponse fetchFollowersBatch() throws TwitterException {
+    FollowersTracker tracker = trackers.take();
+    if (tracker == null) {
       log.fine("No followers to fetch.");
+      return null;
+    }
+    FollowersBatchFetch batchFetch = new FollowersBatchFetch(tracker);
+    try {
+      TwitterResponse response = batchFetch.fetch();
+      trackers.finish(batchFetch.updated);
+      return response;
+    } catch(TwitterException|RuntimeException e) {
+      trackers.giveBack(tracker);
+      throw e;
     }
   }
 
   private class FollowersBatchFetch {
-    private FollowersTracker tracker;
+    private final FollowersTracker tracker;
+    // The changes the fetch makes to the tracker, and the tracker once they're saved.
+    private UnaryOperator<FollowersTracker> update = UnaryOperator.identity();
+    private FollowersTracker updated;
+
     private FollowersBatchFetch(FollowersTracker tracker) {
       this.tracker = tracker;
     }
 
-    private void fetch() throws TwitterException {
-      addLevel2TrackersIfNeeded(fetchFollowers());
-      db.save(tracker);
+    private TwitterResponse fetch() throws TwitterException {
+      TwitterResponse response = fetchFollowers();
+      saveUpdate();
+      return response;
+    }
+
+    // The queued tracker may be older than the stored one (e.g. a goal may have been added for the
+    // user since it was queued), so the changes are applied to the stored tracker rather than
+    // saving over it.
+    private void saveUpdate() {
+      db.createOrTransform(FollowersTracker.class)
+          .namesOrIds(Collections.singletonList(tracker.id()))
+          .creator(id -> updated = update.apply(tracker))
+          .transformer(stored -> updated = update.apply(stored))
+          .now();
     }
 
-    private long[] fetchFollowers() throws TwitterException {
+    private TwitterResponse fetchFollowers() throws TwitterException {
       log.info("Fetching followers batch for userid: " + tracker.id());
       try {
         IDs followerIds = friendsFollowers.getFollowersIDs(tracker.id(), tracker.followersCursor());
         saveFollowers(followerIds.getIDs());
         updateFollowersCursor(followerIds);
-        return followerIds.getIDs();
+        addLevel2TrackersIfNeeded(followerIds.getIDs());
+        return followerIds;
       } catch(TwitterException exception) {
         if (exception.getStatusCode() == 401) {
           // Typically a 401 error at this point indicates that the user has their tweets protected
           // so just mark that we should not fetch info for this user.
-          tracker = tracker.withShouldFetchFollowers(false);
-          return new long[0];
+          update = stored -> stored.withShouldFetchFollowers(false);
+          return exception;
         } else {
           throw exception;
         }
@@ -88,9 +141,10 @@ public class FollowersBatchFetcher {
 
     private void updateFollowersCursor(IDs followerIds) {
       if (followerIds.hasNext()) {
-        tracker = tracker.withFollowersCursor(followerIds.getNextCursor());
+        long nextCursor = followerIds.getNextCursor();
+        update = stored -> stored.withFollowersCursor(nextCursor);
       } else {
-        tracker = tracker.withFollowersFetched(true).withFollowersCursor(-1L);
+        update = stored -> stored.withFollowersFetched(true).withFollowersCursor(-1L);
       }
     }
 
@@ -3,13 +3,17 @@ package org.draff.twitfetch;
 import org.draff.model.*;
 import org.draff.objectdb.ObjectDb;
 
+import twitter4j.ResponseList;
 import twitter4j.TwitterException;
+import twitter4j.TwitterResponse;
 import twitter4j.User;
 import twitter4j.api.UsersResources;
 
 import java.util.*;
 import java.util.stream.Collectors;
 
+import javax.annotation.Nullable;
+
 /**
  * Created by dave on 1/13/16.
  */
@@ -23,16 +27,22 @@ public class FollowersGoalUpdater {
     this.twitterUsers = twitterUsers;
   }
 
-  public void retrieveFollowersGoalDetails() throws TwitterException {
+  // Returns the response to the lookup, or null if there were no goals to look up so no request
+  // was made.
+  @Nullable
+  public TwitterResponse retrieveFollowersGoalDetails() throws TwitterException {
     List<FollowersGoal> trackers = db.find(FollowersGoal.class, BATCH_SIZE);
     if(!trackers.isEmpty()) {
-      retrieveTrackerUserIds(trackers);
+      return retrieveTrackerUserIds(trackers);
     }
+    return null;
   }
 
-  private void retrieveTrackerUserIds(List<FollowersGoal> trackers) throws TwitterException {
-    List<User> users = twitterUsers.lookupUsers(screenNames(trackers));
+  private TwitterResponse retrieveTrackerUserIds(List<FollowersGoal> trackers)
+      throws TwitterException {
+    ResponseList<User> users = twitterUsers.lookupUsers(screenNames(trackers));
     saveUsers(users, trackers);
+    return users;
   }
 
   private String[] screenNames(List<FollowersGoal> trackers) {
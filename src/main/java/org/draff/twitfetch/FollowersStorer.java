@@ -1,6 +1,7 @@
 package org.draff.twitfetch;
 
 import com.google.common.hash.Hashing;
+import com.google.inject.name.Named;
 
 import com.sun.org.apache.xerces.internal.impl.dv.util.Base64;
 
@@ -10,31 +11,32 @@ import javax.inject.Inject;
  * Created by dave on 7/8/16.
  */
 public class FollowersStorer {
+  private static final String CONTENT_TYPE = "application/octet-stream";
+  private static final String EXTENSION = ".ids";
+
   private TextStorer textStorer;
 
+  // The pages are written into a buffer per thread, since the batch fetchers store pages
+  // concurrently (see FollowerPages for the format).
+  private final ThreadLocal<FollowerPages.Writer> pageWriters;
+
   @Inject
-  public FollowersStorer(TextStorer textStorer) {
+  public FollowersStorer(TextStorer textStorer,
+                         @Named("followers_page_compression") boolean compressPages) {
     this.textStorer = textStorer;
+    this.pageWriters = ThreadLocal.withInitial(() -> new FollowerPages.Writer(compressPages));
   }
 
   public void storeFollowers(long userId, String relationshipType, long[] followerIds) {
-    String content = longsContent(followerIds);
+    FollowerPages.Writer page = pageWriters.get();
+    page.write(followerIds);
 
-    byte[] hash = Hashing.sha1().hashString(content).asBytes();
-    String filename = base64EncodedForPath(hash) + ".txt";
+    byte[] hash = Hashing.sha1().hashBytes(page.buffer(), 0, page.length()).asBytes();
+    String filename = base64EncodedForPath(hash) + EXTENSION;
 
     String path = "twitter_data/" + userId + "/" + relationshipType + "/" + filename;
 
-    textStorer.store(path, content);
-  }
-
-  private String longsContent(long[] ids) {
-    StringBuilder builder = new StringBuilder();
-    for (long id : ids) {
-      builder.append(id);
-      builder.append("\n");
-    }
-    return builder.toString();
+    textStorer.store(path, page.buffer(), page.length(), CONTENT_TYPE);
   }
 
   private String base64EncodedForPath(byte[] bytes) {
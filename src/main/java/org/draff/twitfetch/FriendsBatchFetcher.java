@@ -7,11 +7,17 @@ import org.draff.objectdb.ObjectDb;
 
 import twitter4j.IDs;
 import twitter4j.TwitterException;
+import twitter4j.TwitterResponse;
 import twitter4j.api.FriendsFollowersResources;
 
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.UnaryOperator;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 /**
@@ -23,57 +29,100 @@ public class FriendsBatchFetcher {
   private ObjectDb db;
   private FriendsFollowersResources friendsFriends;
   private FollowersStorer storer;
+  private TrackerQueue<FriendsTracker> trackers;
 
   private final static Map<String, Object> NEEDS_FRIENDS =
       new ImmutableMap.Builder<String, Object>().put("shouldFetchFriends", true)
           .put("friendsFetched", false).build();
 
+  // Trackers part way through their friends come first, to finish the users already started.
+  private final static Comparator<FriendsTracker> PRIORITY =
+      Comparator.comparing((FriendsTracker tracker) -> tracker.friendsCursor() == -1L)
+          .thenComparingLong(FriendsTracker::id);
+
+  // Looks up each batch's tracker when it's needed.
   @Inject
   public FriendsBatchFetcher(ObjectDb db, FriendsFollowersResources friendsFriends,
                              FollowersStorer storer) {
+    this(db, friendsFriends, storer, trackerQueue(db, 1, Runnable::run));
+  }
+
+  public FriendsBatchFetcher(ObjectDb db, FriendsFollowersResources friendsFriends,
+                             FollowersStorer storer, TrackerQueue<FriendsTracker> trackers) {
     this.db = db;
     this.friendsFriends = friendsFriends;
     this.storer = storer;
+    this.trackers = trackers;
   }
 
-  public void fetchFriendsBatch() throws TwitterException {
-    fetchBatch(NEEDS_FRIENDS);
+  // The trackers that need friends fetched, to share between batch fetchers.
+  public static TrackerQueue<FriendsTracker> trackerQueue(ObjectDb db, int batchSize,
+                                                          Executor refiller) {
+    return new TrackerQueue<>(db, FriendsTracker.class, NEEDS_FRIENDS,
+        tracker -> tracker.shouldFetchFriends() && !tracker.friendsFetched(),
+        FriendsTracker::id, PRIORITY, batchSize, refiller);
   }
 
-  private void fetchBatch(Map<String, Object> trackerConstraints)
-      throws TwitterException {
-    FriendsTracker tracker = db.findOne(FriendsTracker.class, trackerConstraints);
-    if (tracker != null) {
-      new FriendsBatchFetch(tracker).fetch();
-    } else {
+  // Returns the response to the request, or null if there were no friends to fetch so no request
+  // was made.
+  @Nullable
+  public TwitterResponse fetchFriendsBatch() throws TwitterException {
+    FriendsTracker tracker = trackers.take();
+    if (tracker == null) {
       log.fine("No friends to fetch.");
+      return null;
+    }
+    FriendsBatchFetch batchFetch = new FriendsBatchFetch(tracker);
+    try {
+      TwitterResponse response = batchFetch.fetch();
+      trackers.finish(batchFetch.updated);
+      return response;
+    } catch(TwitterException|RuntimeException e) {
+      trackers.giveBack(tracker);
+      throw e;
     }
   }
 
   private class FriendsBatchFetch {
-    private FriendsTracker tracker;
+    private final FriendsTracker tracker;
+    // The changes the fetch makes to the tracker, and the tracker once they're saved.
+    private UnaryOperator<FriendsTracker> update = UnaryOperator.identity();
+    private FriendsTracker updated;
+
     private FriendsBatchFetch(FriendsTracker tracker) {
       this.tracker = tracker;
     }
 
-    private void fetch() throws TwitterException {
-      fetchFriends();
-      db.save(tracker);
+    private TwitterResponse fetch() throws TwitterException {
+      TwitterResponse response = fetchFriends();
+      saveUpdate();
+      return response;
+    }
+
+    // The queued tracker may be older than the stored one (e.g. a goal may have been added for the
+    // user since it was queued), so the changes are applied to the stored tracker rather than
+    // saving over it.
+    private void saveUpdate() {
+      db.createOrTransform(FriendsTracker.class)
+          .namesOrIds(Collections.singletonList(tracker.id()))
+          .creator(id -> updated = update.apply(tracker))
+          .transformer(stored -> updated = update.apply(stored))
+          .now();
     }
 
-    private long[] fetchFriends() throws TwitterException {
+    private TwitterResponse fetchFriends() throws TwitterException {
       log.info("Fetching friends batch for userid: " + tracker.id());
       try {
         IDs followerIds = friendsFriends.getFriendsIDs(tracker.id(), tracker.friendsCursor());
         saveFriends(followerIds.getIDs());
         updateFriendsCursor(followerIds);
-        return followerIds.getIDs();
+        return followerIds;
       } catch(TwitterException exception) {
         if (exception.getStatusCode() == 401) {
           // Typically a 401 error at this point indicates that the user has their tweets protected
           // so just mark that we should not fetch info for this user.
-          tracker = tracker.withShouldFetchFriends(false);
-          return new long[0];
+          update = stored -> stored.withShouldFetchFriends(false);
+          return exception;
         } else {
           throw exception;
         }
@@ -87,9 +136,10 @@ public class FriendsBatchFetcher {
 
     private void updateFriendsCursor(IDs followerIds) {
       if (followerIds.hasNext()) {
-        tracker = tracker.withFriendsCursor(followerIds.getNextCursor());
+        long nextCursor = followerIds.getNextCursor();
+        update = stored -> stored.withFriendsCursor(nextCursor);
       } else {
-        tracker = tracker.withFriendsFetched(true).withFriendsCursor(-1L);
+        update = stored -> stored.withFriendsFetched(true).withFriendsCursor(-1L);
       }
     }
   }
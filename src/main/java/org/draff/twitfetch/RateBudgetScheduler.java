@@ -0,0 +1,196 @@
+package org.draff.twitfetch;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+import twitter4j.TwitterResponse;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Runs the fetch jobs for each Twitter endpoint as fast as the endpoint's budget in the token pool
+ * allows. A job is started as soon as a request for its endpoint can be taken from the pool. When
+ * none are left, the endpoint waits for the soonest reset on a ScheduledExecutorService rather
+ * than a sleeping thread of its own, and the jobs run on a worker pool shared by all the endpoints.
+ *
+ * A job that finds nothing to do gives its request back to the pool, and its endpoint polls for
+ * new work every IDLE_POLL_MS instead of spending its budget on empty batches.
+ *
+ * Created by dave on 10/18/16.
+ */
+public class RateBudgetScheduler {
+  private static final Logger log = Logger.getLogger(RateBudgetScheduler.class.getName());
+
+  static final long IDLE_POLL_MS = 30 * 1000;
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+  // A fetch with one request's worth of the endpoint's budget.
+  public interface Job {
+    // Returns the response to the request, for its rate limit status, or null if there was
+    // nothing to fetch so the request wasn't made.
+    @Nullable
+    TwitterResponse run(Twitter twitter) throws Exception;
+  }
+
+  private final TwitterTokenPool tokenPool;
+  private final ScheduledExecutorService dispatcher;
+  private final ExecutorService workers;
+  private final Map<String, Endpoint> endpoints = new ConcurrentSkipListMap<>();
+
+  public RateBudgetScheduler(TwitterTokenPool tokenPool, int workerThreads) {
+    this.tokenPool = tokenPool;
+    this.dispatcher = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("rate-budget-dispatcher").build());
+    this.workers = Executors.newFixedThreadPool(workerThreads,
+        new ThreadFactoryBuilder().setNameFormat("rate-budget-worker-%d").build());
+  }
+
+  /**
+   * Starts running the job with the endpoint's budget, with up to maxInFlight runs at a time.
+   * Each endpoint can have one job.
+   */
+  public void start(String endpoint, int maxInFlight, Job job) {
+    Endpoint scheduled = new Endpoint(endpoint, maxInFlight, job);
+    if (endpoints.putIfAbsent(endpoint, scheduled) != null) {
+      throw new IllegalArgumentException("A job is already scheduled for " + endpoint);
+    }
+    scheduled.dispatchAfter(0);
+  }
+
+  public int inFlight(String endpoint) {
+    Endpoint scheduled = endpoints.get(endpoint);
+    return scheduled == null ? 0 : scheduled.inFlight.get();
+  }
+
+  // The requests in flight and left for each endpoint, to log now and then.
+  public String export() {
+    StringBuilder export = new StringBuilder();
+    endpoints.forEach((endpoint, scheduled) -> export.append(String.format(
+        "%-16s in flight: %d/%d  left: %d  next reset in %ds%n", endpoint,
+        scheduled.inFlight.get(), scheduled.maxInFlight, tokenPool.remaining(endpoint),
+        TimeUnit.MILLISECONDS.toSeconds(tokenPool.timeUntilNextReset(endpoint)))));
+    return export.toString();
+  }
+
+  // Stops handing out requests and waits for the jobs that are running to finish, interrupting
+  // them if they take too long.
+  public void shutdown() {
+    dispatcher.shutdownNow();
+    workers.shutdown();
+    try {
+      if (!workers.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        workers.shutdownNow();
+      }
+    } catch(InterruptedException e) {
+      workers.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public void awaitTermination() throws InterruptedException {
+    while (!workers.awaitTermination(1, TimeUnit.DAYS)) {}
+  }
+
+  private class Endpoint {
+    private final String name;
+    private final int maxInFlight;
+    private final Job job;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // Whether a dispatch is waiting for the next reset. Only used on the dispatcher thread.
+    private boolean waitingForReset;
+
+    private Endpoint(String name, int maxInFlight, Job job) {
+      this.name = name;
+      this.maxInFlight = maxInFlight;
+      this.job = job;
+    }
+
+    // Runs on the dispatcher thread, so only one dispatch at a time changes inFlight upwards.
+    private void dispatch() {
+      while (inFlight.get() < maxInFlight) {
+        Twitter twitter = tokenPool.acquire(name);
+        if (twitter == null) {
+          dispatchAfterReset();
+          return;
+        }
+        inFlight.incrementAndGet();
+        try {
+          workers.execute(() -> run(twitter));
+        } catch(RejectedExecutionException e) {
+          inFlight.decrementAndGet();
+          tokenPool.release(name, twitter);
+          return;
+        }
+      }
+    }
+
+    private void run(Twitter twitter) {
+      TwitterResponse response;
+      try {
+        response = job.run(twitter);
+      } catch(TwitterException e) {
+        log.log(Level.SEVERE, "Error fetching " + name + ": " + e.toString(), e);
+        // Errors have a rate limit status too, e.g. when the limit has been exceeded.
+        response = e;
+      } catch(Exception e) {
+        log.log(Level.SEVERE, "Error fetching " + name + ": " + e.toString(), e);
+        tokenPool.complete(name, twitter, null);
+        finish(0);
+        return;
+      }
+      if (response == null) {
+        tokenPool.release(name, twitter);
+        finish(IDLE_POLL_MS);
+      } else {
+        tokenPool.complete(name, twitter, response.getRateLimitStatus());
+        finish(0);
+      }
+    }
+
+    // The pool is updated before the run stops counting as in flight, so the next dispatch sees
+    // the latest status.
+    private void finish(long msUntilNextDispatch) {
+      inFlight.decrementAndGet();
+      dispatchAfter(msUntilNextDispatch);
+    }
+
+    // Jobs finishing while the endpoint waits for a reset don't schedule more waits.
+    private void dispatchAfterReset() {
+      if (waitingForReset) {
+        return;
+      }
+      long msToWait = tokenPool.timeUntilNextReset(name);
+      log.info("Waiting " + Math.round((double)msToWait / 60000.0) + " minutes for " + name +
+          " rate limit.");
+      waitingForReset = true;
+      schedule(() -> {
+        waitingForReset = false;
+        dispatch();
+      }, msToWait);
+    }
+
+    private void dispatchAfter(long ms) {
+      schedule(this::dispatch, ms);
+    }
+
+    private void schedule(Runnable dispatch, long ms) {
+      try {
+        dispatcher.schedule(dispatch, ms, TimeUnit.MILLISECONDS);
+      } catch(RejectedExecutionException e) {
+        log.fine("Not dispatching " + name + " after shutdown.");
+      }
+    }
+  }
+}
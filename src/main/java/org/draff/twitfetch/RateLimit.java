@@ -4,11 +4,17 @@ import twitter4j.RateLimitStatus;
 import twitter4j.Twitter;
 import twitter4j.TwitterException;
 
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 /**
+ * The requests left for one endpoint with one token. It's kept up to date from the rate limit
+ * status that comes with every response (see update()), so it only asks Twitter for the status
+ * when it doesn't know the endpoint's limit yet. Once a window's reset time passes it assumes the
+ * full limit is available again until the next response says otherwise.
+ *
  * Created by dave on 1/18/16.
  */
 public class RateLimit {
@@ -16,8 +22,17 @@ public class RateLimit {
 
   private static final long RATE_LIMIT_MARGIN = 5 * 1000;
 
+  // Twitter's rate limit windows are 15 minutes long.
+  private static final long WINDOW_MS = 15 * 60 * 1000;
+
+  // How long to wait before asking for the rate limit status again after it couldn't be had.
+  private static final long STATUS_RETRY_MS = 60 * 1000;
+
   private int remaining;
+  private int limit;
   private long timeOfNextReset;
+  // Requests taken with decrement() whose responses haven't been seen yet.
+  private int outstanding;
   private Twitter twitter;
   private String rateLimitId;
 
@@ -27,36 +42,123 @@ public class RateLimit {
   }
 
   public boolean hasRemaining() {
-    if (remaining == 0) {
-      retrieveRateLimitInfo();
+    return remaining() > 0;
+  }
+
+  // The requests left, asking Twitter for the rate limit status first if it's needed.
+  public int remaining() {
+    if (needsStatus()) {
+      refreshStatus();
     }
-    log.finest("Remaining for " + rateLimitId + " " + remaining);
-    return remaining > 0;
+    return knownRemaining();
   }
 
   public void decrement() {
-    if (hasRemaining()) {
-      remaining--;
-      log.finest("Remaining for " + rateLimitId + " decremented to " + remaining);
-    } else {
-      throw new IllegalStateException("Cannot have performed task as rate limit would be hit");
+    if (needsStatus()) {
+      refreshStatus();
+    }
+    synchronized (this) {
+      if (knownRemaining() > 0) {
+        remaining--;
+        outstanding++;
+        log.finest("Remaining for " + rateLimitId + " decremented to " + remaining);
+      } else {
+        throw new IllegalStateException("Cannot have performed task as rate limit would be hit");
+      }
     }
   }
 
-  public long timeUntilNextReset() {
-    return Math.max(0L, timeOfNextReset - System.currentTimeMillis()) + RATE_LIMIT_MARGIN;
+  // Gives back a request that was taken with decrement() but never made.
+  public synchronized void release() {
+    outstanding = Math.max(0, outstanding - 1);
+    remaining++;
+  }
+
+  /**
+   * Records that a request taken with decrement() was made, with the rate limit status from its
+   * response (or error), if it had one. The requests still outstanding haven't been counted by
+   * Twitter yet, so they're taken off what it says is left.
+   */
+  public synchronized void update(@Nullable RateLimitStatus status) {
+    outstanding = Math.max(0, outstanding - 1);
+    if (status != null) {
+      setStatus(status, status.getResetTimeInSeconds() * 1000L);
+    }
+  }
+
+  // The requests left as of the last rate limit status, or the full limit if its window is over,
+  // without asking Twitter for a new one.
+  public synchronized int knownRemaining() {
+    if (remaining == 0 && limit > 0 && System.currentTimeMillis() >= timeOfNextReset) {
+      startNewWindow();
+    }
+    log.finest("Remaining for " + rateLimitId + " " + remaining);
+    return remaining;
+  }
+
+  // Whether the limit isn't known yet, so the rate limit status has to be asked for (see
+  // refreshStatus), and it isn't waiting to ask again after an error.
+  public synchronized boolean needsStatus() {
+    return remaining == 0 && limit == 0 && System.currentTimeMillis() >= timeOfNextReset;
   }
 
-  private void retrieveRateLimitInfo() {
+  /**
+   * Asks Twitter for the endpoint's rate limit status. That's a request of its own, so it's made
+   * without holding this rate limit's lock, and callers shouldn't hold locks of their own either.
+   * TwitterTokenPool asks once for all of a token's endpoints instead (see statusRefreshed).
+   */
+  public void refreshStatus() {
+    RateLimitStatus status;
     try {
-      Map<String, RateLimitStatus> statusMap = twitter.getRateLimitStatus();
-      RateLimitStatus status = statusMap.get(rateLimitId);
-      this.remaining = status.getRemaining();
-      this.timeOfNextReset = System.currentTimeMillis() + status.getSecondsUntilReset() * 1000L;
-      log.finest("Remaining reset to " + remaining);
+      status = twitter.getRateLimitStatus().get(rateLimitId);
     } catch(TwitterException e) {
       log.log(Level.SEVERE, "Error getting rate limit", e);
+      statusFailed(e.getRateLimitStatus());
       return;
     }
+    statusRefreshed(status);
+  }
+
+  // Records the endpoint's status from a rate limit status request, or null if the request had
+  // none for the endpoint.
+  public synchronized void statusRefreshed(@Nullable RateLimitStatus status) {
+    if (status == null) {
+      log.severe("No rate limit status for " + rateLimitId);
+      statusFailed(null);
+      return;
+    }
+    setStatus(status, System.currentTimeMillis() + status.getSecondsUntilReset() * 1000L);
+  }
+
+  public synchronized long timeUntilNextReset() {
+    return Math.max(0L, timeOfNextReset - System.currentTimeMillis()) + RATE_LIMIT_MARGIN;
+  }
+
+  private void setStatus(RateLimitStatus status, long timeOfNextReset) {
+    this.limit = status.getLimit();
+    this.remaining = Math.max(0, status.getRemaining() - outstanding);
+    this.timeOfNextReset = timeOfNextReset;
+    log.finest("Remaining for " + rateLimitId + " reset to " + remaining);
+  }
+
+  private void startNewWindow() {
+    this.remaining = Math.max(0, limit - outstanding);
+    this.timeOfNextReset = System.currentTimeMillis() + WINDOW_MS;
+    log.finest("Remaining for " + rateLimitId + " assumed reset to " + remaining);
+  }
+
+  // Records that the rate limit status request failed, with the status from its error if it had
+  // one. The status request has a rate limit of its own, so try again in a while rather than on
+  // every call.
+  public synchronized void statusFailed(@Nullable RateLimitStatus errorStatus) {
+    if (errorStatus != null && errorStatus.getRemaining() == 0) {
+      timeOfNextReset = errorStatus.getResetTimeInSeconds() * 1000L;
+    } else {
+      waitToRetryStatus();
+    }
+  }
+
+  private void waitToRetryStatus() {
+    timeOfNextReset = System.currentTimeMillis() + STATUS_RETRY_MS;
   }
 }
@@ -24,9 +24,15 @@ public class TextStorer {
   }
 
   public void store(String path, String content) {
-    StorageObject metadata = new StorageObject().setName(path);
     byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
-    ByteArrayContent contentBytes = new ByteArrayContent("text/plain", bytes);
+    store(path, bytes, bytes.length, "text/plain");
+  }
+
+  // Stores the first length bytes, which are uploaded before this returns so the array can be
+  // reused afterwards.
+  public void store(String path, byte[] bytes, int length, String contentType) {
+    StorageObject metadata = new StorageObject().setName(path);
+    ByteArrayContent contentBytes = new ByteArrayContent(contentType, bytes, 0, length);
     try {
       storage.objects().insert(bucket, metadata, contentBytes).execute();
     } catch(IOException e) {
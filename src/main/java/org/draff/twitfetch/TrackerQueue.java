@@ -0,0 +1,166 @@
+package org.draff.twitfetch;
+
+import org.draff.objectdb.Model;
+import org.draff.objectdb.ObjectDb;
+import org.draff.objectdb.Page;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * The trackers that need fetching, prefetched from the database so that a batch fetch doesn't have
+ * to query for its tracker first. Up to batchSize trackers are loaded with one query and kept in
+ * priority order, and the queue is refilled in the background once it's down to a quarter of that.
+ *
+ * Each refill carries on the scan of the trackers that need fetching from where the last one left
+ * off, and the scan starts over once it runs out. That way a refill brings in trackers that aren't
+ * queued or claimed yet rather than finding the first batchSize again.
+ *
+ * Trackers taken from the queue are claimed until they're finished or given back, so concurrent
+ * fetches never get the same one. A finished tracker that still needs fetching (e.g. it has
+ * another page of followers) goes straight back in the queue rather than waiting for a refill.
+ * Refills skip the trackers finished recently, since the query may not see their updates yet.
+ *
+ * Created by dave on 10/18/16.
+ */
+public class TrackerQueue<T extends Model> {
+  private static final Logger log = Logger.getLogger(TrackerQueue.class.getName());
+
+  private final ObjectDb db;
+  private final Class<T> clazz;
+  private final Map<String, Object> needsFetchingConstraints;
+  private final Predicate<T> needsFetching;
+  private final ToLongFunction<T> id;
+  private final int batchSize;
+  private final Executor refiller;
+
+  private final PriorityQueue<T> queue;
+  private final Set<Long> queuedIds = new HashSet<>();
+  private final Set<Long> claimedIds = new HashSet<>();
+  private final Set<Long> recentlyFinishedIds;
+  private boolean refilling;
+  // Where the next refill carries on the scan from, or null to start from the beginning.
+  private String scanPageToken;
+
+  /**
+   * The trackers matching needsFetchingConstraints in the database are the ones that needsFetching
+   * is true for, which decides whether finished trackers go back in the queue. The refills run on
+   * the refiller, which can be Runnable::run to refill on the taking thread.
+   */
+  public TrackerQueue(ObjectDb db, Class<T> clazz, Map<String, Object> needsFetchingConstraints,
+                      Predicate<T> needsFetching, ToLongFunction<T> id, Comparator<T> priority,
+                      int batchSize, Executor refiller) {
+    this.db = db;
+    this.clazz = clazz;
+    this.needsFetchingConstraints = needsFetchingConstraints;
+    this.needsFetching = needsFetching;
+    this.id = id;
+    this.batchSize = batchSize;
+    this.refiller = refiller;
+    this.queue = new PriorityQueue<>(Math.max(1, batchSize), priority);
+    this.recentlyFinishedIds = Collections.newSetFromMap(new LinkedHashMap<Long, Boolean>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+        return size() > 4 * batchSize;
+      }
+    });
+  }
+
+  // Claims the tracker that's first in priority order, or returns null if there are none queued.
+  @Nullable
+  public synchronized T take() {
+    if (queue.size() <= batchSize / 4) {
+      startRefill();
+    }
+    T tracker = queue.poll();
+    if (tracker != null) {
+      queuedIds.remove(id.applyAsLong(tracker));
+      claimedIds.add(id.applyAsLong(tracker));
+    }
+    return tracker;
+  }
+
+  // Releases a claimed tracker once its updated version is saved, queueing it again if it still
+  // needs fetching.
+  public synchronized void finish(T updated) {
+    long trackerId = id.applyAsLong(updated);
+    claimedIds.remove(trackerId);
+    if (needsFetching.test(updated)) {
+      add(updated);
+    } else {
+      recentlyFinishedIds.add(trackerId);
+    }
+  }
+
+  // Releases a claimed tracker that couldn't be fetched, so it will be taken again.
+  public synchronized void giveBack(T tracker) {
+    claimedIds.remove(id.applyAsLong(tracker));
+    add(tracker);
+  }
+
+  public synchronized int size() {
+    return queue.size();
+  }
+
+  private void startRefill() {
+    if (refilling) {
+      return;
+    }
+    refilling = true;
+    try {
+      refiller.execute(this::refill);
+    } catch(RejectedExecutionException e) {
+      refilling = false;
+    }
+  }
+
+  private void refill() {
+    String pageToken;
+    synchronized (this) {
+      pageToken = scanPageToken;
+    }
+    Page<T> page = null;
+    try {
+      page = db.findPage(clazz, batchSize, pageToken, needsFetchingConstraints);
+      // The last page can come back empty, in which case start over right away.
+      if (page.items().isEmpty() && pageToken != null) {
+        page = db.findPage(clazz, batchSize, null, needsFetchingConstraints);
+      }
+    } catch(RuntimeException e) {
+      log.log(Level.SEVERE, "Error refilling " + clazz.getSimpleName() + " queue", e);
+    }
+    synchronized (this) {
+      refilling = false;
+      if (page == null) {
+        // The page token may be what's wrong, so start over next time.
+        scanPageToken = null;
+      } else {
+        scanPageToken = page.nextPageToken();
+        page.items().stream()
+            .filter(tracker -> !recentlyFinishedIds.contains(id.applyAsLong(tracker)))
+            .forEach(this::add);
+        log.fine("Refilled " + clazz.getSimpleName() + " queue to " + queue.size());
+      }
+    }
+  }
+
+  private void add(T tracker) {
+    long trackerId = id.applyAsLong(tracker);
+    if (!claimedIds.contains(trackerId) && queuedIds.add(trackerId)) {
+      queue.add(tracker);
+    }
+  }
+}
@@ -10,16 +10,29 @@ import com.google.api.services.datastore.client.DatastoreFactory;
 import com.google.api.services.datastore.client.DatastoreOptions;
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.StorageScopes;
+import com.google.common.collect.ImmutableMap;
 import com.google.inject.AbstractModule;
+import com.google.inject.Provider;
 import com.google.inject.Provides;
 import com.google.inject.ProvisionException;
+import com.google.inject.Singleton;
 import com.google.inject.name.Names;
 
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 
 import org.draff.mapper.DbWithMappers;
+import org.draff.model.FollowersTracker;
+import org.draff.model.FriendsTracker;
+import org.draff.model.TwitterAccessToken;
+import org.draff.model.UserDetailRequestById;
+import org.draff.objectdb.CachePolicy;
+import org.draff.objectdb.DatastoreDb;
+import org.draff.objectdb.DatastoreDbOptions;
+import org.draff.objectdb.DbMetrics;
+import org.draff.objectdb.MeteredObjectDb;
 import org.draff.objectdb.ObjectDb;
+import org.draff.objectdb.RetryPolicy;
 
 import twitter4j.Twitter;
 import twitter4j.TwitterFactory;
@@ -30,7 +43,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.*;
 import java.security.cert.CertificateException;
+import java.time.Duration;
 import java.util.*;
+import java.util.stream.Stream;
 
 import javax.annotation.Nullable;
 
@@ -44,19 +59,97 @@ public class TwitFetchModule extends AbstractModule {
   protected void configure() {
     this.conf = loadConfig();
 
-    List<String> confNames = Arrays.asList("storage_bucket");
+    List<String> confNames = Arrays.asList("storage_bucket", "followers_page_compression");
     for (String confName : confNames) {
       bindConstant().annotatedWith(Names.named(confName)).to(conf.getString(confName));
     }
   }
 
+  // Everything uses the db through ObjectDb, which records the calls in the metrics.
   @Provides
-  ObjectDb provideObjectDb(Datastore datastore) {
-    return DbWithMappers.create(datastore);
+  @Singleton
+  ObjectDb provideObjectDb(DatastoreDb db, DbMetrics metrics) {
+    return new MeteredObjectDb(db, metrics);
+  }
+
+  // A singleton so that all the fetchers share one entity cache and one set of Datastore threads.
+  // The object_db setting picks where the objects are kept: "datastore" or "jdbc" (an embedded
+  // database at jdbc_url, for single-node deployments). It's bound on its own, unwrapped, for
+  // what only a particular db can do (e.g. JdbcDb.importFrom).
+  @Provides
+  @Singleton
+  DatastoreDb provideDatastoreDb(Provider<Datastore> datastore, DbMetrics metrics) {
+    DatastoreDbOptions options = DatastoreDbOptions.builder()
+        .commitParallelism(conf.getInt("datastore_commit_parallelism"))
+        .groupCommitWindow(Duration.ofMillis(conf.getLong("datastore_group_commit_window_ms")))
+        .cachePolicies(cachePolicies())
+        .metrics(metrics)
+        .retryPolicy(RetryPolicy.builder()
+            .maxAttempts(conf.getInt("datastore_retry_max_attempts"))
+            .initialBackoff(Duration.ofMillis(conf.getLong("datastore_retry_initial_backoff_ms")))
+            .maxBackoff(Duration.ofMillis(conf.getLong("datastore_retry_max_backoff_ms")))
+            .build())
+        .hedgeLookupsAfter(Duration.ofMillis(conf.getLong("datastore_hedge_lookups_after_ms")))
+        .build();
+    String objectDb = conf.getString("object_db");
+    switch (objectDb) {
+      case "datastore":
+        return DbWithMappers.create(datastore.get(), options);
+      case "jdbc":
+        return DbWithMappers.createJdbc(conf.getString("jdbc_url"), options);
+      default:
+        throw new ProvisionException("Unknown object_db: " + objectDb);
+    }
+  }
+
+  @Provides
+  @Singleton
+  DbMetrics provideDbMetrics() {
+    return new DbMetrics();
+  }
+
+  // The trackers and detail requests get looked up by id over and over again by the fetchers and
+  // requesters, so it can be worth caching them. Caching is off unless
+  // datastore_cache_max_entries_per_kind is set, since other processes (e.g. the analysis
+  // commands) write these kinds too and this process's cache doesn't see their writes.
+  private ImmutableMap<Class, CachePolicy> cachePolicies() {
+    long maxEntries = conf.getLong("datastore_cache_max_entries_per_kind");
+    if (maxEntries == 0) {
+      return ImmutableMap.of();
+    }
+    CachePolicy policy = CachePolicy.create(maxEntries,
+        Duration.ofSeconds(conf.getLong("datastore_cache_ttl_seconds")));
+    return ImmutableMap.of(
+        FollowersTracker.class, policy,
+        FriendsTracker.class, policy,
+        UserDetailRequestById.class, policy);
   }
 
   @Provides
   Twitter provideTwitter() {
+    return twitterFor(conf.getString("twitter_access_token"),
+        conf.getString("twitter_access_token_secret"));
+  }
+
+  // A client for each access token saved by CallbackServlet when a user signs in, plus the
+  // configured one if it isn't among them. The tokens are loaded once, so tokens saved after the
+  // fetch starts are used from its next restart.
+  @Provides
+  @Singleton
+  TwitterTokenPool provideTokenPool(ObjectDb db) {
+    Map<String, Twitter> clients = new LinkedHashMap<>();
+    String configuredToken = conf.getString("twitter_access_token");
+    if (!configuredToken.isEmpty()) {
+      clients.put(configuredToken, provideTwitter());
+    }
+    try (Stream<TwitterAccessToken> tokens = db.stream(TwitterAccessToken.class)) {
+      tokens.forEach(token ->
+          clients.putIfAbsent(token.token(), twitterFor(token.token(), token.tokenSecret())));
+    }
+    return new TwitterTokenPool(new ArrayList<>(clients.values()));
+  }
+
+  private Twitter twitterFor(String accessToken, String accessTokenSecret) {
     System.setProperty("twitter4j.loggerFactory", "twitter4j.NullLoggerFactory");
 
     // This will get a Twitter instance with config parameters from environment variables.
@@ -64,10 +157,8 @@ public class TwitFetchModule extends AbstractModule {
     cb.setDebugEnabled(conf.getBoolean("twitter_debug_enabled"))
         .setOAuthConsumerKey(conf.getString("twitter_consumer_key"))
         .setOAuthConsumerSecret(conf.getString("twitter_consumer_secret"))
-        //.setOAuthAccessToken(conf.getString("twitter_access_token"))
-        //.setOAuthAccessTokenSecret(conf.getString("twitter_access_token_secret"));
-        .setOAuthAccessToken(conf.getString("twitter_access_token"))
-        .setOAuthAccessTokenSecret(conf.getString("twitter_access_token_secret"));
+        .setOAuthAccessToken(accessToken)
+        .setOAuthAccessTokenSecret(accessTokenSecret);
     return new TwitterFactory(cb.build()).getInstance();
   }
 
@@ -1,79 +1,92 @@
 package org.draff.twitfetch;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.draff.model.FollowersTracker;
+import org.draff.model.FriendsTracker;
+import org.draff.objectdb.DbMetrics;
 import org.draff.objectdb.ObjectDb;
 
-import twitter4j.Twitter;
+import twitter4j.TwitterResponse;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.inject.Inject;
 
+import static org.draff.twitfetch.TwitterTokenPool.FOLLOWERS_IDS;
+import static org.draff.twitfetch.TwitterTokenPool.FRIENDS_IDS;
+import static org.draff.twitfetch.TwitterTokenPool.USERS_LOOKUP;
+
 /**
  * Created by dave on 1/14/16.
  */
 public class TwitterGraphFetcher {
   private static final Logger log = Logger.getLogger(TwitterGraphFetcher.class.getName());
+  private static final long METRICS_LOG_INTERVAL_MINUTES = 15;
+  // How many trackers of each kind to load from the database at a time.
+  private static final int TRACKER_PREFETCH = 500;
 
   private ObjectDb objectDb;
-  private Twitter twitter;
+  private TwitterTokenPool tokenPool;
   private FollowersStorer followersStorer;
+  private DbMetrics dbMetrics;
 
   @Inject
-  public TwitterGraphFetcher(ObjectDb objectDb, Twitter twitter, FollowersStorer followersStorer) {
+  public TwitterGraphFetcher(ObjectDb objectDb, TwitterTokenPool tokenPool,
+                             FollowersStorer followersStorer, DbMetrics dbMetrics) {
     this.objectDb = objectDb;
-    this.twitter = twitter;
+    this.tokenPool = tokenPool;
     this.followersStorer = followersStorer;
+    this.dbMetrics = dbMetrics;
   }
 
   public void runFetch() {
-    RateLimit followersRateLimit = new RateLimit(twitter, "/followers/ids");
-
-    FollowersBatchFetcher followersBatchFetcher =
-        new FollowersBatchFetcher(objectDb, twitter.friendsFollowers(), followersStorer);
-    FollowersGoalUpdater followersGoalUpdater =
-        new FollowersGoalUpdater(objectDb, twitter.users());
-    FollowersFetcher followersFetcher =
-        new FollowersFetcher(followersBatchFetcher, followersGoalUpdater,
-            followersRateLimit);
-
-
-    RateLimit friendsRateLimit = new RateLimit(twitter, "/friends/ids");
-    FriendsBatchFetcher friendsBatchFetcher =
-        new FriendsBatchFetcher(objectDb, twitter.friendsFollowers(), followersStorer);
-    FriendsFetcher friendsFetcher =
-        new FriendsFetcher(friendsBatchFetcher, friendsRateLimit);
-
-    UserDetailBatchFetcher userDetailBatchFetcher =
-        new UserDetailBatchFetcher(objectDb, twitter.users());
-    UserDetailFetcher userDetailFetcher = new UserDetailFetcher(userDetailBatchFetcher);
-
-    Thread followersFetcherThread = new Thread(followersFetcher);
-    Thread userDetailFetcherThread = new Thread(userDetailFetcher);
-    Thread friendsFetcherThread = new Thread(friendsFetcher);
-
-    log.info("Starting Twitter graph fetch ...");
-
-    followersFetcherThread.start();
-    userDetailFetcherThread.start();
-    friendsFetcherThread.start();
+    // The followers and friends batches take their trackers from shared queues, so there can be a
+    // batch in flight per token. The user detail requests are still found with a query per batch,
+    // so those go one at a time to not pick the same ones.
+    int tokens = tokenPool.size();
+    RateBudgetScheduler scheduler = new RateBudgetScheduler(tokenPool, 2 * tokens + 1);
+    ExecutorService trackerRefiller = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("tracker-refill").build());
+    TrackerQueue<FollowersTracker> followersTrackers =
+        FollowersBatchFetcher.trackerQueue(objectDb, TRACKER_PREFETCH, trackerRefiller);
+    TrackerQueue<FriendsTracker> friendsTrackers =
+        FriendsBatchFetcher.trackerQueue(objectDb, TRACKER_PREFETCH, trackerRefiller);
+
+    log.info("Starting Twitter graph fetch with " + tokens + " access tokens ...");
+
+    scheduler.start(FOLLOWERS_IDS, tokens, twitter -> new FollowersBatchFetcher(
+        objectDb, twitter.friendsFollowers(), followersStorer, followersTrackers)
+        .fetchFollowersBatch());
+    scheduler.start(FRIENDS_IDS, tokens, twitter -> new FriendsBatchFetcher(
+        objectDb, twitter.friendsFollowers(), followersStorer, friendsTrackers)
+        .fetchFriendsBatch());
+    // New followers goals come first, since someone is waiting for those.
+    scheduler.start(USERS_LOOKUP, 1, twitter -> {
+      TwitterResponse response =
+          new FollowersGoalUpdater(objectDb, twitter.users()).retrieveFollowersGoalDetails();
+      return response != null ? response :
+          new UserDetailBatchFetcher(objectDb, twitter.users()).fetchUserDetailsBatch();
+    });
 
-    addShutdownHook(followersFetcherThread, userDetailFetcherThread, friendsFetcherThread);
+    Runtime.getRuntime().addShutdownHook(new Thread(scheduler::shutdown));
+    startMetricsLogging(scheduler);
 
     try {
-      followersFetcherThread.join();
-      userDetailFetcherThread.join();
-      friendsFetcherThread.join();
+      scheduler.awaitTermination();
     } catch(InterruptedException e) {}
   }
 
-  private void addShutdownHook(Thread followersFetcherThread, Thread userDetailFetcherThread,
-                               Thread friendsFetcherThread) {
-    Runtime.getRuntime().addShutdownHook(new Thread() {
-      public void run() {
-        followersFetcherThread.interrupt();
-        userDetailFetcherThread.interrupt();
-        friendsFetcherThread.interrupt();
-      }
-    });
+  private void startMetricsLogging(RateBudgetScheduler rateBudgetScheduler) {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("db-metrics-log").build());
+    scheduler.scheduleAtFixedRate(() -> {
+      log.info("Database time by operation and kind:\n" + dbMetrics.export());
+      log.info("Twitter rate limits by endpoint:\n" + rateBudgetScheduler.export());
+    }, METRICS_LOG_INTERVAL_MINUTES, METRICS_LOG_INTERVAL_MINUTES, TimeUnit.MINUTES);
   }
 }
@@ -0,0 +1,173 @@
+package org.draff.twitfetch;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import twitter4j.RateLimitStatus;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * The Twitter clients for all the access tokens we have (see TwitFetchModule.provideTokenPool),
+ * with a RateLimit per token and endpoint. Twitter's limits are per token, so each request goes to
+ * the token with the most requests left for its endpoint, and the crawl gets a full rate limit's
+ * worth of requests per token rather than just the one configured token's.
+ *
+ * Each token's rate limit status is asked for once, when the pool is set up, and fills in the
+ * limits of all its endpoints. If that fails, it's asked for again in the background, so that
+ * acquire() (which runs on RateBudgetScheduler's dispatcher thread) never waits on Twitter.
+ *
+ * Created by dave on 10/18/16.
+ */
+public class TwitterTokenPool {
+  private static final Logger log = Logger.getLogger(TwitterTokenPool.class.getName());
+
+  public static final String FOLLOWERS_IDS = "/followers/ids";
+  public static final String FRIENDS_IDS = "/friends/ids";
+  public static final String USERS_LOOKUP = "/users/lookup";
+  private static final List<String> ENDPOINTS = Arrays.asList(FOLLOWERS_IDS, FRIENDS_IDS,
+      USERS_LOOKUP);
+
+  private final List<PooledToken> tokens = new ArrayList<>();
+  private final ExecutorService statusRefresher = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setNameFormat("token-status-refresher").setDaemon(true).build());
+
+  public TwitterTokenPool(List<Twitter> clients) {
+    if (clients.isEmpty()) {
+      throw new IllegalArgumentException("A token pool needs at least one Twitter client");
+    }
+    clients.forEach(twitter -> tokens.add(new PooledToken(twitter)));
+    tokens.forEach(PooledToken::refreshStatuses);
+  }
+
+  public int size() {
+    return tokens.size();
+  }
+
+  /**
+   * Takes one request for the endpoint from the token with the most left and returns its client,
+   * or null if every token has used up its requests until the next reset. Tokens whose limit for
+   * the endpoint isn't known have their rate limit status asked for again in the background, and
+   * count as having none left until it comes.
+   */
+  @Nullable
+  public Twitter acquire(String endpoint) {
+    for (PooledToken token : tokens) {
+      if (token.rateLimit(endpoint).needsStatus()) {
+        token.refreshStatusesInBackground();
+      }
+    }
+    return acquireKnown(endpoint);
+  }
+
+  @Nullable
+  private synchronized Twitter acquireKnown(String endpoint) {
+    PooledToken best = null;
+    int bestRemaining = 0;
+    for (PooledToken token : tokens) {
+      int remaining = token.rateLimit(endpoint).knownRemaining();
+      if (remaining > bestRemaining) {
+        best = token;
+        bestRemaining = remaining;
+      }
+    }
+    if (best == null) {
+      log.finest("No tokens have requests left for " + endpoint);
+      return null;
+    }
+    best.rateLimit(endpoint).decrement();
+    return best.twitter;
+  }
+
+  // Gives back a request taken with acquire() that the caller didn't need to make after all.
+  public synchronized void release(String endpoint, Twitter twitter) {
+    rateLimit(endpoint, twitter).release();
+  }
+
+  // Records that a request taken with acquire() was made, with the rate limit status from its
+  // response if it had one (see RateLimit.update).
+  public synchronized void complete(String endpoint, Twitter twitter,
+                                    @Nullable RateLimitStatus status) {
+    rateLimit(endpoint, twitter).update(status);
+  }
+
+  // The requests left for the endpoint across all the tokens, as of their last rate limit status.
+  // Limits that aren't known yet count as none.
+  public synchronized int remaining(String endpoint) {
+    return tokens.stream().mapToInt(token -> token.rateLimit(endpoint).knownRemaining()).sum();
+  }
+
+  // How long until the first token's limit for the endpoint resets, i.e. when acquire() can next
+  // return a client.
+  public synchronized long timeUntilNextReset(String endpoint) {
+    return tokens.stream().mapToLong(token -> token.rateLimit(endpoint).timeUntilNextReset())
+        .min().getAsLong();
+  }
+
+  private RateLimit rateLimit(String endpoint, Twitter twitter) {
+    for (PooledToken token : tokens) {
+      if (token.twitter == twitter) {
+        return token.rateLimit(endpoint);
+      }
+    }
+    throw new IllegalArgumentException("Twitter client isn't from this pool");
+  }
+
+  private class PooledToken {
+    private final Twitter twitter;
+    private final Map<String, RateLimit> rateLimits = new ConcurrentHashMap<>();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private PooledToken(Twitter twitter) {
+      this.twitter = twitter;
+      ENDPOINTS.forEach(this::rateLimit);
+    }
+
+    private RateLimit rateLimit(String endpoint) {
+      return rateLimits.computeIfAbsent(endpoint, id -> new RateLimit(twitter, id));
+    }
+
+    private void refreshStatusesInBackground() {
+      if (refreshing.compareAndSet(false, true)) {
+        statusRefresher.execute(() -> {
+          try {
+            refreshStatuses();
+          } finally {
+            refreshing.set(false);
+          }
+        });
+      }
+    }
+
+    // Fills in the status of every endpoint whose limit isn't known from a single rate limit
+    // status request.
+    private void refreshStatuses() {
+      Map<String, RateLimitStatus> statuses;
+      try {
+        statuses = twitter.getRateLimitStatus();
+      } catch(TwitterException e) {
+        log.log(Level.SEVERE, "Error getting rate limit status", e);
+        rateLimits.values().stream().filter(RateLimit::needsStatus)
+            .forEach(rateLimit -> rateLimit.statusFailed(e.getRateLimitStatus()));
+        return;
+      }
+      rateLimits.forEach((endpoint, rateLimit) -> {
+        if (rateLimit.needsStatus()) {
+          rateLimit.statusRefreshed(statuses.get(endpoint));
+        }
+      });
+    }
+  }
+}
@@ -7,14 +7,19 @@ import org.draff.model.UserDetail;
 import org.draff.model.UserDetailRequestById;
 import org.draff.model.UserDetailRequestByName;
 import org.draff.objectdb.ObjectDb;
+import org.draff.objectdb.Page;
 
+import twitter4j.ResponseList;
 import twitter4j.TwitterException;
+import twitter4j.TwitterResponse;
 import twitter4j.User;
 import twitter4j.api.UsersResources;
 
 import java.util.*;
 import java.util.stream.Collectors;
 
+import javax.annotation.Nullable;
+
 /**
  * Created by dave on 1/9/16.
  */
@@ -31,38 +36,45 @@ public class UserDetailBatchFetcher {
     this.twitterUsers = users;
   }
 
-  public void fetchUserDetailsBatch() throws TwitterException {
+  // Returns the response to the request, or null if there were no user details to fetch so no
+  // request was made.
+  @Nullable
+  public TwitterResponse fetchUserDetailsBatch() throws TwitterException {
     String[] names = neededUserNamesBatch();
     if (names.length > 0) {
-      fetchUsersByNames(names);
-    } else {
-      long[] ids = neededUserIdsBatch();
-      if (ids.length > 0) {
-        fetchUsersByIds(ids);
-      }
+      return fetchUsersByNames(names);
+    }
+    long[] ids = neededUserIdsBatch();
+    if (ids.length > 0) {
+      return fetchUsersByIds(ids);
     }
+    return null;
   }
 
-  private void fetchUsersByNames(String[] names) throws TwitterException {
+  private TwitterResponse fetchUsersByNames(String[] names) throws TwitterException {
     System.out.println("Fetching user details for " + names.length + " user names.");
-    saveUserDetails(twitterUsers.lookupUsers(names));
+    ResponseList<User> users = twitterUsers.lookupUsers(names);
+    saveUserDetails(users);
 
     db.createOrTransform(UserDetailRequestByName.class)
         .namesOrIds(Arrays.asList(names))
         .transformer(request -> request.withDetailRetrieved(true))
         .creator(id -> UserDetailRequestByName.create((String)id, true))
         .now();
+    return users;
   }
 
-  private void fetchUsersByIds(long[] ids) throws TwitterException {
+  private TwitterResponse fetchUsersByIds(long[] ids) throws TwitterException {
     System.out.println("Fetching user details for " + ids.length + " user ids.");
-    saveUserDetails(twitterUsers.lookupUsers(ids));
+    ResponseList<User> users = twitterUsers.lookupUsers(ids);
+    saveUserDetails(users);
 
     db.createOrTransform(UserDetailRequestById.class)
         .namesOrIds(Longs.asList(ids))
         .transformer(request -> request.withDetailRetrieved(true))
         .creator(id -> UserDetailRequestById.create((Long)id, true))
         .now();
+    return users;
   }
 
   private String[] neededUserNamesBatch() {
@@ -73,29 +85,26 @@ public class UserDetailBatchFetcher {
   private long[] neededUserIdsBatch() {
     List<Long> userIds = new ArrayList<>();
 
-    Collection<Long> requestIds = requestIdsBatch(Long.MIN_VALUE);
-    while (!requestIds.isEmpty() && userIds.size() < BATCH_SIZE) {
-      fillUpToLimit(userIds, requestIds, BATCH_SIZE);
-      if (userIds.size() < BATCH_SIZE) {
-        requestIds = requestIdsBatch(Collections.max(userIds) + 1);
-      }
-    }
+    String pageToken = null;
+    do {
+      Page<UserDetailRequestById> requests = db.findPage(UserDetailRequestById.class, BATCH_SIZE,
+          pageToken, DETAIL_NOT_RETRIEVED);
+      fillUpToLimit(userIds, requestIdsWithoutDetails(requests.items()), BATCH_SIZE);
+      pageToken = requests.nextPageToken();
+    } while (pageToken != null && userIds.size() < BATCH_SIZE);
 
     return Longs.toArray(userIds);
   }
 
-  private Collection<Long> requestIdsBatch(long minId) {
-    List<Long> requestIdsList =
-        db.findOrderedById(UserDetailRequestById.class, BATCH_SIZE, minId, DETAIL_NOT_RETRIEVED)
-            .stream().map(request -> request.id()).collect(Collectors.toList());
-    HashSet<Long> requestIds = new HashSet<>(requestIdsList);
+  private Collection<Long> requestIdsWithoutDetails(List<UserDetailRequestById> requests) {
+    HashSet<Long> requestIds = new HashSet<>(
+        requests.stream().map(request -> request.id()).collect(Collectors.toList()));
 
-    List<Long> existingIds = db.findByIds(UserDetail.class, requestIds).stream()
-        .map(detail -> detail.id()).collect(Collectors.toList());
+    Set<Object> existingIds = db.existingIds(UserDetail.class, requestIds);
 
     // Since there are already UserDetail records for those request ids, mark those as retrieved.
     db.createOrTransform(UserDetailRequestById.class)
-        .namesOrIds(existingIds)
+        .namesOrIds(new ArrayList<>(existingIds))
         .transformer(request -> request.withDetailRetrieved(true))
         .creator(id -> UserDetailRequestById.create((Long)id, true))
         .now();
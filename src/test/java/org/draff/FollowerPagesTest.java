@@ -0,0 +1,113 @@
+package org.draff;
+
+import org.draff.twitfetch.FollowerPages;
+import org.draff.twitfetch.FollowersStorer;
+import org.draff.twitfetch.TextStorer;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Created by dave on 10/18/16.
+ */
+public class FollowerPagesTest {
+  @Test
+  public void testRoundTrip() {
+    long[] ids = {9L, 3L, Long.MAX_VALUE, 3L, 0L, 1L << 40};
+    for (boolean compress : new boolean[] {false, true}) {
+      assertArrayEquals(sorted(ids), readBack(new FollowerPages.Writer(compress), ids));
+      assertArrayEquals(new long[0], readBack(new FollowerPages.Writer(compress), new long[0]));
+    }
+  }
+
+  @Test
+  public void testReusesBuffer() {
+    FollowerPages.Writer writer = new FollowerPages.Writer(false);
+    writer.write(randomIds(5000, 1L << 32));
+    byte[] buffer = writer.buffer();
+
+    long[] smallerPage = randomIds(100, 1L << 32);
+    assertArrayEquals(sorted(smallerPage), readBack(writer, smallerPage));
+    assertSame(buffer, writer.buffer());
+  }
+
+  @Test
+  public void testSmallerThanText() {
+    long[] ids = randomIds(5000, 5_000_000_000L);
+    int textSize = Arrays.stream(ids).mapToInt(id -> Long.toString(id).length() + 1).sum();
+
+    FollowerPages.Writer writer = new FollowerPages.Writer(false);
+    writer.write(ids);
+    assertTrue(writer.length() * 3 < textSize);
+  }
+
+  @Test
+  public void testCompressesRepetitivePages() {
+    long[] ids = new long[5000];
+    Arrays.setAll(ids, i -> 1000L + 3 * i);
+    FollowerPages.Writer plain = new FollowerPages.Writer(false);
+    FollowerPages.Writer compressed = new FollowerPages.Writer(true);
+    plain.write(ids);
+    compressed.write(ids);
+
+    assertTrue(compressed.length() * 10 < plain.length());
+    assertArrayEquals(ids, readBack(compressed, ids));
+  }
+
+  @Test
+  public void testRejectsMalformedPages() {
+    FollowerPages.Writer writer = new FollowerPages.Writer(false);
+    writer.write(new long[] {1L, 2L, 300L});
+    byte[] page = Arrays.copyOf(writer.buffer(), writer.length());
+
+    assertRejected(Arrays.copyOf(page, page.length - 1));
+    byte[] unknownVersion = page.clone();
+    unknownVersion[0] = 2;
+    assertRejected(unknownVersion);
+    assertRejected(new byte[] {1, 0, (byte) 0xFF, (byte) 0xFF, 0x7F});
+  }
+
+  @Test
+  public void testStoredPagesNamedByContent() {
+    TextStorer textStorer = mock(TextStorer.class);
+    FollowersStorer storer = new FollowersStorer(textStorer, false);
+    storer.storeFollowers(1L, "followers", new long[] {5L, 2L, 9L});
+    storer.storeFollowers(1L, "followers", new long[] {9L, 5L, 2L});
+
+    ArgumentCaptor<String> paths = ArgumentCaptor.forClass(String.class);
+    verify(textStorer, times(2)).store(paths.capture(), any(byte[].class), anyInt(),
+        eq("application/octet-stream"));
+    assertTrue(paths.getValue().startsWith("twitter_data/1/followers/"));
+    assertTrue(paths.getValue().endsWith(".ids"));
+    assertEquals(paths.getAllValues().get(0), paths.getAllValues().get(1));
+  }
+
+  private static long[] readBack(FollowerPages.Writer writer, long[] ids) {
+    writer.write(ids);
+    return FollowerPages.read(Arrays.copyOf(writer.buffer(), writer.length()));
+  }
+
+  private static long[] randomIds(int count, long bound) {
+    return new Random(count).longs(count, 1, bound).toArray();
+  }
+
+  private static long[] sorted(long[] ids) {
+    long[] sorted = ids.clone();
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  private static void assertRejected(byte[] page) {
+    try {
+      FollowerPages.read(page);
+      fail("Expected " + Arrays.toString(page) + " to be rejected");
+    } catch(IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package org.draff;
+
+import com.jayway.awaitility.Awaitility;
+
+import org.draff.twitfetch.RateBudgetScheduler;
+import org.draff.twitfetch.TwitterTokenPool;
+import org.junit.After;
+import org.junit.Test;
+
+import twitter4j.Twitter;
+import twitter4j.TwitterResponse;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.draff.support.MockTwitter.response;
+import static org.draff.support.MockTwitter.withRateLimit;
+import static org.draff.twitfetch.TwitterTokenPool.FOLLOWERS_IDS;
+import static org.draff.twitfetch.TwitterTokenPool.FRIENDS_IDS;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Created by dave on 10/18/16.
+ */
+public class RateBudgetSchedulerTest {
+  private RateBudgetScheduler scheduler;
+
+  @After
+  public void shutdown() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+    }
+  }
+
+  @Test
+  public void testRunsJobsUntilBudgetIsUsed() throws InterruptedException {
+    TwitterTokenPool pool = new TwitterTokenPool(
+        Arrays.asList(withRateLimit(3, 600), withRateLimit(2, 600)));
+    scheduler = new RateBudgetScheduler(pool, 2);
+
+    AtomicInteger followersRuns = new AtomicInteger();
+    AtomicInteger friendsRuns = new AtomicInteger();
+    // The responses have no rate limit status, so only the requests taken are counted.
+    TwitterResponse response = mock(TwitterResponse.class);
+    scheduler.start(FOLLOWERS_IDS, 1, twitter -> {
+      followersRuns.incrementAndGet();
+      return response;
+    });
+    scheduler.start(FRIENDS_IDS, 2, twitter -> {
+      friendsRuns.incrementAndGet();
+      return response;
+    });
+
+    Awaitility.await().atMost(1, TimeUnit.SECONDS)
+        .until(() -> followersRuns.get() == 5 && friendsRuns.get() == 5);
+    Thread.sleep(100);
+    assertEquals(5, followersRuns.get());
+    assertEquals(5, friendsRuns.get());
+    assertEquals(0, pool.remaining(FOLLOWERS_IDS));
+  }
+
+  @Test
+  public void testIdleJobGivesBackItsRequest() {
+    TwitterTokenPool pool = new TwitterTokenPool(Arrays.asList(withRateLimit(3, 600)));
+    scheduler = new RateBudgetScheduler(pool, 1);
+
+    AtomicInteger runs = new AtomicInteger();
+    scheduler.start(FOLLOWERS_IDS, 1, twitter -> {
+      runs.incrementAndGet();
+      return null;
+    });
+
+    Awaitility.await().atMost(1, TimeUnit.SECONDS)
+        .until(() -> runs.get() == 1 && scheduler.inFlight(FOLLOWERS_IDS) == 0);
+    assertEquals(3, pool.remaining(FOLLOWERS_IDS));
+    assertTrue(scheduler.export().contains(FOLLOWERS_IDS));
+  }
+
+  @Test
+  public void testTracksBudgetFromResponses() throws Exception {
+    Twitter twitter = withRateLimit(10, 600);
+    TwitterTokenPool pool = new TwitterTokenPool(Arrays.asList(twitter));
+    scheduler = new RateBudgetScheduler(pool, 1);
+
+    // Other clients of the token used up most of its requests, which the response shows.
+    AtomicInteger runs = new AtomicInteger();
+    scheduler.start(FOLLOWERS_IDS, 1, client -> response(2 - runs.incrementAndGet(), 600));
+
+    Awaitility.await().atMost(1, TimeUnit.SECONDS)
+        .until(() -> runs.get() == 2 && scheduler.inFlight(FOLLOWERS_IDS) == 0);
+    Thread.sleep(100);
+    assertEquals(2, runs.get());
+    assertEquals(0, pool.remaining(FOLLOWERS_IDS));
+    verify(twitter, times(1)).getRateLimitStatus();
+  }
+
+  @Test
+  public void testShutdownWaitsForRunningJobs() throws InterruptedException {
+    TwitterTokenPool pool = new TwitterTokenPool(Arrays.asList(withRateLimit(3, 600)));
+    scheduler = new RateBudgetScheduler(pool, 1);
+
+    CountDownLatch started = new CountDownLatch(1);
+    AtomicInteger finished = new AtomicInteger();
+    scheduler.start(FOLLOWERS_IDS, 1, twitter -> {
+      started.countDown();
+      Thread.sleep(100);
+      finished.incrementAndGet();
+      return mock(TwitterResponse.class);
+    });
+
+    assertTrue(started.await(1, TimeUnit.SECONDS));
+    scheduler.shutdown();
+    scheduler.awaitTermination();
+    assertEquals(1, finished.get());
+  }
+}
@@ -0,0 +1,61 @@
+package org.draff;
+
+import org.draff.twitfetch.RateLimit;
+import org.junit.Test;
+
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+
+import static org.draff.support.MockTwitter.mockStatus;
+import static org.draff.support.MockTwitter.withRateLimit;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Created by dave on 10/18/16.
+ */
+public class RateLimitTest {
+  @Test
+  public void testUpdatesFromResponses() throws TwitterException {
+    Twitter twitter = withRateLimit(15, 600);
+    RateLimit rateLimit = new RateLimit(twitter, "/followers/ids");
+
+    rateLimit.decrement();
+    rateLimit.decrement();
+    assertEquals(13, rateLimit.remaining());
+
+    // The second request hasn't been counted by Twitter yet when the first one's response comes.
+    rateLimit.update(mockStatus(5, 600));
+    assertEquals(4, rateLimit.remaining());
+    rateLimit.update(mockStatus(4, 600));
+    assertEquals(4, rateLimit.remaining());
+    verify(twitter, times(1)).getRateLimitStatus();
+  }
+
+  @Test
+  public void testAssumesFullLimitAfterReset() throws TwitterException {
+    Twitter twitter = withRateLimit(15, 600);
+    RateLimit rateLimit = new RateLimit(twitter, "/followers/ids");
+
+    rateLimit.decrement();
+    rateLimit.update(mockStatus(0, 600));
+    assertFalse(rateLimit.hasRemaining());
+
+    // A status from a response in the window that's now over.
+    rateLimit.update(mockStatus(0, -1));
+    assertEquals(15, rateLimit.remaining());
+    verify(twitter, times(1)).getRateLimitStatus();
+  }
+
+  @Test
+  public void testDoesNotRetryStatusRightAfterError() throws TwitterException {
+    Twitter twitter = mock(Twitter.class);
+    when(twitter.getRateLimitStatus()).thenThrow(new TwitterException("unavailable"));
+    RateLimit rateLimit = new RateLimit(twitter, "/followers/ids");
+
+    assertFalse(rateLimit.hasRemaining());
+    assertFalse(rateLimit.hasRemaining());
+    assertTrue(rateLimit.timeUntilNextReset() > 30 * 1000);
+    verify(twitter, times(1)).getRateLimitStatus();
+  }
+}
@@ -0,0 +1,175 @@
+package org.draff;
+
+import org.draff.mapper.DbWithMappers;
+import org.draff.model.FollowersGoal;
+import org.draff.model.FollowersTracker;
+import org.draff.objectdb.InMemoryDb;
+import org.draff.twitfetch.FollowersBatchFetcher;
+import org.draff.twitfetch.FollowersGoalUpdater;
+import org.draff.twitfetch.FollowersStorer;
+import org.draff.twitfetch.TrackerQueue;
+import org.junit.Before;
+import org.junit.Test;
+
+import twitter4j.IDs;
+import twitter4j.ResponseList;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+import twitter4j.User;
+import twitter4j.api.FriendsFollowersResources;
+import twitter4j.api.UsersResources;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Mockito.*;
+
+/**
+ * Created by dave on 10/18/16.
+ */
+public class TrackerQueueTest {
+  private InMemoryDb db;
+  private List<Runnable> refills;
+  private TrackerQueue<FollowersTracker> trackers;
+
+  @Before
+  public void setup() {
+    db = DbWithMappers.createInMemory();
+    refills = new ArrayList<>();
+    // Refills run when the test says so, as they would in the background.
+    Executor refiller = refills::add;
+    trackers = FollowersBatchFetcher.trackerQueue(db, 8, refiller);
+  }
+
+  @Test
+  public void testTakesTrackersInPriorityOrder() {
+    db.save(needsFollowers(1L).build());
+    db.save(needsFollowers(2L).shouldFetchLevel2Followers(true).build());
+    db.save(needsFollowers(3L).followersCursor(1001L).build());
+    db.save(needsFollowers(4L).followersFetched(true).build());
+
+    assertNull(trackers.take());
+    runRefills();
+    assertEquals(3, trackers.size());
+
+    assertEquals(3L, trackers.take().id());
+    assertEquals(2L, trackers.take().id());
+    assertEquals(1L, trackers.take().id());
+  }
+
+  @Test
+  public void testClaimedTrackersAreNotRequeuedByRefills() {
+    db.save(needsFollowers(1L).build());
+    trackers.take();
+    runRefills();
+
+    FollowersTracker tracker = trackers.take();
+    assertEquals(1L, tracker.id());
+    trackers.take();
+    runRefills();
+    assertNull(trackers.take());
+
+    trackers.giveBack(tracker);
+    assertEquals(1L, trackers.take().id());
+  }
+
+  @Test
+  public void testFinishedTrackersAreRequeuedLocally() {
+    db.save(needsFollowers(1L).build());
+    db.save(needsFollowers(2L).build());
+    trackers.take();
+    runRefills();
+
+    FollowersTracker first = trackers.take();
+    FollowersTracker second = trackers.take();
+    trackers.finish(first.withFollowersCursor(1001L));
+    trackers.finish(second.withFollowersFetched(true));
+    assertEquals(1, trackers.size());
+
+    FollowersTracker next = trackers.take();
+    assertEquals(1L, next.id());
+    assertEquals(1001L, next.followersCursor());
+
+    // The database still has the second tracker as needing followers, as a query might if it
+    // didn't see the update yet, but the refill leaves it out.
+    runRefills();
+    assertEquals(0, trackers.size());
+  }
+
+  @Test
+  public void testRefillsPageThroughTrackers() {
+    for (long id = 1; id <= 20; id++) {
+      db.save(needsFollowers(id).build());
+    }
+    trackers.take();
+
+    // The trackers stay claimed, so each refill only adds new ones if it carries on the scan.
+    Set<Long> taken = new HashSet<>();
+    for (int refill = 0; refill < 3; refill++) {
+      runRefills();
+      while (trackers.size() > 0) {
+        taken.add(trackers.take().id());
+      }
+    }
+    assertEquals(LongStream.rangeClosed(1, 20).boxed().collect(Collectors.toSet()), taken);
+
+    // Once the scan runs out it starts over, finding only the claimed trackers.
+    runRefills();
+    assertEquals(0, trackers.size());
+  }
+
+  @Test
+  public void testGoalAddedWhileTrackerIsClaimedIsKept() throws TwitterException {
+    db.save(needsFollowers(10L).build());
+    db.save(FollowersGoal.create("user1", 2L));
+    FollowersGoalUpdater goalUpdater = new FollowersGoalUpdater(db, mockUsers());
+
+    // The goal for the user's followers' followers is added while their followers are fetched.
+    IDs followerIds = mock(IDs.class);
+    when(followerIds.getIDs()).thenReturn(new long[] {2L, 3L});
+    when(followerIds.hasNext()).thenReturn(true);
+    when(followerIds.getNextCursor()).thenReturn(1001L);
+    FriendsFollowersResources friendsFollowers = mock(FriendsFollowersResources.class);
+    when(friendsFollowers.getFollowersIDs(10L, -1L)).thenAnswer(invocation -> {
+      goalUpdater.retrieveFollowersGoalDetails();
+      return followerIds;
+    });
+    FollowersBatchFetcher fetcher = new FollowersBatchFetcher(db, friendsFollowers,
+        mock(FollowersStorer.class), trackers);
+    fetcher.fetchFollowersBatch();
+    runRefills();
+    fetcher.fetchFollowersBatch();
+
+    FollowersTracker stored = db.findById(FollowersTracker.class, 10L);
+    assertTrue(stored.shouldFetchLevel2Followers());
+    assertEquals(1001L, stored.followersCursor());
+    assertEquals(stored, trackers.take());
+  }
+
+  private static FollowersTracker.Builder needsFollowers(long id) {
+    return FollowersTracker.builder().id(id).shouldFetchFollowers(true);
+  }
+
+  private static UsersResources mockUsers() throws TwitterException {
+    List<User> users = Arrays.asList(
+        TwitterObjectFactory.createUser("{\"id\":10,\"screen_name\":\"User1\"}"));
+    UsersResources usersResources = mock(UsersResources.class);
+    ResponseList<User> response = mock(ResponseList.class, delegatesTo(users));
+    when(usersResources.lookupUsers(new String[] {"user1"})).thenReturn(response);
+    return usersResources;
+  }
+
+  private void runRefills() {
+    List<Runnable> pending = new ArrayList<>(refills);
+    refills.clear();
+    pending.forEach(Runnable::run);
+  }
+}
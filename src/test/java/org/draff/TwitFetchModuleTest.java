@@ -0,0 +1,70 @@
+package org.draff;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.typesafe.config.ConfigFactory;
+
+import org.draff.model.FollowersGoal;
+import org.draff.objectdb.DatastoreDb;
+import org.draff.objectdb.JdbcDb;
+import org.draff.objectdb.MeteredObjectDb;
+import org.draff.objectdb.ObjectDb;
+import org.draff.twitfetch.TwitFetchModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created by dave on 10/18/16.
+ */
+public class TwitFetchModuleTest {
+  private static final List<String> PROPERTIES = Arrays.asList(
+      "config.file", "object_db", "jdbc_url", "DATASTORE_HOST", "DATASTORE_DATASET");
+  private final Map<String, String> savedProperties = new HashMap<>();
+
+  @Before
+  public void setup() {
+    PROPERTIES.forEach(name -> savedProperties.put(name, System.getProperty(name)));
+    System.setProperty("config.file", "test");
+    System.setProperty("object_db", "jdbc");
+    System.setProperty("jdbc_url", "jdbc:h2:mem:twitfetchmoduletest");
+    // test.conf takes these from the environment, which isn't set up outside the emulator.
+    System.setProperty("DATASTORE_HOST", "http://localhost:8080");
+    System.setProperty("DATASTORE_DATASET", "test");
+    ConfigFactory.invalidateCaches();
+  }
+
+  @After
+  public void tearDown() {
+    savedProperties.forEach((name, value) -> {
+      if (value == null) {
+        System.clearProperty(name);
+      } else {
+        System.setProperty(name, value);
+      }
+    });
+    ConfigFactory.invalidateCaches();
+  }
+
+  @Test
+  public void testJdbcDbReachableBehindMetering() {
+    Injector injector = Guice.createInjector(new TwitFetchModule());
+    ObjectDb db = injector.getInstance(ObjectDb.class);
+    DatastoreDb datastoreDb = injector.getInstance(DatastoreDb.class);
+
+    assertTrue(db instanceof MeteredObjectDb);
+    assertTrue(datastoreDb instanceof JdbcDb);
+    // Both bindings are the same db.
+    FollowersGoal goal = FollowersGoal.create("goal", 2);
+    db.save(goal);
+    assertEquals(goal, datastoreDb.findOne(FollowersGoal.class));
+    assertSame(datastoreDb, injector.getInstance(DatastoreDb.class));
+  }
+}
@@ -0,0 +1,108 @@
+package org.draff;
+
+import com.google.common.collect.ImmutableMap;
+import com.jayway.awaitility.Awaitility;
+
+import org.draff.twitfetch.TwitterTokenPool;
+import org.junit.Test;
+
+import twitter4j.RateLimitStatus;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.draff.support.MockTwitter.mockStatus;
+import static org.draff.support.MockTwitter.withRateLimit;
+import static org.draff.twitfetch.TwitterTokenPool.FOLLOWERS_IDS;
+import static org.draff.twitfetch.TwitterTokenPool.FRIENDS_IDS;
+import static org.draff.twitfetch.TwitterTokenPool.USERS_LOOKUP;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Created by dave on 10/18/16.
+ */
+public class TwitterTokenPoolTest {
+  @Test
+  public void testAcquiresFromTokenWithMostRemaining() {
+    Twitter twitter1 = withRateLimit(1, 60);
+    Twitter twitter2 = withRateLimit(2, 60);
+    TwitterTokenPool pool = new TwitterTokenPool(Arrays.asList(twitter1, twitter2));
+
+    assertSame(twitter2, pool.acquire(FOLLOWERS_IDS));
+    assertSame(twitter1, pool.acquire(FOLLOWERS_IDS));
+    assertSame(twitter2, pool.acquire(FOLLOWERS_IDS));
+    assertNull(pool.acquire(FOLLOWERS_IDS));
+  }
+
+  @Test
+  public void testEndpointsHaveSeparateLimits() {
+    TwitterTokenPool pool = new TwitterTokenPool(Arrays.asList(withRateLimit(1, 60)));
+
+    assertNotNull(pool.acquire(FOLLOWERS_IDS));
+    assertNull(pool.acquire(FOLLOWERS_IDS));
+    assertNotNull(pool.acquire(FRIENDS_IDS));
+  }
+
+  @Test
+  public void testOneStatusRequestPerToken() throws Exception {
+    Twitter twitter1 = withRateLimit(1, 60);
+    Twitter twitter2 = withRateLimit(1, 60);
+    TwitterTokenPool pool = new TwitterTokenPool(Arrays.asList(twitter1, twitter2));
+
+    for (String endpoint : Arrays.asList(FOLLOWERS_IDS, FRIENDS_IDS, USERS_LOOKUP)) {
+      assertNotNull(pool.acquire(endpoint));
+      assertNotNull(pool.acquire(endpoint));
+      assertNull(pool.acquire(endpoint));
+    }
+    verify(twitter1, times(1)).getRateLimitStatus();
+    verify(twitter2, times(1)).getRateLimitStatus();
+  }
+
+  @Test
+  public void testTimeUntilNextResetIsTheSoonestReset() {
+    TwitterTokenPool pool = new TwitterTokenPool(
+        Arrays.asList(withRateLimit(0, 600), withRateLimit(0, 60)));
+
+    assertNull(pool.acquire(FOLLOWERS_IDS));
+    long msUntilReset = pool.timeUntilNextReset(FOLLOWERS_IDS);
+    assertTrue(msUntilReset > 50 * 1000 && msUntilReset <= 70 * 1000);
+  }
+
+  @Test
+  public void testStatusRetriedInBackground() throws Exception {
+    CountDownLatch statusRequested = new CountDownLatch(1);
+    CountDownLatch statusAnswered = new CountDownLatch(1);
+    // The status request at setup fails with a limit that has already reset, so it's retried.
+    TwitterException error = mock(TwitterException.class);
+    RateLimitStatus errorStatus = mockStatus(0, 0);
+    when(error.getRateLimitStatus()).thenReturn(errorStatus);
+    Map<String, RateLimitStatus> statuses = ImmutableMap.of(
+        FOLLOWERS_IDS, mockStatus(3, 600), FRIENDS_IDS, mockStatus(4, 600));
+    Twitter slow = mock(Twitter.class);
+    when(slow.getRateLimitStatus()).thenThrow(error).thenAnswer(invocation -> {
+      statusRequested.countDown();
+      statusAnswered.await();
+      return statuses;
+    });
+    Twitter known = withRateLimit(2, 600);
+    TwitterTokenPool pool = new TwitterTokenPool(Arrays.asList(known, slow));
+
+    // The retry doesn't hold up acquire.
+    assertSame(known, CompletableFuture.supplyAsync(() -> pool.acquire(FOLLOWERS_IDS))
+        .get(1, TimeUnit.SECONDS));
+    assertTrue(statusRequested.await(1, TimeUnit.SECONDS));
+    assertSame(known, pool.acquire(FRIENDS_IDS));
+
+    statusAnswered.countDown();
+    Awaitility.await().atMost(1, TimeUnit.SECONDS)
+        .until(() -> pool.remaining(FOLLOWERS_IDS) == 4 && pool.remaining(FRIENDS_IDS) == 5);
+    assertSame(slow, pool.acquire(FOLLOWERS_IDS));
+    verify(slow, times(2)).getRateLimitStatus();
+  }
+}
@@ -0,0 +1,228 @@
+package org.draff.mapper;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.Key.PathElement;
+import com.google.api.services.datastore.DatastoreV1.Value;
+import com.google.common.collect.ImmutableMap;
+
+import org.draff.model.*;
+import org.draff.objectdb.BuilderEntityMapper;
+import org.draff.objectdb.DbMetrics;
+import org.draff.objectdb.InMemoryDb;
+import org.draff.objectdb.MeteredObjectDb;
+import org.draff.objectdb.ObjectDb;
+import org.draff.objectdb.OperationStats;
+import org.draff.objectdb.processor.EntityMapperProcessor;
+import org.junit.Test;
+
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import static com.google.api.services.datastore.client.DatastoreHelper.*;
+import static org.junit.Assert.*;
+
+/**
+ * Created by dave on 10/18/16.
+ */
+public class GeneratedEntityMapperTest {
+  @Test
+  public void testUserDetailMatchesBuilderMapper() throws TwitterException {
+    UserDetail detail = UserDetail.createFrom(TwitterObjectFactory.createUser(
+        "{\"id\":10,\"screen_name\":\"User1\",\"followers_count\":5," +
+            "\"created_at\":\"Mon Jan 04 14:23:05 +0000 2016\"}"));
+
+    Entity generated = EntityMapper_UserDetail.INSTANCE.toEntity(detail);
+    Entity reflective = new BuilderEntityMapper(UserDetail.class, "builder").toEntity(detail);
+    assertEquals(reflective.getKey(), generated.getKey());
+    assertEquals(getPropertyMap(reflective), getPropertyMap(generated));
+
+    UserDetail decoded = EntityMapper_UserDetail.INSTANCE.fromEntity(generated, UserDetail.class);
+    assertEquals(detail, decoded);
+    assertEquals(Instant.parse("2016-01-04T14:23:05Z"), decoded.createdAt());
+    assertNull(decoded.description());
+  }
+
+  @Test
+  public void testUnindexedProperties() throws TwitterException {
+    UserDetail detail = UserDetail.createFrom(TwitterObjectFactory.createUser(
+        "{\"id\":10,\"screen_name\":\"User1\",\"description\":\"Hi\"}"));
+    for (Entity entity : new Entity[] {EntityMapper_UserDetail.INSTANCE.toEntity(detail),
+        new BuilderEntityMapper(UserDetail.class, "builder").toEntity(detail)}) {
+      Map<String, Value> properties = getPropertyMap(entity);
+      assertFalse(properties.get("description").getIndexed());
+      assertFalse(properties.get("isVerified").getIndexed());
+      assertFalse(properties.get("screenName").hasIndexed());
+      assertFalse(properties.get("followersCount").hasIndexed());
+    }
+  }
+
+  @Test
+  public void testInstantsKeepTheirMicroseconds() {
+    UserDetail detail = UserDetail.builder().id(10).retrievedAt(0).screenName("User1")
+        .statusesCount(0).listedCount(0).followersCount(0).favouritesCount(0).utcOffset(0)
+        .friendsCount(0).createdAt(Instant.parse("1969-12-31T23:59:59.123456789Z"))
+        .isGeoEnabled(false).isVerified(false).isTranslator(false).isContributorsEnabled(false)
+        .isProtected(false).isProfileUseBackgroundImage(false).isDefaultProfile(false)
+        .isShowAllInlineMedia(false).isDefaultProfileImage(false).isProfileBackgroundTiled(false)
+        .build();
+    Instant truncated = Instant.parse("1969-12-31T23:59:59.123456Z");
+    BuilderEntityMapper reflective = new BuilderEntityMapper(UserDetail.class, "builder");
+
+    Entity generated = EntityMapper_UserDetail.INSTANCE.toEntity(detail);
+    assertEquals(-876544L, getPropertyMap(generated).get("createdAt")
+        .getTimestampMicrosecondsValue());
+    assertEquals(getPropertyMap(reflective.toEntity(detail)), getPropertyMap(generated));
+    assertEquals(truncated,
+        EntityMapper_UserDetail.INSTANCE.fromEntity(generated, UserDetail.class).createdAt());
+    assertEquals(truncated, reflective.fromEntity(generated, UserDetail.class).createdAt());
+  }
+
+  @Test
+  public void testLazyViewMatchesEagerModel() throws Exception {
+    UserDetail detail = UserDetail.createFrom(TwitterObjectFactory.createUser(
+        "{\"id\":10,\"screen_name\":\"User1\",\"followers_count\":5,\"verified\":true," +
+            "\"created_at\":\"Mon Jan 04 14:23:05 +0000 2016\"}"));
+    Entity entity = Entity.parseFrom(EntityMapper_UserDetail.INSTANCE.toEntity(detail)
+        .toByteArray());
+
+    UserDetail lazy = EntityMapper_UserDetail.INSTANCE.fromEntityLazily(entity, UserDetail.class);
+    assertNotSame(detail.getClass(), lazy.getClass());
+    assertEquals(5, lazy.followersCount());
+    assertEquals(10, lazy.id());
+    assertTrue(lazy.isVerified());
+    assertNull(lazy.description());
+    assertEquals(detail.createdAt(), lazy.createdAt());
+    assertSame(lazy.createdAt(), lazy.createdAt());
+    assertSame(lazy.screenName(), lazy.screenName());
+    assertEquals(detail, lazy);
+    assertEquals(lazy, detail);
+    assertEquals(detail.hashCode(), lazy.hashCode());
+    assertEquals(detail, lazy.toBuilder().build());
+  }
+
+  @Test
+  public void testStreamLazily() {
+    InMemoryDb db = DbWithMappers.createInMemory();
+    FollowersTracker tracker = FollowersTracker.builder().id(3L).shouldFetchFollowers(true)
+        .followersCursor(1001L).build();
+    db.saveAll(Arrays.asList(tracker, tracker.toBuilder().id(4L).shouldFetchFollowers(false)
+        .build()));
+
+    Map<String, Object> constraints = ImmutableMap.of("shouldFetchFollowers", true);
+    try (Stream<FollowersTracker> trackers = db.streamLazily(FollowersTracker.class,
+        constraints)) {
+      assertEquals(Arrays.asList(tracker), trackers.collect(Collectors.toList()));
+    }
+  }
+
+  @Test
+  public void testFindLazily() {
+    InMemoryDb db = DbWithMappers.createInMemory();
+    FollowersTracker tracker = FollowersTracker.builder().id(3L).shouldFetchFollowers(true)
+        .followersCursor(1001L).build();
+    db.saveAll(Arrays.asList(tracker, tracker.toBuilder().id(4L).build()));
+
+    Map<String, Object> constraints = ImmutableMap.of("shouldFetchFollowers", true);
+    List<FollowersTracker> found = db.findLazily(FollowersTracker.class, constraints, 1);
+    assertEquals(1, found.size());
+    assertEquals(1001L, found.get(0).followersCursor());
+  }
+
+  @Test
+  public void testSaveLazilyLoadedModel() {
+    DbMetrics metrics = new DbMetrics();
+    InMemoryDb db = DbWithMappers.createInMemory();
+    ObjectDb meteredDb = new MeteredObjectDb(db, metrics);
+    FollowersTracker tracker = FollowersTracker.builder().id(3L).shouldFetchFollowers(true)
+        .followersCursor(1001L).build();
+    db.save(tracker);
+
+    FollowersTracker lazy = db.findLazily(FollowersTracker.class,
+        ImmutableMap.of("shouldFetchFollowers", true), 1).get(0);
+    assertTrue(lazy.getClass().getSimpleName().startsWith("LazyView_"));
+    db.delete(tracker);
+    meteredDb.save(lazy);
+
+    // Saved as a FollowersTracker rather than under the lazy view's own kind.
+    assertEquals(tracker, meteredDb.findById(FollowersTracker.class, 3L));
+    assertEquals(1, db.stream(FollowersTracker.class).count());
+    assertEquals(Arrays.asList("FollowersTracker"), metrics.snapshot().stream()
+        .map(OperationStats::kind).distinct().collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testTrackerRoundTrip() {
+    FollowersTracker tracker = FollowersTracker.builder().id(3L).shouldFetchFollowers(true)
+        .followersCursor(1001L).build();
+    Entity entity = EntityMapper_FollowersTracker.INSTANCE.toEntity(tracker);
+    PathElement pathElement = entity.getKey().getPathElement(0);
+    assertEquals("FollowersTracker", pathElement.getKind());
+    assertEquals(3L, pathElement.getId());
+    assertEquals(tracker,
+        EntityMapper_FollowersTracker.INSTANCE.fromEntity(entity, FollowersTracker.class));
+  }
+
+  @Test
+  public void testFactoryModelFromEntity() {
+    Entity entity = Entity.newBuilder()
+        .setKey(makeKey("FollowersGoal", "someuser"))
+        .addProperty(makeProperty("depthGoal", makeValue(2)))
+        .build();
+    assertEquals(FollowersGoal.create("someuser", 2),
+        EntityMapper_FollowersGoal.INSTANCE.fromEntity(entity, FollowersGoal.class));
+  }
+
+  @Test
+  public void testDerivedIdModel() {
+    EmbeddedCommunity community = EmbeddedCommunity.builder()
+        .embeddedScreenName("Inner").parentScreenName("Outer").build();
+    Entity entity = EntityMapper_EmbeddedCommunity.INSTANCE.toEntity(community);
+    assertEquals("inner:outer", entity.getKey().getPathElement(0).getName());
+    assertEquals(community,
+        EntityMapper_EmbeddedCommunity.INSTANCE.fromEntity(entity, EmbeddedCommunity.class));
+  }
+
+  @Test
+  public void testRejectsUnsupportedPropertyTypes() throws Exception {
+    String source = "@org.draff.objectdb.GenerateEntityMapper\n" +
+        "abstract class BadModel implements org.draff.objectdb.Model {\n" +
+        "  abstract long id();\n" +
+        "  abstract int count();\n" +
+        "}\n";
+    JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///BadModel.java"),
+        JavaFileObject.Kind.SOURCE) {
+      @Override
+      public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        return source;
+      }
+    };
+    Path output = Files.createTempDirectory("processor-test");
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+    JavaCompiler.CompilationTask task = ToolProvider.getSystemJavaCompiler().getTask(null, null,
+        diagnostics, Arrays.asList("-d", output.toString(),
+            "-cp", System.getProperty("java.class.path")), null, Arrays.asList(file));
+    task.setProcessors(Arrays.asList(new EntityMapperProcessor()));
+
+    assertFalse(task.call());
+    assertTrue(diagnostics.getDiagnostics().stream().anyMatch(diagnostic ->
+        diagnostic.getKind() == Diagnostic.Kind.ERROR &&
+            diagnostic.getMessage(null).contains("Property count has type int")));
+  }
+}
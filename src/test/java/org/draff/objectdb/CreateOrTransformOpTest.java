@@ -0,0 +1,76 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.CommitRequest;
+import com.google.api.services.datastore.DatastoreV1.CommitResponse;
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.client.Datastore;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Created by dave on 10/18/16.
+ */
+public class CreateOrTransformOpTest {
+  private Datastore datastore = mock(Datastore.class);
+  private DatastoreDb db = new DatastoreDb(datastore, ImmutableMap.of());
+  private EntityMapper mapper = new BuilderEntityMapper(TestBuilderModel.class, "builder");
+
+  @Before
+  public void setup() throws Exception {
+    LookupResponse.Builder lookup = LookupResponse.newBuilder();
+    lookup.addFoundBuilder().setEntity(mapper.toEntity(model(1, "same")));
+    lookup.addFoundBuilder().setEntity(mapper.toEntity(model(2, "old")));
+    when(datastore.lookup(any(LookupRequest.class))).thenReturn(lookup.build());
+    when(datastore.commit(any(CommitRequest.class)))
+        .thenReturn(CommitResponse.getDefaultInstance());
+  }
+
+  @Test
+  public void testOnlyNewAndChangedModelsSaved() throws Exception {
+    CreateOrTransformOp.Result result = db.createOrTransform(TestBuilderModel.class)
+        .namesOrIds(Arrays.asList(1L, 2L, 3L))
+        .creator(id -> model((Long) id, "new"))
+        .transformer(existing -> existing.stringProp().equals("old") ? model(existing.id(), "same")
+            : existing)
+        .now();
+
+    assertEquals(1, result.created());
+    assertEquals(1, result.updated());
+    assertEquals(1, result.unchanged());
+
+    ArgumentCaptor<CommitRequest> commit = ArgumentCaptor.forClass(CommitRequest.class);
+    verify(datastore).commit(commit.capture());
+    List<Entity> saved = commit.getValue().getMutation().getUpsertList();
+    assertEquals(Arrays.asList(2L, 3L), saved.stream()
+        .map(entity -> entity.getKey().getPathElement(0).getId()).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testNothingSavedWhenAllUnchanged() throws Exception {
+    CreateOrTransformOp.Result result = db.createOrTransform(TestBuilderModel.class)
+        .namesOrIds(Arrays.asList(1L, 2L))
+        .creator(id -> model((Long) id, "new"))
+        .transformer(existing -> model(existing.id(), existing.stringProp()))
+        .now();
+
+    assertEquals(CreateOrTransformOp.Result.create(0, 0, 2), result);
+    verify(datastore, never()).commit(any(CommitRequest.class));
+  }
+
+  private static TestBuilderModel model(long id, String stringProp) {
+    return TestBuilderModel.builder().id(id).stringProp(stringProp).longProp(id).build();
+  }
+}
@@ -0,0 +1,184 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.CommitRequest;
+import com.google.api.services.datastore.DatastoreV1.CommitResponse;
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.EntityResult;
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.DatastoreV1.Query;
+import com.google.api.services.datastore.DatastoreV1.QueryResultBatch;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
+import com.google.api.services.datastore.client.Datastore;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.api.services.datastore.client.DatastoreHelper.makeKey;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Created by dave on 10/18/16.
+ */
+public class DatastoreDbCacheTest {
+  private Datastore datastore = mock(Datastore.class);
+  private DatastoreDb db;
+  private EntityMapper mapper = new BuilderEntityMapper(TestBuilderModel.class, "builder");
+
+  @Before
+  public void setup() throws Exception {
+    db = new DatastoreDb(datastore, ImmutableMap.of(), DatastoreDbOptions.builder()
+        .cachePolicies(ImmutableMap.of(TestBuilderModel.class,
+            CachePolicy.create(100, Duration.ofMinutes(1))))
+        .build());
+    when(datastore.commit(any(CommitRequest.class)))
+        .thenReturn(CommitResponse.getDefaultInstance());
+  }
+
+  @Test
+  public void testLookupsReadThroughCache() throws Exception {
+    lookupReturns(model(1));
+
+    assertEquals(model(1), db.findById(TestBuilderModel.class, 1));
+    assertEquals(model(1), db.findById(TestBuilderModel.class, 1));
+    assertEquals(Arrays.asList(model(1)), db.findByIds(TestBuilderModel.class, Arrays.asList(1L)));
+
+    verify(datastore, times(1)).lookup(any(LookupRequest.class));
+    assertEquals(2, db.cacheStats().get("TestBuilderModel").hitCount());
+  }
+
+  @Test
+  public void testOnlyUncachedKeysLookedUp() throws Exception {
+    lookupReturns(model(1));
+    db.findById(TestBuilderModel.class, 1);
+    lookupReturns(model(2));
+
+    List<TestBuilderModel> found = db.findByIds(TestBuilderModel.class, Arrays.asList(1L, 2L));
+
+    assertEquals(Arrays.asList(model(1), model(2)), found);
+    verify(datastore).lookup(LookupRequest.newBuilder().addKey(mapper.toEntity(model(2)).getKey())
+        .build());
+  }
+
+  @Test
+  public void testExistingIdsQueriesUncachedKeysOnly() throws Exception {
+    lookupReturns(model(1));
+    db.findById(TestBuilderModel.class, 1);
+    Key key2 = makeKey("TestBuilderModel", 2L).build();
+    when(datastore.runQuery(any(RunQueryRequest.class))).thenAnswer(invocation -> {
+      Query query = ((RunQueryRequest) invocation.getArguments()[0]).getQuery();
+      RunQueryResponse.Builder response = RunQueryResponse.newBuilder();
+      response.getBatchBuilder().setMoreResults(QueryResultBatch.MoreResultsType.NO_MORE_RESULTS)
+          .setEntityResultType(EntityResult.ResultType.KEY_ONLY);
+      Key key = query.getFilter().getPropertyFilter().getValue().getKeyValue();
+      if (key.equals(key2)) {
+        response.getBatchBuilder().addEntityResultBuilder().getEntityBuilder().setKey(key);
+      }
+      return response.build();
+    });
+
+    assertEquals(ImmutableSet.of(1L, 2L),
+        db.existingIds(TestBuilderModel.class, Arrays.asList(1L, 2L, 3L)));
+    verify(datastore, times(1)).lookup(any(LookupRequest.class));
+    ArgumentCaptor<RunQueryRequest> queries = ArgumentCaptor.forClass(RunQueryRequest.class);
+    verify(datastore, times(2)).runQuery(queries.capture());
+    for (RunQueryRequest request : queries.getAllValues()) {
+      assertEquals("__key__", request.getQuery().getProjection(0).getProperty().getName());
+    }
+  }
+
+  @Test
+  public void testSaveAndDeleteInvalidate() throws Exception {
+    lookupReturns(model(1));
+    db.findById(TestBuilderModel.class, 1);
+
+    TestBuilderModel updated = updated(1);
+    db.save(updated);
+    lookupReturns(updated);
+    assertEquals(updated, db.findById(TestBuilderModel.class, 1));
+
+    db.delete(updated);
+    lookupReturns();
+    assertNull(db.findById(TestBuilderModel.class, 1));
+    verify(datastore, times(3)).lookup(any(LookupRequest.class));
+  }
+
+  @Test
+  public void testCreateOrTransformReadsPastCache() throws Exception {
+    lookupReturns(model(1));
+    db.findById(TestBuilderModel.class, 1);
+
+    // Another process changed the entity since it was cached.
+    lookupReturns(updated(1));
+    db.createOrTransform(TestBuilderModel.class).namesOrIds(Arrays.asList(1L))
+        .transformer(model -> TestBuilderModel.builder().id(model.id())
+            .stringProp(model.stringProp()).longProp(99).build())
+        .creator(id -> model((Long) id))
+        .now();
+
+    ArgumentCaptor<CommitRequest> commit = ArgumentCaptor.forClass(CommitRequest.class);
+    verify(datastore).commit(commit.capture());
+    Entity saved = commit.getValue().getMutation().getUpsert(0);
+    assertEquals("updated1", mapper.fromEntity(saved, TestBuilderModel.class).stringProp());
+  }
+
+  @Test
+  public void testLookupRacingSaveDoesNotCacheOldEntity() throws Exception {
+    CountDownLatch lookupStarted = new CountDownLatch(1);
+    CountDownLatch saved = new CountDownLatch(1);
+    LookupResponse oldResponse = lookupResponse(model(1));
+    when(datastore.lookup(any(LookupRequest.class))).thenAnswer(invocation -> {
+      lookupStarted.countDown();
+      saved.await();
+      return oldResponse;
+    });
+
+    // The lookup reads the entity as it was before the save but only returns after it.
+    CompletableFuture<TestBuilderModel> racingLookup =
+        CompletableFuture.supplyAsync(() -> db.findById(TestBuilderModel.class, 1));
+    assertTrue(lookupStarted.await(1, TimeUnit.SECONDS));
+    TestBuilderModel updated = updated(1);
+    db.save(updated);
+    saved.countDown();
+    assertEquals(model(1), racingLookup.get(1, TimeUnit.SECONDS));
+
+    lookupReturns(updated);
+    assertEquals(updated, db.findById(TestBuilderModel.class, 1));
+    assertEquals(updated, db.findById(TestBuilderModel.class, 1));
+    verify(datastore, times(2)).lookup(any(LookupRequest.class));
+  }
+
+  private void lookupReturns(TestBuilderModel... models) throws Exception {
+    when(datastore.lookup(any(LookupRequest.class))).thenReturn(lookupResponse(models));
+  }
+
+  private LookupResponse lookupResponse(TestBuilderModel... models) {
+    LookupResponse.Builder response = LookupResponse.newBuilder();
+    for (TestBuilderModel model : models) {
+      response.addFoundBuilder().setEntity(mapper.toEntity(model));
+    }
+    return response.build();
+  }
+
+  private static TestBuilderModel model(long id) {
+    return TestBuilderModel.builder().id(id).stringProp("model" + id).longProp(id * 10).build();
+  }
+
+  private static TestBuilderModel updated(long id) {
+    return TestBuilderModel.builder().id(id).stringProp("updated" + id).longProp(id + 1).build();
+  }
+}
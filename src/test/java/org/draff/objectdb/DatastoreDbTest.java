@@ -2,17 +2,22 @@ package org.draff.objectdb;
 
 import com.google.auto.value.AutoValue;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 import org.draff.support.TestDatastore;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.draff.support.EventualConsistencyHelper.waitForEventualDelete;
 import static org.draff.support.EventualConsistencyHelper.waitForEventualSave;
+import static org.draff.support.EventualConsistencyHelper.waitOnEventualConsistency;
 import static org.junit.Assert.*;
 
 /**
@@ -191,4 +196,51 @@ public class DatastoreDbTest {
     assertEquals(4L, friends.get(0).id);
     assertEquals(5L, friends.get(1).id);
   }
+
+  @Test
+  public void testFindPageResumesFromToken() {
+    User user = User.builder().id(1L).depthGoal(2L).build();
+    db.save(user);
+    waitForEventualSave(User.class);
+
+    List<Friend> friends = new ArrayList<>();
+    for (long id = 1; id <= 5; id++) {
+      Friend friend = new Friend();
+      friend.parent = user;
+      friend.id = id;
+      friends.add(friend);
+    }
+    db.saveAll(friends);
+    waitOnEventualConsistency(() -> db.findChildren(user, Friend.class, 10, 0).size() == 5);
+
+    List<Long> pagedIds = new ArrayList<>();
+    String pageToken = null;
+    do {
+      Page<Friend> page = db.findChildrenPage(user, Friend.class, 2, pageToken);
+      assertTrue(page.items().size() <= 2);
+      page.items().forEach(friend -> pagedIds.add(friend.id));
+      pageToken = page.nextPageToken();
+    } while (pageToken != null);
+
+    assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), pagedIds);
+  }
+
+  @Test
+  public void testProjectionAndKeysOnlyQueries() {
+    db.saveAll(Arrays.asList(User.builder().id(1).depthGoal(2).build(),
+        User.builder().id(2).depthGoal(1).build()));
+    waitOnEventualConsistency(() -> db.find(User.class, 3).size() == 2);
+
+    Set<Object> depthGoals = db.streamProjection(User.class, Arrays.asList("depthGoal"))
+        .map(properties -> properties.get("depthGoal")).collect(Collectors.toSet());
+    assertEquals(ImmutableSet.of(1L, 2L), depthGoals);
+
+    Map<String, Object> depthGoalOne =
+        new ImmutableMap.Builder<String, Object>().put("depthGoal", 1L).build();
+    assertEquals(Arrays.asList(2L),
+        db.streamIds(User.class, depthGoalOne).collect(Collectors.toList()));
+
+    assertEquals(ImmutableSet.of(1L, 2L), db.existingIds(User.class, Arrays.asList(1L, 2L, 3L)));
+    assertEquals(ImmutableSet.of(), db.existingIds(User.class, Arrays.asList(5L)));
+  }
 }
@@ -0,0 +1,289 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.CommitRequest;
+import com.google.api.services.datastore.DatastoreV1.CommitResponse;
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.EntityResult;
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.DatastoreV1.Query;
+import com.google.api.services.datastore.DatastoreV1.QueryResultBatch;
+import com.google.api.services.datastore.DatastoreV1.QueryResultBatch.MoreResultsType;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
+import com.google.api.services.datastore.client.Datastore;
+import com.google.api.services.datastore.client.DatastoreException;
+import com.google.protobuf.ByteString;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.api.services.datastore.client.DatastoreHelper.makeKey;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Created by dave on 10/18/16.
+ */
+public class DatastoreUtilTest {
+  private Datastore datastore = mock(Datastore.class);
+
+  @Test
+  public void testSaveUpsertsCommitsBatchesConcurrently() throws Exception {
+    // Each commit waits until a second one has started, so this only finishes if at least two
+    // batches are in flight at the same time.
+    CountDownLatch inFlight = new CountDownLatch(2);
+    when(datastore.commit(any(CommitRequest.class))).thenAnswer(invocation -> {
+      inFlight.countDown();
+      if (!inFlight.await(5, TimeUnit.SECONDS)) {
+        throw new DatastoreException("commit", 500, "no concurrent commit", null);
+      }
+      return CommitResponse.getDefaultInstance();
+    });
+
+    new DatastoreUtil(datastore).saveUpserts(entities(1200));
+
+    verify(datastore, times(3)).commit(any(CommitRequest.class));
+  }
+
+  @Test
+  public void testSingleBatchCommitsOnCallingThread() throws Exception {
+    Thread caller = Thread.currentThread();
+    when(datastore.commit(any(CommitRequest.class))).thenAnswer(invocation -> {
+      assertSame(caller, Thread.currentThread());
+      return CommitResponse.getDefaultInstance();
+    });
+
+    new DatastoreUtil(datastore).saveUpserts(entities(500));
+
+    verify(datastore, times(1)).commit(any(CommitRequest.class));
+  }
+
+  @Test
+  public void testFailuresReportedInBatchOrder() throws Exception {
+    // Batches are 1-500, 501-1000, 1001-1500 and 1501-1700; fail the last two.
+    when(datastore.commit(any(CommitRequest.class))).thenAnswer(invocation -> {
+      CommitRequest request = (CommitRequest) invocation.getArguments()[0];
+      long firstId = request.getMutation().getUpsert(0).getKey().getPathElement(0).getId();
+      if (firstId > 1000) {
+        throw new DatastoreException("commit", 503, "batch from " + firstId, null);
+      }
+      return CommitResponse.getDefaultInstance();
+    });
+    DatastoreUtil util = new DatastoreUtil(datastore);
+
+    try {
+      util.saveUpserts(entities(1700));
+      fail("Expected ObjectDbException");
+    } catch (ObjectDbException e) {
+      assertBatchThreeFailedFirst(e);
+    }
+
+    try {
+      util.saveUpsertsAsync(entities(1700)).join();
+      fail("Expected CompletionException");
+    } catch (CompletionException e) {
+      assertBatchThreeFailedFirst((ObjectDbException) e.getCause());
+    }
+  }
+
+  @Test
+  public void testSaveDeletesSplitsIntoBatches() throws Exception {
+    List<CommitRequest> commits = new ArrayList<>();
+    when(datastore.commit(any(CommitRequest.class))).thenAnswer(invocation -> {
+      synchronized (commits) {
+        commits.add((CommitRequest) invocation.getArguments()[0]);
+      }
+      return CommitResponse.getDefaultInstance();
+    });
+
+    List<Key.Builder> keys = entities(1100).stream()
+        .map(entity -> entity.getKey().toBuilder()).collect(Collectors.toList());
+    new DatastoreUtil(datastore).saveDeletes(keys);
+
+    assertEquals(3, commits.size());
+    assertEquals(1100, commits.stream().mapToInt(c -> c.getMutation().getDeleteCount()).sum());
+    assertTrue(commits.stream().allMatch(c -> c.getMutation().getDeleteCount() <= 500));
+  }
+
+  @Test
+  public void testDeleteWherePagesThroughKeys() throws Exception {
+    List<Entity> matching = entities(1200);
+    when(datastore.runQuery(any(RunQueryRequest.class))).thenAnswer(invocation -> {
+      RunQueryRequest request = (RunQueryRequest) invocation.getArguments()[0];
+      assertEquals("__key__", request.getQuery().getProjection(0).getProperty().getName());
+      return resultBatch(matching, request, Integer.MAX_VALUE);
+    });
+    List<Key> deleted = new ArrayList<>();
+    when(datastore.commit(any(CommitRequest.class))).thenAnswer(invocation -> {
+      CommitRequest request = (CommitRequest) invocation.getArguments()[0];
+      synchronized (deleted) {
+        deleted.addAll(request.getMutation().getDeleteList());
+      }
+      return CommitResponse.getDefaultInstance();
+    });
+
+    assertEquals(1200, new DatastoreUtil(datastore).deleteWhere("Thing", null));
+
+    assertEquals(1200, deleted.size());
+    assertTrue(deleted.containsAll(matching.stream().map(Entity::getKey)
+        .collect(Collectors.toList())));
+    verify(datastore, times(3)).runQuery(any(RunQueryRequest.class));
+  }
+
+  @Test
+  public void testFindFollowsCursorAcrossBatches() throws Exception {
+    List<Entity> matching = entities(1000);
+    List<RunQueryRequest> requests = new ArrayList<>();
+    when(datastore.runQuery(any(RunQueryRequest.class))).thenAnswer(invocation -> {
+      RunQueryRequest request = (RunQueryRequest) invocation.getArguments()[0];
+      requests.add(request);
+      return resultBatch(matching, request, 100);
+    });
+
+    List<Entity> found = new DatastoreUtil(datastore).find("Thing", null, 250);
+
+    assertEquals(matching.subList(0, 250), found);
+    assertEquals(3, requests.size());
+    assertEquals(150, requests.get(1).getQuery().getLimit());
+    assertEquals(50, requests.get(2).getQuery().getLimit());
+  }
+
+  @Test
+  public void testQueryPrefetchesNextBatch() throws Exception {
+    List<Entity> matching = entities(300);
+    when(datastore.runQuery(any(RunQueryRequest.class))).thenAnswer(invocation ->
+        resultBatch(matching, (RunQueryRequest) invocation.getArguments()[0], 100));
+
+    QueryResultIterator results = new DatastoreUtil(datastore).query("Thing", null);
+    assertEquals(matching.get(0), results.next());
+    // The second batch gets requested without the first one having been used up.
+    verify(datastore, timeout(5000).times(2)).runQuery(any(RunQueryRequest.class));
+
+    List<Entity> rest = new ArrayList<>();
+    results.forEachRemaining(rest::add);
+    assertEquals(matching.subList(1, 300), rest);
+    verify(datastore, times(3)).runQuery(any(RunQueryRequest.class));
+  }
+
+  @Test
+  public void testQueryPageResumesFromCursor() throws Exception {
+    List<Entity> matching = entities(250);
+    when(datastore.runQuery(any(RunQueryRequest.class))).thenAnswer(invocation ->
+        resultBatch(matching, (RunQueryRequest) invocation.getArguments()[0], 100));
+    DatastoreUtil util = new DatastoreUtil(datastore);
+
+    List<Entity> found = new ArrayList<>();
+    ByteString cursor = null;
+    int pages = 0;
+    do {
+      QueryResultIterator page = util.queryPage("Thing", null, 120, cursor);
+      page.forEachRemaining(found::add);
+      cursor = page.resumeCursor();
+      pages++;
+    } while (cursor != null);
+
+    assertEquals(3, pages);
+    assertEquals(matching, found);
+  }
+
+  @Test
+  public void testFindByIdsChunksKeysAndFollowsDeferred() throws Exception {
+    List<Entity> existing = entities(2500);
+    List<Integer> requestSizes = Collections.synchronizedList(new ArrayList<>());
+    when(datastore.lookup(any(LookupRequest.class))).thenAnswer(invocation -> {
+      LookupRequest request = (LookupRequest) invocation.getArguments()[0];
+      requestSizes.add(request.getKeyCount());
+      // Find the first half of the keys and defer the rest, like Datastore does when the
+      // response would be too big.
+      LookupResponse.Builder response = LookupResponse.newBuilder();
+      int found = (request.getKeyCount() + 1) / 2;
+      for (int i = 0; i < request.getKeyCount(); i++) {
+        Key key = request.getKey(i);
+        if (i >= found) {
+          response.addDeferred(key);
+        } else if (index(key) < existing.size()) {
+          response.addFoundBuilder().setEntity(existing.get(index(key)));
+        } else {
+          response.addMissingBuilder().setEntity(Entity.newBuilder().setKey(key));
+        }
+      }
+      return response.build();
+    });
+
+    List<Key> keys = entities(3000).stream().map(Entity::getKey).collect(Collectors.toList());
+    List<Entity> found = new DatastoreUtil(datastore).findByIds(keys);
+
+    assertEquals(2500, found.size());
+    assertEquals(new HashSet<>(existing), new HashSet<>(found));
+    assertTrue(requestSizes.stream().allMatch(size -> size <= 1000));
+  }
+
+  @Test
+  public void testFindByIdsWrapsLookupErrors() throws Exception {
+    StackOverflowError error = new StackOverflowError();
+    when(datastore.lookup(any(LookupRequest.class))).thenThrow(error);
+
+    List<Key> keys = entities(1500).stream().map(Entity::getKey).collect(Collectors.toList());
+    try {
+      new DatastoreUtil(datastore).findByIds(keys);
+      fail("Expected the lookup error to be thrown");
+    } catch (ObjectDbException e) {
+      assertSame(error, e.getCause());
+    }
+  }
+
+  // Serves up a batch of the entities starting at the request's start cursor, which here is just
+  // the offset encoded as a string. Batches stop at the query limit or at maxBatchSize entities,
+  // whichever comes first, like Datastore cutting a batch short.
+  private static RunQueryResponse resultBatch(List<Entity> entities, RunQueryRequest request,
+                                              int maxBatchSize) {
+    Query query = request.getQuery();
+    ByteString cursor = query.getStartCursor();
+    int start = cursor.isEmpty() ? 0 : Integer.parseInt(cursor.toStringUtf8());
+    int limit = query.hasLimit() ? query.getLimit() : Integer.MAX_VALUE;
+    int end = Math.min(entities.size(), start + Math.min(limit, maxBatchSize));
+
+    MoreResultsType moreResults = MoreResultsType.NOT_FINISHED;
+    if (end == entities.size()) {
+      moreResults = MoreResultsType.NO_MORE_RESULTS;
+    } else if (end - start == limit) {
+      moreResults = MoreResultsType.MORE_RESULTS_AFTER_LIMIT;
+    }
+    QueryResultBatch.Builder batch = QueryResultBatch.newBuilder()
+        .setEntityResultType(query.getProjectionCount() > 0 ? EntityResult.ResultType.KEY_ONLY
+            : EntityResult.ResultType.FULL)
+        .setEndCursor(ByteString.copyFromUtf8(Integer.toString(end)))
+        .setMoreResults(moreResults);
+    entities.subList(start, end).forEach(e -> batch.addEntityResultBuilder().setEntity(e));
+    return RunQueryResponse.newBuilder().setBatch(batch).build();
+  }
+
+  private static int index(Key key) {
+    return (int) key.getPathElement(0).getId() - 1;
+  }
+
+  private static void assertBatchThreeFailedFirst(ObjectDbException e) {
+    assertEquals("Commit of batch 3 of 4 failed", e.getMessage());
+    assertTrue(e.getCause().getCause().getMessage().contains("batch from 1001"));
+    assertEquals(1, e.getSuppressed().length);
+  }
+
+  private static List<Entity> entities(int count) {
+    List<Entity> entities = new ArrayList<>();
+    for (long id = 1; id <= count; id++) {
+      entities.add(Entity.newBuilder().setKey(makeKey("Thing", id)).build());
+    }
+    return entities;
+  }
+}
@@ -0,0 +1,85 @@
+package org.draff.objectdb;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.draff.objectdb.DatastoreDbTest.User;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created by dave on 10/18/16.
+ */
+public class DbMetricsTest {
+  @Test
+  public void testHistogramPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long nanos = 1; nanos <= 1000; nanos++) {
+      histogram.record(nanos * 1000);
+    }
+    assertEquals(1000, histogram.count());
+    assertEquals(1000000, histogram.maxNanos());
+    assertEquals(500500.0, histogram.meanNanos(), 0.001);
+    assertWithin25Percent(500000, histogram.percentileNanos(0.5));
+    assertWithin25Percent(990000, histogram.percentileNanos(0.99));
+    assertEquals(1000000, histogram.percentileNanos(1.0));
+  }
+
+  @Test
+  public void testRecordsObjectDbCallsAndRpcs() {
+    DbMetrics metrics = new DbMetrics();
+    ObjectDb db = new MeteredObjectDb(
+        new InMemoryDb(ImmutableMap.of(), DatastoreDbOptions.builder().metrics(metrics).build()),
+        metrics);
+
+    List<User> users = new ArrayList<>();
+    for (long id = 1; id <= 600; id++) {
+      users.add(User.builder().id(id).depthGoal(2).build());
+    }
+    db.saveAll(users);
+    assertNotNull(db.findById(User.class, 5));
+    assertNull(db.findById(User.class, 700));
+    assertEquals(600, db.stream(User.class).collect(Collectors.toList()).size());
+
+    OperationStats saveAll = metrics.stats("objectdb.saveAll", "User");
+    assertEquals(1, saveAll.calls());
+    assertEquals(600, saveAll.entities());
+    assertEquals(2, metrics.stats("objectdb.findById", "User").calls());
+    assertEquals(1, metrics.stats("objectdb.findById", "User").entities());
+    assertEquals(600, metrics.stats("objectdb.stream", "User").entities());
+
+    OperationStats commits = metrics.stats("rpc.commit", "User");
+    assertEquals(2, commits.calls());
+    assertEquals(600, commits.entities());
+    assertTrue(commits.bytes() > 0);
+    OperationStats queries = metrics.stats("rpc.runQuery", "User");
+    assertEquals(600, queries.entities());
+    assertEquals(2, queries.pages());
+    assertEquals(0, queries.errors());
+
+    assertTrue(metrics.snapshot().size() >= 5);
+    assertTrue(metrics.export().contains("rpc.commit"));
+  }
+
+  @Test
+  public void testRecordsErrors() {
+    DbMetrics metrics = new DbMetrics();
+    ObjectDb db = new MeteredObjectDb(new InMemoryDb(), metrics);
+    try {
+      db.findByNamesOrIds(User.class, Arrays.asList(1.5));
+      fail("Expected an exception for an id that's neither a name nor an id");
+    } catch (RuntimeException e) {
+      assertEquals(1, metrics.stats("objectdb.findByNamesOrIds", "User").errors());
+    }
+  }
+
+  private static void assertWithin25Percent(long expected, long actual) {
+    assertTrue(actual + " isn't near " + expected,
+        actual >= expected * 0.75 && actual <= expected * 1.25);
+  }
+}
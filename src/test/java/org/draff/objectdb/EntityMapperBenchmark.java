@@ -0,0 +1,342 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.Property;
+import com.google.api.services.datastore.DatastoreV1.Value;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.draff.model.EntityMapper_FollowersTracker;
+import org.draff.model.EntityMapper_UserDetail;
+import org.draff.model.FollowersTracker;
+import org.draff.model.UserDetail;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static com.google.api.services.datastore.client.DatastoreHelper.getPropertyMap;
+import static com.google.api.services.datastore.client.DatastoreHelper.makeKey;
+import static com.google.api.services.datastore.client.DatastoreHelper.makeProperty;
+import static org.draff.objectdb.EntityMapperHelper.*;
+import static org.draff.objectdb.PropertyAccessors.getter;
+import static org.draff.objectdb.PropertyAccessors.setter;
+import static org.draff.objectdb.PropertyAccessors.supplier;
+import static org.draff.objectdb.ValueHelper.fromValue;
+import static org.draff.objectdb.ValueHelper.toValue;
+
+/**
+ * Rough round-trip (toEntity + fromEntity) benchmark for the entity mappers. It compares the
+ * builder entity mapper and the compile-time generated mapper against a baseline that calls every
+ * property method through Method.invoke, which is how the mappers used to work. It also compares
+ * them against a mapper with bound property methods that converts values through ValueHelper,
+ * boxing primitives on the way, which is how the builder mapper worked before it had typed
+ * property codecs. Finally it compares a scan that reads one property through eagerly decoded
+ * models and through lazy views.
+ *
+ * This isn't a unit test (it has no assertions and takes a while), so run it directly:
+ *   java -cp target/test-classes:target/classes:target/dependency/* \
+ *     org.draff.objectdb.EntityMapperBenchmark
+ *
+ * Created by dave on 10/18/16.
+ */
+public class EntityMapperBenchmark {
+  private static final int BATCH_SIZE = 100;
+  private static final int TRIALS = 3;
+  private static final int WARMUP_ROUNDS = 1000;
+  private static final int MEASURED_ROUNDS = 3000;
+
+  public static void main(String[] args) {
+    List<UserDetail> userDetails = new ArrayList<>();
+    List<FollowersTracker> trackers = new ArrayList<>();
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      userDetails.add(userDetail(i));
+      trackers.add(FollowersTracker.builder().id(i).shouldFetchFollowers(true)
+          .followersCursor(i * 1000L).build());
+    }
+
+    compare("UserDetail", UserDetail.class, userDetails, EntityMapper_UserDetail.INSTANCE);
+    compare("FollowersTracker", FollowersTracker.class, trackers,
+        EntityMapper_FollowersTracker.INSTANCE);
+    compareScans(userDetails);
+  }
+
+  // A scan that reads only followersCount, as the analysis passes do, from entities parsed off the
+  // wire (so that none of their strings have been decoded yet): eager decoding against the lazy
+  // view.
+  private static void compareScans(List<UserDetail> userDetails) {
+    EntityMapper mapper = EntityMapper_UserDetail.INSTANCE;
+    List<byte[]> serialized = userDetails.stream()
+        .map(detail -> mapper.toEntity(detail).toByteArray()).collect(Collectors.toList());
+    Supplier<Integer> eager = () -> scan(serialized, entity ->
+        mapper.fromEntity(entity, UserDetail.class));
+    Supplier<Integer> lazy = () -> scan(serialized, entity ->
+        mapper.fromEntityLazily(entity, UserDetail.class));
+
+    // Parsing the entities costs the same either way, so it's measured on its own and taken out.
+    Supplier<Integer> parseOnly = () -> scan(serialized, entity -> null);
+
+    double parseNs = Double.MAX_VALUE;
+    double eagerNs = Double.MAX_VALUE;
+    double lazyNs = Double.MAX_VALUE;
+    for (int trial = 0; trial < TRIALS; trial++) {
+      parseNs = Math.min(parseNs, nsPerModel(parseOnly));
+      eagerNs = Math.min(eagerNs, nsPerModel(eager));
+      lazyNs = Math.min(lazyNs, nsPerModel(lazy));
+    }
+    long parseBytes = bytesPerModel(parseOnly);
+    long eagerBytes = bytesPerModel(eager) - parseBytes;
+    long lazyBytes = bytesPerModel(lazy) - parseBytes;
+    System.out.printf("%-18s eager: %6.0f ns %6d B   lazy: %6.0f ns %6d B   " +
+            "[per model, after parsing: %.0f ns %d B]%n", "UserDetail scan",
+        eagerNs - parseNs, eagerBytes, lazyNs - parseNs, lazyBytes, parseNs, parseBytes);
+  }
+
+  private static int scan(List<byte[]> serialized, Function<Entity, UserDetail> decode) {
+    int check = 0;
+    for (byte[] bytes : serialized) {
+      try {
+        UserDetail detail = decode.apply(Entity.parseFrom(bytes));
+        check += detail == null ? 1 : detail.followersCount();
+      } catch(InvalidProtocolBufferException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    return check;
+  }
+
+  private static <T extends Model> void compare(String name, Class<T> clazz, List<T> models,
+                                                EntityMapper generated) {
+    EntityMapper reflective = new ReflectiveBuilderMapper(clazz);
+    EntityMapper boxed = new BoxedBuilderMapper(clazz);
+    EntityMapper bound = new BuilderEntityMapper(clazz, "builder");
+
+    // Alternate between the mappers and keep the best time for each so that none of them benefits
+    // from running after another has warmed up shared code (protobuf builders etc.).
+    double reflectiveNs = Double.MAX_VALUE;
+    double boxedNs = Double.MAX_VALUE;
+    double boundNs = Double.MAX_VALUE;
+    double generatedNs = Double.MAX_VALUE;
+    for (int trial = 0; trial < TRIALS; trial++) {
+      reflectiveNs = Math.min(reflectiveNs, nsPerModel(() -> roundTrip(reflective, clazz, models)));
+      boxedNs = Math.min(boxedNs, nsPerModel(() -> roundTrip(boxed, clazz, models)));
+      boundNs = Math.min(boundNs, nsPerModel(() -> roundTrip(bound, clazz, models)));
+      generatedNs = Math.min(generatedNs, nsPerModel(() -> roundTrip(generated, clazz, models)));
+    }
+
+    System.out.printf("%-18s reflective: %6.0f ns   boxed: %6.0f ns (%.1fx)   " +
+            "bound: %6.0f ns (%.1fx)   generated: %6.0f ns (%.1fx)   [per model]%n", name,
+        reflectiveNs, boxedNs, reflectiveNs / boxedNs, boundNs, reflectiveNs / boundNs,
+        generatedNs, reflectiveNs / generatedNs);
+
+    // Allocation is much steadier than timing from run to run, and shows the boxing directly.
+    System.out.printf("%-18s reflective: %6d B    boxed: %6d B           bound: %6d B           " +
+            "generated: %6d B           [allocated per model]%n", "",
+        bytesPerModel(() -> roundTrip(reflective, clazz, models)),
+        bytesPerModel(() -> roundTrip(boxed, clazz, models)),
+        bytesPerModel(() -> roundTrip(bound, clazz, models)),
+        bytesPerModel(() -> roundTrip(generated, clazz, models)));
+  }
+
+  private static <T extends Model> int roundTrip(EntityMapper mapper, Class<T> clazz,
+                                                 List<T> models) {
+    int check = 0;
+    for (T model : models) {
+      Entity entity = mapper.toEntity(model);
+      check += mapper.fromEntity(entity, clazz).hashCode();
+    }
+    return check;
+  }
+
+  private static double nsPerModel(Supplier<Integer> batch) {
+    int check = 0;
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      check += batch.get();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < MEASURED_ROUNDS; i++) {
+      check += batch.get();
+    }
+    long elapsed = System.nanoTime() - start;
+    if (check == 42) {
+      // Keeps the JIT from discarding the work.
+      System.out.println();
+    }
+    return (double) elapsed / ((long) MEASURED_ROUNDS * BATCH_SIZE);
+  }
+
+  // Run after the timings, once the batch is warmed up.
+  private static long bytesPerModel(Supplier<Integer> batch) {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    int check = 0;
+    long start = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < MEASURED_ROUNDS; i++) {
+      check += batch.get();
+    }
+    long allocated = threads.getThreadAllocatedBytes(threadId) - start;
+    if (check == 42) {
+      System.out.println();
+    }
+    return allocated / ((long) MEASURED_ROUNDS * BATCH_SIZE);
+  }
+
+  private static UserDetail userDetail(long id) {
+    return UserDetail.builder()
+        .id(id).retrievedAt(System.currentTimeMillis()).screenName("user" + id)
+        .screenNameLower("user" + id).location("Somewhere, USA")
+        .description("A reasonably long description of the user that is typical of Twitter bios.")
+        .url("http://example.com/" + id).statusesCount(1234).listedCount(12)
+        .followersCount(345).favouritesCount(67).utcOffset(-18000).friendsCount(89)
+        .createdAt(Instant.ofEpochMilli(1300000000000L)).timeZone("Eastern Time (US & Canada)")
+        .lang("en").isGeoEnabled(true).isVerified(false).isTranslator(false)
+        .isContributorsEnabled(false).isProtected(false)
+        .profileImageURL("http://pbs.twimg.com/profile_images/" + id + "/normal.jpg")
+        .profileBackgroundColor("C0DEED").profileTextColor("333333").profileLinkColor("0084B4")
+        .profileSidebarFillColor("DDEEF6").profileSidebarBorderColor("C0DEED")
+        .isProfileUseBackgroundImage(true).isDefaultProfile(true).isShowAllInlineMedia(false)
+        .isDefaultProfileImage(false)
+        .profileBackgroundImageURL("http://abs.twimg.com/images/themes/theme1/bg.png")
+        .profileBannerURL("https://pbs.twimg.com/profile_banners/" + id)
+        .isProfileBackgroundTiled(false)
+        .build();
+  }
+
+  // The builder mapper as it was before its property methods were bound up front: every property
+  // read or write is a Method.invoke.
+  private static class ReflectiveBuilderMapper implements EntityMapper {
+    private final Method builderMethod;
+    private final Method buildMethod;
+    private final Method builderIdMethod;
+    private final Method idMethod;
+    private final List<Method> builderPropertyMethods;
+    private final List<Method> propertyMethods;
+    private final String entityKind;
+
+    private ReflectiveBuilderMapper(Class clazz) {
+      builderMethod = method(clazz, "builder");
+      idMethod = method(clazz, "id");
+      Class builderClass = builderMethod.getReturnType();
+      buildMethod = method(builderClass, "build");
+      builderIdMethod = method(builderClass, "id");
+      builderPropertyMethods = methods(builderClass).stream()
+          .filter(m -> !m.getName().equals("id") && m.getReturnType().equals(builderClass))
+          .collect(Collectors.toList());
+      propertyMethods = builderPropertyMethods.stream().map(m -> method(clazz, m.getName()))
+          .collect(Collectors.toList());
+      entityKind = kindForClass(clazz);
+    }
+
+    @Override
+    public Entity toEntity(Model model) {
+      Entity.Builder builder = Entity.newBuilder();
+      builder.setKey(makeKey(entityKind, getModelId(model)));
+      for (Method method : propertyMethods) {
+        Object value = invoke(method, model);
+        if (value != null) {
+          builder.addProperty(makeProperty(method.getName(), toValue(value)));
+        }
+      }
+      return builder.build();
+    }
+
+    @Override
+    public <T extends Model> T fromEntity(Entity entity, Class<T> clazz) {
+      Map<String, Value> entityProperties = getPropertyMap(entity);
+      Object builder = invoke(builderMethod, null);
+      for (Method m : builderPropertyMethods) {
+        if (entityProperties.containsKey(m.getName())) {
+          invoke(m, builder, fromValue(entityProperties.get(m.getName())));
+        }
+      }
+      invoke(builderIdMethod, builder, entityId(entity));
+      return clazz.cast(invoke(buildMethod, builder));
+    }
+
+    @Override
+    public Object getModelId(Model model) {
+      return invoke(idMethod, model);
+    }
+
+    @Override
+    public String entityKind(Class clazz) {
+      return entityKind;
+    }
+  }
+
+  // The builder mapper with its property methods bound up front but every value converted by
+  // ValueHelper.toValue and fromValue, as an Object.
+  private static class BoxedBuilderMapper implements EntityMapper {
+    private final Supplier<Object> newBuilder;
+    private final Function<Object, Object> build;
+    private final BiFunction<Object, Object, Object> builderId;
+    private final Function<Object, Object> id;
+    private final List<String> names;
+    private final List<Function<Object, Object>> getters;
+    private final List<BiFunction<Object, Object, Object>> setters;
+    private final PropertySlots slots;
+    private final String entityKind;
+
+    private BoxedBuilderMapper(Class clazz) {
+      Method builderMethod = method(clazz, "builder");
+      Class builderClass = builderMethod.getReturnType();
+      List<Method> builderPropertyMethods = methods(builderClass).stream()
+          .filter(m -> !m.getName().equals("id") && m.getReturnType().equals(builderClass))
+          .collect(Collectors.toList());
+      names = builderPropertyMethods.stream().map(Method::getName).collect(Collectors.toList());
+      getters = names.stream().map(name -> getter(method(clazz, name)))
+          .collect(Collectors.toList());
+      setters = builderPropertyMethods.stream().map(PropertyAccessors::setter)
+          .collect(Collectors.toList());
+      slots = new PropertySlots(names);
+      newBuilder = supplier(builderMethod);
+      build = getter(method(builderClass, "build"));
+      builderId = setter(method(builderClass, "id"));
+      id = getter(method(clazz, "id"));
+      entityKind = kindForClass(clazz);
+    }
+
+    @Override
+    public Entity toEntity(Model model) {
+      Entity.Builder builder = Entity.newBuilder();
+      builder.setKey(makeKey(entityKind, getModelId(model)));
+      for (int i = 0; i < names.size(); i++) {
+        Object value = getters.get(i).apply(model);
+        if (value != null) {
+          builder.addProperty(makeProperty(names.get(i), toValue(value)));
+        }
+      }
+      return builder.build();
+    }
+
+    @Override
+    public <T extends Model> T fromEntity(Entity entity, Class<T> clazz) {
+      Object builder = newBuilder.get();
+      for (Property property : entity.getPropertyList()) {
+        int slot = slots.slot(property.getName());
+        if (slot != PropertySlots.NONE) {
+          setters.get(slot).apply(builder, fromValue(property.getValue()));
+        }
+      }
+      builderId.apply(builder, entityId(entity));
+      return clazz.cast(build.apply(builder));
+    }
+
+    @Override
+    public Object getModelId(Model model) {
+      return id.apply(model);
+    }
+
+    @Override
+    public String entityKind(Class clazz) {
+      return entityKind;
+    }
+  }
+}
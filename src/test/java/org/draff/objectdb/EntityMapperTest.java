@@ -9,6 +9,8 @@ import org.junit.Test;
 
 import java.util.Map;
 
+import javax.annotation.Nullable;
+
 import static com.google.api.services.datastore.client.DatastoreHelper.*;
 import static org.junit.Assert.*;
 
@@ -55,6 +57,25 @@ abstract class TestAmbiguousFactoryModel implements Model {
   }
 }
 
+@AutoValue
+abstract class TestBlobModel implements Model {
+  abstract long id();
+  @SuppressWarnings("mutable") @Nullable abstract long[] followerIds();
+  @SuppressWarnings("mutable") @Nullable abstract byte[] bytes();
+
+  static Builder builder() {
+    return new AutoValue_TestBlobModel.Builder();
+  }
+
+  @AutoValue.Builder
+  abstract static class Builder {
+    abstract Builder id(long id);
+    abstract Builder followerIds(long[] ids);
+    abstract Builder bytes(byte[] bytes);
+    abstract TestBlobModel build();
+  }
+}
+
 class TestMutableModel implements Model {
   long id;
   String screenName;
@@ -162,6 +183,63 @@ public class EntityMapperTest {
     assertEquals(5L, model.id);
   }
 
+  @Test
+  public void testIgnoresPropertiesTheModelDoesNotHave() {
+    ManagingEntityMapper mapper = new ManagingEntityMapper();
+    Entity builderEntity = Entity.newBuilder()
+        .setKey(makeKey("TestBuilderModel", 5))
+        .addProperty(makeProperty("removedProp", makeValue(true)))
+        .addProperty(makeProperty("longProp", makeValue(-6)))
+        .addProperty(makeProperty("stringProp", makeValue("str")))
+        .build();
+    assertEquals(TestBuilderModel.builder().id(5).stringProp("str").longProp(-6).build(),
+        mapper.fromEntity(builderEntity, TestBuilderModel.class));
+
+    Entity factoryEntity = builderEntity.toBuilder().setKey(makeKey("TestFactoryModel", "str:-6"))
+        .build();
+    assertEquals(TestFactoryModel.create("str", -6),
+        mapper.fromEntity(factoryEntity, TestFactoryModel.class));
+
+    Entity mutableEntity = Entity.newBuilder()
+        .setKey(makeKey("TestMutableModel", 5L))
+        .addProperty(makeProperty("id", makeValue(7L)))
+        .addProperty(makeProperty("removedProp", makeValue("x")))
+        .addProperty(makeProperty("screenName", makeValue("user")))
+        .build();
+    TestMutableModel model = mapper.fromEntity(mutableEntity, TestMutableModel.class);
+    assertEquals("user", model.screenName);
+    assertEquals(5L, model.id);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsValuesOfTheWrongType() {
+    Entity entity = Entity.newBuilder()
+        .setKey(makeKey("TestBuilderModel", 5))
+        .addProperty(makeProperty("stringProp", makeValue("str")))
+        .addProperty(makeProperty("longProp", makeValue("not a long")))
+        .build();
+    new ManagingEntityMapper().fromEntity(entity, TestBuilderModel.class);
+  }
+
+  @Test
+  public void testArraysAreStoredAsUnindexedBlobs() {
+    ManagingEntityMapper mapper = new ManagingEntityMapper();
+    TestBlobModel model = TestBlobModel.builder().id(1)
+        .followerIds(new long[] {5, 3, Long.MAX_VALUE, -2}).bytes(new byte[] {1, 2, 3}).build();
+
+    Entity entity = mapper.toEntity(model);
+    Map<String, Value> props = getPropertyMap(entity);
+    assertFalse(props.get("followerIds").getIndexed());
+    assertFalse(props.get("bytes").getIndexed());
+    assertEquals(3, props.get("bytes").getBlobValue().size());
+    assertEquals(model, mapper.fromEntity(entity, TestBlobModel.class));
+
+    TestBlobModel empty = TestBlobModel.builder().id(2).followerIds(new long[0]).build();
+    Entity emptyEntity = mapper.toEntity(empty);
+    assertFalse(getPropertyMap(emptyEntity).containsKey("bytes"));
+    assertEquals(empty, mapper.fromEntity(emptyEntity, TestBlobModel.class));
+  }
+
   @Test
   public void testGivesAndReceivesNull() {
     ManagingEntityMapper mapper = new ManagingEntityMapper();
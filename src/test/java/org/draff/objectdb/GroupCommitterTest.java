@@ -0,0 +1,100 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.Mutation;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.api.services.datastore.client.DatastoreHelper.makeKey;
+import static org.junit.Assert.*;
+
+/**
+ * Created by dave on 10/18/16.
+ */
+public class GroupCommitterTest {
+  private final List<Mutation> commits = Collections.synchronizedList(new ArrayList<>());
+  private final ExecutorService callers = Executors.newFixedThreadPool(10);
+
+  @Test
+  public void testConcurrentSavesShareACommit() {
+    GroupCommitter committer = committer(Duration.ofMillis(200), 500);
+
+    join(commitConcurrently(committer, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10));
+
+    assertEquals(1, commits.size());
+    assertEquals(10, commits.get(0).getUpsertCount());
+  }
+
+  @Test
+  public void testGroupClosesAtMaxEntities() {
+    GroupCommitter committer = committer(Duration.ofSeconds(30), 4);
+
+    // With a 30 second window this only finishes quickly if full groups get committed right away.
+    join(commitConcurrently(committer, 1, 2, 3, 4, 5, 6, 7, 8));
+
+    assertEquals(2, commits.size());
+    commits.forEach(commit -> assertEquals(4, commit.getUpsertCount()));
+  }
+
+  @Test
+  public void testSameKeyGoesInSeparateCommits() {
+    GroupCommitter committer = committer(Duration.ofMillis(200), 500);
+
+    join(commitConcurrently(committer, 1, 1));
+
+    assertEquals(2, commits.size());
+  }
+
+  @Test
+  public void testFailedGroupRetriedOneByOne() {
+    // Id 13 always fails, so the group fails and then each mutation gets committed on its own.
+    GroupCommitter committer = new GroupCommitter(mutation -> {
+      if (mutation.getUpsertList().stream()
+          .anyMatch(entity -> entity.getKey().getPathElement(0).getId() == 13)) {
+        throw new ObjectDbException("bad entity");
+      }
+      commits.add(mutation.build());
+    }, Executors.newCachedThreadPool(), Duration.ofMillis(200), 500);
+
+    List<CompletableFuture<Void>> results = commitConcurrently(committer, 12, 13, 14);
+
+    results.get(0).join();
+    results.get(2).join();
+    try {
+      results.get(1).join();
+      fail("Expected the commit of 13 to fail");
+    } catch (CompletionException e) {
+      assertEquals("bad entity", e.getCause().getMessage());
+    }
+    assertEquals(2, commits.size());
+  }
+
+  private GroupCommitter committer(Duration window, int maxEntities) {
+    return new GroupCommitter(mutation -> commits.add(mutation.build()),
+        Executors.newCachedThreadPool(), window, maxEntities);
+  }
+
+  private List<CompletableFuture<Void>> commitConcurrently(GroupCommitter committer,
+                                                          long... ids) {
+    List<CompletableFuture<Void>> results = new ArrayList<>();
+    for (long id : ids) {
+      Mutation.Builder mutation = Mutation.newBuilder()
+          .addUpsert(Entity.newBuilder().setKey(makeKey("Thing", id)));
+      results.add(CompletableFuture.runAsync(() -> committer.commit(mutation), callers));
+    }
+    return results;
+  }
+
+  private static void join(List<CompletableFuture<Void>> results) {
+    results.forEach(CompletableFuture::join);
+  }
+}
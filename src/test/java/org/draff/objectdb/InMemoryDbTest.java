@@ -0,0 +1,210 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.CommitRequest;
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.EntityResult;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.DatastoreV1.Mutation;
+import com.google.api.services.datastore.DatastoreV1.Query;
+import com.google.api.services.datastore.DatastoreV1.QueryResultBatch;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.client.DatastoreException;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.draff.objectdb.DatastoreDbTest.Friend;
+import org.draff.objectdb.DatastoreDbTest.User;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.google.api.services.datastore.client.DatastoreHelper.makeKey;
+import static com.google.api.services.datastore.client.DatastoreHelper.makeProperty;
+import static com.google.api.services.datastore.client.DatastoreHelper.makeValue;
+import static org.junit.Assert.*;
+
+/**
+ * Created by dave on 10/18/16.
+ */
+public class InMemoryDbTest {
+  private InMemoryDb db;
+
+  @Before
+  public void setup() {
+    db = new InMemoryDb();
+  }
+
+  @Test
+  public void testSaveFindAndDelete() {
+    User user = User.builder().id(8).depthGoal(5).build();
+    assertNull(db.findById(User.class, 8L));
+    db.save(user);
+    assertEquals(user, db.findById(User.class, 8L));
+    assertEquals(user, db.findOne(User.class));
+
+    db.delete(user);
+    assertNull(db.findById(User.class, 8L));
+    assertNull(db.findOne(User.class));
+  }
+
+  @Test
+  public void testConstrainedFind() {
+    Follower follower1 = follower(3, 4);
+    Follower follower2 = follower(5, 6);
+    db.saveAll(Arrays.asList(follower1, follower2));
+
+    Map<String, Object> constraints =
+        new ImmutableMap.Builder<String, Object>().put("userId", 5L).put("followerId", 6L).build();
+    Follower found = db.findOne(Follower.class, constraints);
+    assertEquals(5, found.userId);
+    assertEquals(6, found.followerId);
+
+    Map<String, Object> noMatch =
+        new ImmutableMap.Builder<String, Object>().put("userId", -5L).build();
+    assertNull(db.findOne(Follower.class, noMatch));
+    assertEquals(2, db.find(Follower.class, 10).size());
+  }
+
+  @Test
+  public void testFindChildrenOnlyFindsThatParentsChildren() {
+    User user1 = User.builder().id(1).depthGoal(2).build();
+    User user2 = User.builder().id(2).depthGoal(2).build();
+    db.saveAll(Arrays.asList(friend(user1, 4), friend(user1, 5), friend(user2, 6)));
+
+    List<Long> friendIds = db.findChildren(user1, Friend.class, 10, Long.MIN_VALUE).stream()
+        .map(friend -> friend.id).collect(Collectors.toList());
+    assertEquals(Arrays.asList(4L, 5L), friendIds);
+    assertEquals(1, db.findChildren(user1, Friend.class, 10, 5).size());
+  }
+
+  @Test
+  public void testPagingPastBatchSize() {
+    int count = QueryEvaluator.MAX_BATCH_SIZE * 2 + 10;
+    List<User> users = new ArrayList<>();
+    for (long id = count; id > 0; id--) {
+      users.add(User.builder().id(id).depthGoal(id % 2).build());
+    }
+    db.saveAll(users);
+
+    List<User> ordered = db.findOrderedById(User.class, 3, 10);
+    assertEquals(Arrays.asList(10L, 11L, 12L),
+        ordered.stream().map(User::id).collect(Collectors.toList()));
+    assertEquals(count, db.stream(User.class).count());
+
+    List<Long> pagedIds = new ArrayList<>();
+    String pageToken = null;
+    do {
+      Page<User> page = db.findPage(User.class, 300, pageToken);
+      page.items().forEach(user -> pagedIds.add(user.id()));
+      pageToken = page.nextPageToken();
+    } while (pageToken != null);
+    assertEquals(count, pagedIds.size());
+    assertEquals(1L, (long) pagedIds.get(0));
+    assertEquals((long) count, (long) pagedIds.get(count - 1));
+
+    Map<String, Object> even =
+        new ImmutableMap.Builder<String, Object>().put("depthGoal", 0L).build();
+    assertEquals(count / 2, db.streamIds(User.class, even).count());
+    assertEquals(count / 2, db.deleteWhere(User.class, even));
+    assertEquals(count - count / 2, db.stream(User.class).count());
+  }
+
+  @Test
+  public void testProjectionAndExistingIds() {
+    db.saveAll(Arrays.asList(User.builder().id(1).depthGoal(2).build(),
+        User.builder().id(2).depthGoal(1).build()));
+
+    assertEquals(ImmutableSet.of(1L, 2L),
+        db.streamProjection(User.class, Arrays.asList("depthGoal"))
+            .map(properties -> properties.get("depthGoal")).collect(Collectors.toSet()));
+    assertEquals(ImmutableSet.of(1L, 2L), db.existingIds(User.class, Arrays.asList(1L, 2L, 3L)));
+    assertEquals(2, db.findByIds(User.class, Arrays.asList(1L, 2L, 3L)).size());
+  }
+
+  @Test
+  public void testInsertOfExistingKeyAndUpdateOfMissingKeyFail() throws Exception {
+    InMemoryDatastore datastore = new InMemoryDatastore();
+    Entity entity = Entity.newBuilder().setKey(makeKey("Kind", 1L)).build();
+    datastore.commit(commit(Mutation.newBuilder().addInsert(entity)));
+
+    try {
+      datastore.commit(commit(Mutation.newBuilder().addInsert(entity)));
+      fail("Inserted an existing key");
+    } catch (DatastoreException e) {
+      assertEquals(400, e.getCode());
+    }
+    Entity missing = Entity.newBuilder().setKey(makeKey("Kind", 2L)).build();
+    try {
+      datastore.commit(commit(Mutation.newBuilder().addUpsert(entity.toBuilder()
+          .addProperty(makeProperty("p", makeValue(1)))).addUpdate(missing)));
+      fail("Updated a missing key");
+    } catch (DatastoreException e) {
+      assertEquals(404, e.getCode());
+    }
+    // Neither failed mutation changed anything.
+    LookupResponse lookup = datastore.lookup(LookupRequest.newBuilder()
+        .addKey(makeKey("Kind", 1L)).addKey(makeKey("Kind", 2L)).build());
+    assertEquals(Arrays.asList(entity), lookup.getFoundList().stream()
+        .map(EntityResult::getEntity).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testKeyOrderedQueryContinuesAfterDeletedCursorEntity() throws Exception {
+    InMemoryDatastore datastore = new InMemoryDatastore();
+    Mutation.Builder inserts = Mutation.newBuilder();
+    for (long id = 1; id <= 5; id++) {
+      inserts.addInsert(Entity.newBuilder().setKey(makeKey("Kind", id)));
+    }
+    datastore.commit(commit(inserts));
+
+    Query.Builder query = Query.newBuilder().setLimit(2);
+    query.addKindBuilder().setName("Kind");
+    QueryResultBatch first = runQuery(datastore, query);
+    assertEquals(Arrays.asList(1L, 2L), ids(first));
+    assertEquals(QueryResultBatch.MoreResultsType.MORE_RESULTS_AFTER_LIMIT,
+        first.getMoreResults());
+
+    datastore.commit(commit(Mutation.newBuilder().addDelete(makeKey("Kind", 2L))));
+    QueryResultBatch second = runQuery(datastore, query.setStartCursor(first.getEndCursor()));
+    assertEquals(Arrays.asList(3L, 4L), ids(second));
+    QueryResultBatch last = runQuery(datastore, query.setStartCursor(second.getEndCursor()));
+    assertEquals(Arrays.asList(5L), ids(last));
+    assertEquals(QueryResultBatch.MoreResultsType.NO_MORE_RESULTS, last.getMoreResults());
+  }
+
+  private static CommitRequest commit(Mutation.Builder mutation) {
+    return CommitRequest.newBuilder().setMutation(mutation)
+        .setMode(CommitRequest.Mode.NON_TRANSACTIONAL).build();
+  }
+
+  private static QueryResultBatch runQuery(InMemoryDatastore datastore, Query.Builder query)
+      throws DatastoreException {
+    return datastore.runQuery(RunQueryRequest.newBuilder().setQuery(query).build()).getBatch();
+  }
+
+  private static List<Long> ids(QueryResultBatch batch) {
+    return batch.getEntityResultList().stream()
+        .map(result -> result.getEntity().getKey().getPathElement(0).getId())
+        .collect(Collectors.toList());
+  }
+
+  private static Follower follower(long userId, long followerId) {
+    Follower follower = new Follower();
+    follower.userId = userId;
+    follower.followerId = followerId;
+    return follower;
+  }
+
+  private static Friend friend(User parent, long id) {
+    Friend friend = new Friend();
+    friend.parent = parent;
+    friend.id = id;
+    return friend;
+  }
+}
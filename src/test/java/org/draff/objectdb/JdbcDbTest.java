@@ -0,0 +1,140 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.CommitRequest;
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.Mutation;
+import com.google.common.collect.ImmutableMap;
+
+import org.draff.objectdb.DatastoreDbTest.Friend;
+import org.draff.objectdb.DatastoreDbTest.User;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.google.api.services.datastore.client.DatastoreHelper.makeKey;
+import static com.google.api.services.datastore.client.DatastoreHelper.makeProperty;
+import static com.google.api.services.datastore.client.DatastoreHelper.makeValue;
+import static org.junit.Assert.*;
+
+/**
+ * Runs against an in-memory H2 database, so it needs the H2 driver on the classpath.
+ *
+ * Created by dave on 10/18/16.
+ */
+public class JdbcDbTest {
+  private static int databases = 0;
+  private JdbcDb db;
+
+  @Before
+  public void setup() {
+    db = new JdbcDb("jdbc:h2:mem:jdbcdbtest" + databases++, Collections.emptyMap(),
+        DatastoreDbOptions.defaults());
+  }
+
+  @Test
+  public void testSaveFindAndConstraints() {
+    User user = User.builder().id(8).depthGoal(5).build();
+    db.saveAll(Arrays.asList(user, User.builder().id(9).depthGoal(6).build()));
+    assertEquals(user, db.findById(User.class, 8L));
+
+    Map<String, Object> constraints =
+        new ImmutableMap.Builder<String, Object>().put("depthGoal", 6L).build();
+    assertEquals(9L, db.findOne(User.class, constraints).id());
+
+    db.save(User.builder().id(9).depthGoal(7).build());
+    assertNull(db.findOne(User.class, constraints));
+
+    db.delete(user);
+    assertNull(db.findById(User.class, 8L));
+  }
+
+  @Test
+  public void testChildrenAndPaging() {
+    User user1 = User.builder().id(1).depthGoal(2).build();
+    User user2 = User.builder().id(2).depthGoal(2).build();
+    List<Friend> friends = new ArrayList<>();
+    for (long id = 1; id <= 1200; id++) {
+      friends.add(friend(id % 3 == 0 ? user2 : user1, id));
+    }
+    db.saveAll(friends);
+
+    assertEquals(Arrays.asList(1L, 2L, 4L), db.findChildren(user1, Friend.class, 3, 0).stream()
+        .map(friend -> friend.id).collect(Collectors.toList()));
+    assertEquals(800, db.streamChildren(user1, Friend.class).count());
+
+    List<Long> pagedIds = new ArrayList<>();
+    String pageToken = null;
+    do {
+      Page<Friend> page = db.findChildrenPage(user2, Friend.class, 300, pageToken);
+      page.items().forEach(friend -> pagedIds.add(friend.id));
+      pageToken = page.nextPageToken();
+    } while (pageToken != null);
+    assertEquals(400, pagedIds.size());
+    assertEquals(3L, (long) pagedIds.get(0));
+    assertEquals(1200L, (long) pagedIds.get(399));
+  }
+
+  @Test
+  public void testImport() {
+    InMemoryDatastore source = new InMemoryDatastore();
+    DatastoreDb sourceDb = new DatastoreDb(source, Collections.emptyMap(),
+        DatastoreDbOptions.defaults());
+    List<User> users = new ArrayList<>();
+    for (long id = 1; id <= 700; id++) {
+      users.add(User.builder().id(id).depthGoal(id % 2).build());
+    }
+    sourceDb.saveAll(users);
+    sourceDb.save(friend(users.get(0), 5));
+
+    assertEquals(701, db.importFrom(source));
+    assertEquals(700, db.stream(User.class).count());
+    assertEquals(1, db.findChildren(users.get(0), Friend.class, 10, 0).size());
+  }
+
+  @Test
+  public void testRuntimeExceptionRollsBackWork() throws Exception {
+    JdbcDatastore datastore = new JdbcDatastore("jdbc:h2:mem:jdbcdbtest" + databases++);
+    Key key = makeKey("User", 1L).build();
+    try {
+      datastore.withConnection("commit", connection -> {
+        try (PreparedStatement insert = connection.prepareStatement(
+            "INSERT INTO entities (kind, path, entity) VALUES (?, ?, ?)")) {
+          insert.setString(1, "User");
+          insert.setString(2, JdbcDatastore.path(key));
+          insert.setBytes(3, Entity.newBuilder().setKey(key).build().toByteArray());
+          insert.executeUpdate();
+        }
+        throw new IllegalStateException("Failed after writing");
+      });
+      fail("Work didn't fail");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+
+    // The half-done work was rolled back, so it holds no locks on the row and left nothing behind.
+    LookupRequest lookup = LookupRequest.newBuilder().addKey(key).build();
+    assertEquals(0, datastore.lookup(lookup).getFoundCount());
+    Entity entity = Entity.newBuilder().setKey(key)
+        .addProperty(makeProperty("depthGoal", makeValue(3))).build();
+    datastore.commit(CommitRequest.newBuilder().setMutation(Mutation.newBuilder().addUpsert(entity))
+        .setMode(CommitRequest.Mode.NON_TRANSACTIONAL).build());
+    assertEquals(entity, datastore.lookup(lookup).getFound(0).getEntity());
+    datastore.close();
+  }
+
+  private static Friend friend(User parent, long id) {
+    Friend friend = new Friend();
+    friend.parent = parent;
+    friend.id = id;
+    return friend;
+  }
+}
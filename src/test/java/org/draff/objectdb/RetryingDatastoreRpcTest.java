@@ -0,0 +1,110 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.CommitRequest;
+import com.google.api.services.datastore.DatastoreV1.CommitResponse;
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.EntityResult;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.DatastoreV1.Mutation;
+import com.google.api.services.datastore.client.DatastoreException;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.api.services.datastore.client.DatastoreHelper.makeKey;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Created by dave on 10/18/16.
+ */
+public class RetryingDatastoreRpcTest {
+  private static final RetryPolicy FAST_RETRIES = RetryPolicy.builder()
+      .maxAttempts(3).initialBackoff(Duration.ofMillis(1)).build();
+
+  private DatastoreRpc datastore = mock(DatastoreRpc.class);
+
+  @Test
+  public void testRetriesUpsertsUntilTheySucceed() throws Exception {
+    when(datastore.commit(any(CommitRequest.class)))
+        .thenThrow(new DatastoreException("commit", 503, "unavailable", null))
+        .thenThrow(new DatastoreException("commit", 500, "internal", null))
+        .thenReturn(CommitResponse.getDefaultInstance());
+
+    RetryingDatastoreRpc rpc = new RetryingDatastoreRpc(datastore, FAST_RETRIES, Duration.ZERO);
+    rpc.commit(commit(Mutation.newBuilder().addUpsert(entity(1))));
+    verify(datastore, times(3)).commit(any(CommitRequest.class));
+  }
+
+  @Test
+  public void testGivesUpAfterMaxAttempts() throws Exception {
+    when(datastore.commit(any(CommitRequest.class)))
+        .thenThrow(new DatastoreException("commit", 503, "unavailable", null));
+
+    try {
+      new RetryingDatastoreRpc(datastore, FAST_RETRIES, Duration.ZERO)
+          .commit(commit(Mutation.newBuilder().addDelete(makeKey("Kind", 1L))));
+      fail("Expected the last attempt's exception");
+    } catch (DatastoreException e) {
+      assertEquals(503, e.getCode());
+    }
+    verify(datastore, times(3)).commit(any(CommitRequest.class));
+  }
+
+  @Test
+  public void testDoesNotRetryBadRequestsOrInserts() throws Exception {
+    when(datastore.commit(any(CommitRequest.class)))
+        .thenThrow(new DatastoreException("commit", 400, "bad request", null))
+        .thenThrow(new DatastoreException("commit", 503, "unavailable", null));
+    RetryingDatastoreRpc rpc = new RetryingDatastoreRpc(datastore, FAST_RETRIES, Duration.ZERO);
+
+    for (Mutation.Builder mutation : new Mutation.Builder[] {
+        Mutation.newBuilder().addUpsert(entity(1)), Mutation.newBuilder().addInsert(entity(1))}) {
+      try {
+        rpc.commit(commit(mutation));
+        fail("Expected the first attempt's exception");
+      } catch (DatastoreException e) {
+        // Expected
+      }
+    }
+    verify(datastore, times(2)).commit(any(CommitRequest.class));
+  }
+
+  @Test
+  public void testHedgesSlowLookups() throws Exception {
+    CountDownLatch hedged = new CountDownLatch(1);
+    AtomicInteger lookups = new AtomicInteger();
+    LookupResponse response = LookupResponse.newBuilder()
+        .addFound(EntityResult.newBuilder().setEntity(entity(1)))
+        .build();
+    when(datastore.lookup(any(LookupRequest.class))).thenAnswer(invocation -> {
+      if (lookups.incrementAndGet() == 1) {
+        // The first lookup is stuck until the hedged one has been answered.
+        hedged.await();
+        throw new DatastoreException("lookup", 503, "too slow", null);
+      }
+      hedged.countDown();
+      return response;
+    });
+
+    RetryingDatastoreRpc rpc = new RetryingDatastoreRpc(datastore, RetryPolicy.noRetries(),
+        Duration.ofMillis(10));
+    assertEquals(response, rpc.lookup(LookupRequest.newBuilder().addKey(makeKey("Kind", 1L))
+        .build()));
+    assertEquals(2, lookups.get());
+  }
+
+  private static Entity entity(long id) {
+    return Entity.newBuilder().setKey(makeKey("Kind", id)).build();
+  }
+
+  private static CommitRequest commit(Mutation.Builder mutation) {
+    return CommitRequest.newBuilder().setMode(CommitRequest.Mode.NON_TRANSACTIONAL)
+        .setMutation(mutation).build();
+  }
+}
@@ -0,0 +1,38 @@
+package org.draff.objectdb;
+
+import com.google.api.services.datastore.DatastoreV1.Value;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.draff.objectdb.ValueHelper.longArrayFromValue;
+import static org.draff.objectdb.ValueHelper.makeLongArrayValue;
+import static org.junit.Assert.*;
+
+/**
+ * Created by dave on 10/18/16.
+ */
+public class ValueHelperTest {
+  @Test
+  public void testLongArrayRoundTrip() {
+    long[] longs = {0, -1, 1, Long.MIN_VALUE, Long.MAX_VALUE, 42, 42, -7};
+    assertArrayEquals(longs, longArrayFromValue(makeLongArrayValue(longs).build()));
+    assertArrayEquals(new long[0], longArrayFromValue(makeLongArrayValue(new long[0]).build()));
+  }
+
+  @Test
+  public void testSortedIdsPackSmall() {
+    // A page of follower ids: sorted and spread over a range like Twitter user ids.
+    long[] ids = new Random(1).longs(5000, 1L, 800000000L).sorted().toArray();
+    Value value = makeLongArrayValue(ids).build();
+    assertFalse(value.getIndexed());
+    assertTrue(value.getBlobValue().size() < 5000 * 4);
+    assertArrayEquals(ids, longArrayFromValue(value));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsUnknownFormat() {
+    longArrayFromValue(ValueHelper.makeBlobValue(new byte[] {9, 1, 2}).build());
+  }
+}
@@ -0,0 +1,53 @@
+package org.draff.support;
+
+import com.google.common.collect.ImmutableMap;
+
+import twitter4j.RateLimitStatus;
+import twitter4j.Twitter;
+import twitter4j.TwitterException;
+import twitter4j.TwitterResponse;
+
+import java.util.Map;
+
+import static org.draff.twitfetch.TwitterTokenPool.FOLLOWERS_IDS;
+import static org.draff.twitfetch.TwitterTokenPool.FRIENDS_IDS;
+import static org.draff.twitfetch.TwitterTokenPool.USERS_LOOKUP;
+import static org.mockito.Mockito.*;
+
+/**
+ * Created by dave on 10/18/16.
+ */
+public class MockTwitter {
+  // A Twitter client whose rate limit status has the given requests left for each endpoint.
+  public static Twitter withRateLimit(int remaining, int secondsUntilReset) {
+    Map<String, RateLimitStatus> statuses = ImmutableMap.of(
+        FOLLOWERS_IDS, mockStatus(remaining, secondsUntilReset),
+        FRIENDS_IDS, mockStatus(remaining, secondsUntilReset),
+        USERS_LOOKUP, mockStatus(remaining, secondsUntilReset));
+    Twitter twitter = mock(Twitter.class);
+    try {
+      when(twitter.getRateLimitStatus()).thenReturn(statuses);
+    } catch(TwitterException e) {
+      throw new IllegalStateException(e);
+    }
+    return twitter;
+  }
+
+  // A response whose rate limit status has the given requests left.
+  public static TwitterResponse response(int remaining, int secondsUntilReset) {
+    RateLimitStatus status = mockStatus(remaining, secondsUntilReset);
+    TwitterResponse response = mock(TwitterResponse.class);
+    when(response.getRateLimitStatus()).thenReturn(status);
+    return response;
+  }
+
+  public static RateLimitStatus mockStatus(int remaining, int secondsUntilReset) {
+    RateLimitStatus status = mock(RateLimitStatus.class);
+    when(status.getRemaining()).thenReturn(remaining);
+    when(status.getLimit()).thenReturn(Math.max(remaining, 15));
+    when(status.getSecondsUntilReset()).thenReturn(secondsUntilReset);
+    when(status.getResetTimeInSeconds())
+        .thenReturn((int) (System.currentTimeMillis() / 1000) + secondsUntilReset);
+    return status;
+  }
+}